@@ -40,13 +40,13 @@
 #include "sysendian.h"
 
 #include "crypto_scrypt.h"
+#include "crypto_scrypt_smix.h"
 
 static void blkcpy(void *, void *, size_t);
 static void blkxor(void *, void *, size_t);
 static void salsa20_8(uint32_t[16]);
 static void blockmix_salsa8(uint32_t *, uint32_t *, uint32_t *, size_t);
 static uint64_t integerify(void *, size_t);
-static void smix(uint8_t *, size_t, uint64_t, uint32_t *, uint32_t *);
 
 static void
 blkcpy(void * dest, void * src, size_t len)
@@ -163,15 +163,16 @@ integerify(void * B, size_t r)
 }
 
 /**
- * smix(B, r, N, V, XY):
+ * crypto_scrypt_smix_nosse(B, r, N, V, XY):
  * Compute B = SMix_r(B, N).  The input B must be 128r bytes in length;
  * the temporary storage V must be 128rN bytes in length; the temporary
  * storage XY must be 256r + 64 bytes in length.  The value N must be a
  * power of 2 greater than 1.  The arrays B, V, and XY must be aligned to a
  * multiple of 64 bytes.
  */
-static void
-smix(uint8_t * B, size_t r, uint64_t N, uint32_t * V, uint32_t * XY)
+void
+crypto_scrypt_smix_nosse(uint8_t * B, size_t r, uint64_t N, uint32_t * V,
+    uint32_t * XY)
 {
 	uint32_t * X = XY;
 	uint32_t * Y = &XY[32 * r];
@@ -235,6 +236,7 @@ crypto_scrypt(const uint8_t * passwd, size_t passwdlen,
     const uint8_t * salt, size_t saltlen, uint64_t N, uint32_t r, uint32_t p,
     uint8_t * buf, size_t buflen)
 {
+	crypto_scrypt_smix_fn smix = crypto_scrypt_smix_selected()->smix;
 	void * B0, * V0, * XY0;
 	uint8_t * B;
 	uint32_t * V;
@@ -0,0 +1,251 @@
+// Copyright the original author or authors.
+
+#include "scrypt_platform.h"
+
+#include <sys/types.h>
+#include <sys/mman.h>
+
+#include <errno.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "sha256.h"
+
+#include "crypto_scrypt_parallel.h"
+#include "crypto_scrypt_smix.h"
+
+/* Upper bound for the V arrays of all lanes running at the same time. */
+#define MAX_PARALLEL_MEMORY ((size_t)256 * 1024 * 1024)
+
+/* Number of idle arenas kept for reuse. */
+#define MAX_POOLED_ARENAS 2
+
+#define ALIGN64(x) (((x) + 63) & ~(size_t)63)
+
+struct arena {
+	void * base;
+	size_t len;
+	struct arena * next;
+};
+
+struct lane_job {
+	crypto_scrypt_smix_fn smix;
+	uint8_t * B;
+	size_t r;
+	uint64_t N;
+	uint32_t p;
+	uint32_t first;
+	uint32_t stride;
+	uint32_t * V;
+	uint32_t * XY;
+};
+
+static pthread_mutex_t pool_mutex = PTHREAD_MUTEX_INITIALIZER;
+static struct arena * pool = NULL;
+static unsigned int pool_size = 0;
+
+static struct arena *
+arena_acquire(size_t len)
+{
+	struct arena ** a;
+	struct arena * arena = NULL;
+	struct arena * unfit = NULL;
+
+	pthread_mutex_lock(&pool_mutex);
+	for (a = &pool; *a != NULL; a = &(*a)->next) {
+		if ((*a)->len >= len) {
+			arena = *a;
+			*a = arena->next;
+			pool_size--;
+			break;
+		}
+	}
+	if (arena == NULL && pool != NULL && pool_size >= MAX_POOLED_ARENAS) {
+		/* Make room for the bigger arena we're about to map. */
+		unfit = pool;
+		pool = unfit->next;
+		pool_size--;
+	}
+	pthread_mutex_unlock(&pool_mutex);
+
+	if (unfit != NULL) {
+		munmap(unfit->base, unfit->len);
+		free(unfit);
+	}
+	if (arena != NULL)
+		return (arena);
+
+	if ((arena = malloc(sizeof(struct arena))) == NULL)
+		return (NULL);
+	arena->len = len;
+	if ((arena->base = mmap(NULL, len, PROT_READ | PROT_WRITE,
+#ifdef MAP_NOCORE
+	    MAP_ANON | MAP_PRIVATE | MAP_NOCORE,
+#else
+	    MAP_ANON | MAP_PRIVATE,
+#endif
+	    -1, 0)) == MAP_FAILED) {
+		free(arena);
+		return (NULL);
+	}
+	return (arena);
+}
+
+static void
+arena_release(struct arena * arena)
+{
+
+	pthread_mutex_lock(&pool_mutex);
+	if (pool_size < MAX_POOLED_ARENAS) {
+		arena->next = pool;
+		pool = arena;
+		pool_size++;
+		arena = NULL;
+	}
+	pthread_mutex_unlock(&pool_mutex);
+
+	if (arena != NULL) {
+		munmap(arena->base, arena->len);
+		free(arena);
+	}
+}
+
+void
+crypto_scrypt_release_scratch(void)
+{
+	struct arena * arena;
+
+	pthread_mutex_lock(&pool_mutex);
+	arena = pool;
+	pool = NULL;
+	pool_size = 0;
+	pthread_mutex_unlock(&pool_mutex);
+
+	while (arena != NULL) {
+		struct arena * next = arena->next;
+
+		munmap(arena->base, arena->len);
+		free(arena);
+		arena = next;
+	}
+}
+
+static void *
+run_lanes(void * cookie)
+{
+	struct lane_job * job = cookie;
+	uint32_t i;
+
+	/* 2: for i = 0 to p - 1 do */
+	for (i = job->first; i < job->p; i += job->stride) {
+		/* 3: B_i <-- MF(B_i, N) */
+		job->smix(&job->B[i * 128 * job->r], job->r, job->N, job->V,
+		    job->XY);
+	}
+	return (NULL);
+}
+
+int
+crypto_scrypt_parallel(const uint8_t * passwd, size_t passwdlen,
+    const uint8_t * salt, size_t saltlen, uint64_t N, uint32_t r, uint32_t p,
+    uint8_t * buf, size_t buflen, unsigned int maxthreads)
+{
+	crypto_scrypt_smix_fn smix = crypto_scrypt_smix_selected()->smix;
+	struct lane_job jobs[32];
+	pthread_t threads[32];
+	int started[32];
+	struct arena * arena;
+	size_t Blen, lanelen;
+	uint8_t * B;
+	unsigned int nthreads, t;
+
+	/* Sanity-check parameters, just like crypto_scrypt does. */
+#if SIZE_MAX > UINT32_MAX
+	if (buflen > (((uint64_t)(1) << 32) - 1) * 32) {
+		errno = EFBIG;
+		return (-1);
+	}
+#endif
+	if ((uint64_t)(r) * (uint64_t)(p) >= (1 << 30)) {
+		errno = EFBIG;
+		return (-1);
+	}
+	if (((N & (N - 1)) != 0) || (N < 2)) {
+		errno = EINVAL;
+		return (-1);
+	}
+	if ((r > SIZE_MAX / 128 / p) ||
+#if SIZE_MAX / 256 <= UINT32_MAX
+	    (r > SIZE_MAX / 256) ||
+#endif
+	    (N > SIZE_MAX / 128 / r)) {
+		errno = ENOMEM;
+		return (-1);
+	}
+
+	/* One thread per lane, bounded by the caller, memory and our arrays. */
+	Blen = ALIGN64(128 * r * p);
+	lanelen = ALIGN64(128 * r * N) + ALIGN64(256 * r + 64);
+	nthreads = maxthreads;
+	if (nthreads > p)
+		nthreads = p;
+	if (nthreads > MAX_PARALLEL_MEMORY / lanelen)
+		nthreads = MAX_PARALLEL_MEMORY / lanelen;
+	if (nthreads > sizeof(jobs) / sizeof(jobs[0]))
+		nthreads = sizeof(jobs) / sizeof(jobs[0]);
+	if (nthreads < 1)
+		nthreads = 1;
+	if (lanelen > (SIZE_MAX - Blen) / nthreads) {
+		errno = ENOMEM;
+		return (-1);
+	}
+
+	/* Allocate memory: B, then V and XY for each thread. */
+	if ((arena = arena_acquire(Blen + nthreads * lanelen)) == NULL) {
+		errno = ENOMEM;
+		return (-1);
+	}
+	B = arena->base;
+
+	/* 1: (B_0 ... B_{p-1}) <-- PBKDF2(P, S, 1, p * MFLen) */
+	PBKDF2_SHA256(passwd, passwdlen, salt, saltlen, 1, B, p * 128 * r);
+
+	for (t = 0; t < nthreads; t++) {
+		uint8_t * lane = (uint8_t *)arena->base + Blen + t * lanelen;
+
+		jobs[t].smix = smix;
+		jobs[t].B = B;
+		jobs[t].r = r;
+		jobs[t].N = N;
+		jobs[t].p = p;
+		jobs[t].first = t;
+		jobs[t].stride = nthreads;
+		jobs[t].V = (uint32_t *)lane;
+		jobs[t].XY = (uint32_t *)(lane + ALIGN64(128 * r * N));
+	}
+
+	/* Lanes 1 .. nthreads - 1 get their own thread; if that fails, we
+	 * run them here after our own. */
+	for (t = 1; t < nthreads; t++)
+		started[t] = pthread_create(&threads[t], NULL, run_lanes,
+		    &jobs[t]) == 0;
+	run_lanes(&jobs[0]);
+	for (t = 1; t < nthreads; t++) {
+		if (started[t])
+			pthread_join(threads[t], NULL);
+		else
+			run_lanes(&jobs[t]);
+	}
+
+	/* 5: DK <-- PBKDF2(P, B, 1, dkLen) */
+	PBKDF2_SHA256(passwd, passwdlen, B, p * 128 * r, 1, buf, buflen);
+
+	/* B is the direct input of the key, and each V starts with a copy of
+	 * it; the arena may be pooled, so don't leave any of it around. */
+	memset(arena->base, 0, Blen + nthreads * lanelen);
+	arena_release(arena);
+
+	return (0);
+}
@@ -0,0 +1,29 @@
+// Copyright the original author or authors.
+
+#ifndef _CRYPTO_SCRYPT_PARALLEL_H_
+#define _CRYPTO_SCRYPT_PARALLEL_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+/**
+ * crypto_scrypt_parallel(passwd, passwdlen, salt, saltlen, N, r, p, buf,
+ *     buflen, maxthreads):
+ * Like crypto_scrypt, but the p independent lanes are spread across up to
+ * maxthreads threads, each needing its own 128rN bytes of V.  The caller
+ * should pass the number of cores.  The scratch memory is taken from a pool
+ * so that it can be reused by the next call instead of being mapped and
+ * unmapped every time.
+ *
+ * Return 0 on success; or -1 on error.
+ */
+int crypto_scrypt_parallel(const uint8_t *, size_t, const uint8_t *, size_t,
+    uint64_t, uint32_t, uint32_t, uint8_t *, size_t, unsigned int);
+
+/**
+ * crypto_scrypt_release_scratch():
+ * Unmap all pooled scratch memory that is not currently in use.
+ */
+void crypto_scrypt_release_scratch(void);
+
+#endif /* !_CRYPTO_SCRYPT_PARALLEL_H_ */
@@ -0,0 +1,103 @@
+// Copyright the original author or authors.
+
+#include <stddef.h>
+#include <string.h>
+
+#if defined(SCRYPT_RUNTIME_NEON)
+#include <fcntl.h>
+#include <unistd.h>
+#endif
+
+#include "crypto_scrypt_smix.h"
+
+/*
+ * If the compiler targets SSE2 or NEON, it is free to use them anywhere in
+ * this library, so there is nothing left to probe at runtime. This is the
+ * case for x86, x86_64 and arm64-v8a.
+ */
+static int
+always(void)
+{
+
+	return (1);
+}
+
+#if defined(SCRYPT_RUNTIME_NEON)
+#ifndef AT_NULL
+#define AT_NULL 0
+#endif
+#ifndef AT_HWCAP
+#define AT_HWCAP 16
+#endif
+#define HWCAP_ARM_NEON (1 << 12)
+
+/*
+ * On armeabi-v7a, NEON is optional and the NEON core is built separately
+ * (see native-scrypt-neon). Ask the kernel whether the CPU has it. The
+ * auxiliary vector is read from /proc, as getauxval(3) needs API level 18.
+ */
+static int
+neon_available(void)
+{
+	unsigned long entry[2];
+	int fd;
+	int available = 0;
+
+	if ((fd = open("/proc/self/auxv", O_RDONLY)) == -1)
+		return (0);
+	while (read(fd, entry, sizeof(entry)) == sizeof(entry)) {
+		if (entry[0] == AT_NULL)
+			break;
+		if (entry[0] == AT_HWCAP) {
+			available = (entry[1] & HWCAP_ARM_NEON) != 0;
+			break;
+		}
+	}
+	close(fd);
+	return (available);
+}
+#endif
+
+const struct crypto_scrypt_smix_impl crypto_scrypt_smix_impls[] = {
+#if defined(__SSE2__)
+	{ "sse2", always, crypto_scrypt_smix_sse2 },
+#endif
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+	{ "neon", always, crypto_scrypt_smix_neon },
+#elif defined(SCRYPT_RUNTIME_NEON)
+	{ "neon", neon_available, crypto_scrypt_smix_neon },
+#endif
+	{ "nosse", always, crypto_scrypt_smix_nosse },
+	{ NULL, NULL, NULL }
+};
+
+/*
+ * Only ever set to a valid entry, so racing first uses are harmless.
+ */
+static const struct crypto_scrypt_smix_impl * volatile selected = NULL;
+
+const struct crypto_scrypt_smix_impl *
+crypto_scrypt_smix_select(const char * name)
+{
+	const struct crypto_scrypt_smix_impl * impl;
+
+	for (impl = crypto_scrypt_smix_impls; impl->name != NULL; impl++) {
+		if (name != NULL && strcmp(name, impl->name) != 0)
+			continue;
+		if (!impl->available())
+			continue;
+		selected = impl;
+		return (impl);
+	}
+	return (NULL);
+}
+
+const struct crypto_scrypt_smix_impl *
+crypto_scrypt_smix_selected(void)
+{
+	const struct crypto_scrypt_smix_impl * impl = selected;
+
+	if (impl == NULL)
+		impl = crypto_scrypt_smix_select(NULL);
+	return (impl);
+}
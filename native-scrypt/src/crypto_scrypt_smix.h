@@ -0,0 +1,62 @@
+// Copyright the original author or authors.
+
+#ifndef _CRYPTO_SCRYPT_SMIX_H_
+#define _CRYPTO_SCRYPT_SMIX_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+/**
+ * smix(B, r, N, V, XY):
+ * Compute B = SMix_r(B, N).  The input B must be 128r bytes in length;
+ * the temporary storage V must be 128rN bytes in length; the temporary
+ * storage XY must be 256r + 64 bytes in length.  The value N must be a
+ * power of 2 greater than 1.  The arrays V and XY must be aligned to a
+ * multiple of 64 bytes.
+ */
+typedef void (*crypto_scrypt_smix_fn)(uint8_t *, size_t, uint64_t,
+    uint32_t *, uint32_t *);
+
+struct crypto_scrypt_smix_impl {
+	const char * name;
+	/* Return non-zero if the CPU we're running on supports it. */
+	int (* available)(void);
+	crypto_scrypt_smix_fn smix;
+};
+
+void crypto_scrypt_smix_nosse(uint8_t *, size_t, uint64_t, uint32_t *,
+    uint32_t *);
+#if defined(__SSE2__)
+void crypto_scrypt_smix_sse2(uint8_t *, size_t, uint64_t, uint32_t *,
+    uint32_t *);
+#endif
+#if defined(__ARM_NEON) || defined(__ARM_NEON__) || defined(SCRYPT_RUNTIME_NEON)
+void crypto_scrypt_smix_neon(uint8_t *, size_t, uint64_t, uint32_t *,
+    uint32_t *);
+#endif
+
+/**
+ * Implementations compiled into this build, fastest first, terminated by an
+ * entry with a NULL name.
+ */
+extern const struct crypto_scrypt_smix_impl crypto_scrypt_smix_impls[];
+
+/**
+ * crypto_scrypt_smix_select(name):
+ * Select the implementation used by crypto_scrypt.  If name is NULL, the
+ * fastest implementation the CPU supports is selected.
+ *
+ * Return the selected implementation; or NULL if the named one isn't
+ * compiled in or not supported by the CPU.
+ */
+const struct crypto_scrypt_smix_impl * crypto_scrypt_smix_select(
+    const char *);
+
+/**
+ * crypto_scrypt_smix_selected():
+ * Return the implementation used by crypto_scrypt, selecting the fastest one
+ * on first use.
+ */
+const struct crypto_scrypt_smix_impl * crypto_scrypt_smix_selected(void);
+
+#endif /* !_CRYPTO_SCRYPT_SMIX_H_ */
@@ -2,59 +2,103 @@
 
 #include <errno.h>
 #include <stdlib.h>
+#include <string.h>
 #include <inttypes.h>
+#include <unistd.h>
 
 #include <jni.h>
-#include "crypto_scrypt.h"
+#include "crypto_scrypt_parallel.h"
 
+static void throwScryptError(JNIEnv *env)
+{
+    jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    char *msg;
+    switch (errno) {
+        case EINVAL:
+            msg = "N must be a power of 2 greater than 1";
+            break;
+        case EFBIG:
+        case ENOMEM:
+            msg = "Insufficient memory available";
+            break;
+        default:
+            msg = "Memory allocation failed";
+    }
+    (*env)->ThrowNew(env, e, msg);
+}
+
+/*
+ * Callers that already run several derivations side by side, like batch BIP38
+ * decryption, limit the lanes of their own thread so the threads don't
+ * multiply. 0 means no limit.
+ */
+static __thread unsigned int threadLimit;
+
+static unsigned int maxThreads(void)
+{
+    long n = sysconf(_SC_NPROCESSORS_ONLN);
+    unsigned int cpus = n > 0 ? (unsigned int) n : 1;
+    return (threadLimit > 0 && threadLimit < cpus) ? threadLimit : cpus;
+}
+
+/*
+ * Password and salt are tiny, so they're copied out with GetByteArrayRegion
+ * rather than pinned for the whole derivation. The scratch memory comes from
+ * the pool in crypto_scrypt_parallel.
+ */
 jbyteArray JNICALL scryptN(JNIEnv *env, jclass cls, jbyteArray passwd, jbyteArray salt,
     jint N, jint r, jint p, jint dkLen)
 {
     jint Plen = (*env)->GetArrayLength(env, passwd);
     jint Slen = (*env)->GetArrayLength(env, salt);
-    jbyte *P = (*env)->GetByteArrayElements(env, passwd, NULL);
-    jbyte *S = (*env)->GetByteArrayElements(env, salt,   NULL);
-    uint8_t *buf = malloc(sizeof(uint8_t) * dkLen);
+    uint8_t *buf = malloc(sizeof(uint8_t) * (Plen + Slen + dkLen));
+    uint8_t *P = buf, *S = buf + Plen, *dk = buf + Plen + Slen;
     jbyteArray DK = NULL;
 
-    if (P == NULL || S == NULL || buf == NULL) goto cleanup;
-
-    if (crypto_scrypt((uint8_t *) P, Plen, (uint8_t *) S, Slen, N, r, p, buf, dkLen)) {
-        jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
-        char *msg;
-        switch (errno) {
-            case EINVAL:
-                msg = "N must be a power of 2 greater than 1";
-                break;
-            case EFBIG:
-            case ENOMEM:
-                msg = "Insufficient memory available";
-                break;
-            default:
-                msg = "Memory allocation failed";
-        }
-        (*env)->ThrowNew(env, e, msg);
+    if (buf == NULL) goto cleanup;
+
+    (*env)->GetByteArrayRegion(env, passwd, 0, Plen, (jbyte *) P);
+    (*env)->GetByteArrayRegion(env, salt,   0, Slen, (jbyte *) S);
+
+    if (crypto_scrypt_parallel(P, Plen, S, Slen, N, r, p, dk, dkLen, maxThreads())) {
+        throwScryptError(env);
         goto cleanup;
     }
 
     DK = (*env)->NewByteArray(env, dkLen);
     if (DK == NULL) goto cleanup;
 
-    (*env)->SetByteArrayRegion(env, DK, 0, dkLen, (jbyte *) buf);
+    (*env)->SetByteArrayRegion(env, DK, 0, dkLen, (jbyte *) dk);
 
   cleanup:
 
-    if (P) (*env)->ReleaseByteArrayElements(env, passwd, P, JNI_ABORT);
-    if (S) (*env)->ReleaseByteArrayElements(env, salt,   S, JNI_ABORT);
-    if (buf) free(buf);
+    if (buf) {
+        memset(buf, 0, Plen + Slen + dkLen);
+        free(buf);
+    }
 
     return DK;
 }
 
+void JNICALL releaseScratch(JNIEnv *env, jclass cls)
+{
+    crypto_scrypt_release_scratch();
+}
+
+void JNICALL limitThreads(JNIEnv *env, jclass cls, jint limit)
+{
+    threadLimit = limit > 0 ? (unsigned int) limit : 0;
+}
+
 static const JNINativeMethod methods[] = {
     { "scryptN", "([B[BIIII)[B", (void *) scryptN }
 };
 
+static const JNINativeMethod walletMethods[] = {
+    { "releaseScratch", "()V", (void *) releaseScratch },
+    { "limitThreadsNative", "(I)V", (void *) limitThreads }
+};
+
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     JNIEnv *env;
 
@@ -65,5 +109,12 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     jclass cls = (*env)->FindClass(env, "com/lambdaworks/crypto/SCrypt");
     int r = (*env)->RegisterNatives(env, cls, methods, 1);
 
+    // optional, only present in the wallet app
+    jclass walletCls = (*env)->FindClass(env, "de/schildbach/wallet/util/NativeScrypt");
+    if (walletCls != NULL)
+        (*env)->RegisterNatives(env, walletCls, walletMethods, sizeof(walletMethods) / sizeof(walletMethods[0]));
+    else
+        (*env)->ExceptionClear(env);
+
     return (r == JNI_OK) ? JNI_VERSION_1_6 : -1;
 }
@@ -0,0 +1,200 @@
+// Copyright the original author or authors.
+
+/*
+ * Host test and benchmark for the scrypt implementations compiled into this
+ * build. Every implementation is checked against the test vectors of RFC 7914
+ * section 12, both sequentially and with the lanes spread across threads,
+ * then timed.
+ *
+ * Usage: scrypt_test [-l] [-b seconds]
+ *   -l  also run the 1 GiB test vector (N = 2^20)
+ *   -b  benchmark each implementation for about the given number of seconds
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "crypto_scrypt.h"
+#include "crypto_scrypt_parallel.h"
+#include "crypto_scrypt_smix.h"
+
+struct vector {
+	const char * passwd;
+	const char * salt;
+	uint64_t N;
+	uint32_t r;
+	uint32_t p;
+	int large;
+	const char * dk;
+};
+
+static const struct vector vectors[] = {
+	{ "", "", 16, 1, 1, 0,
+	    "77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+	    "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906" },
+	{ "password", "NaCl", 1024, 8, 16, 0,
+	    "fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+	    "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640" },
+	{ "pleaseletmein", "SodiumChloride", 16384, 8, 1, 0,
+	    "7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+	    "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887" },
+	{ "pleaseletmein", "SodiumChloride", 1048576, 8, 1, 1,
+	    "2101cb9b6a511aaeaddbbe09cf70f881ec568d574a2ffd4dabe5ee9820adaa47"
+	    "8e56fd8f4ba5d09ffa1c6d927c40f4c337304049e8a952fbcbf45c6fa77a41a4" },
+	{ NULL, NULL, 0, 0, 0, 0, NULL }
+};
+
+static void
+tohex(const uint8_t * buf, size_t len, char * hex)
+{
+	static const char digits[] = "0123456789abcdef";
+	size_t i;
+
+	for (i = 0; i < len; i++) {
+		hex[i * 2] = digits[buf[i] >> 4];
+		hex[i * 2 + 1] = digits[buf[i] & 0x0f];
+	}
+	hex[len * 2] = '\0';
+}
+
+static double
+now(void)
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (ts.tv_sec + ts.tv_nsec / 1e9);
+}
+
+static int
+derive(const struct vector * v, unsigned int threads, uint8_t * dk,
+    size_t dklen)
+{
+
+	if (threads == 0)
+		return (crypto_scrypt((const uint8_t *)v->passwd,
+		    strlen(v->passwd), (const uint8_t *)v->salt, strlen(v->salt),
+		    v->N, v->r, v->p, dk, dklen));
+	return (crypto_scrypt_parallel((const uint8_t *)v->passwd,
+	    strlen(v->passwd), (const uint8_t *)v->salt, strlen(v->salt),
+	    v->N, v->r, v->p, dk, dklen, threads));
+}
+
+/*
+ * threads == 0 means plain crypto_scrypt.
+ */
+static int
+check(const struct crypto_scrypt_smix_impl * impl, unsigned int threads,
+    int large)
+{
+	const struct vector * v;
+	uint8_t dk[64];
+	char hex[129];
+	int failures = 0;
+
+	for (v = vectors; v->passwd != NULL; v++) {
+		if (v->large && !large)
+			continue;
+		if (derive(v, threads, dk, sizeof(dk))) {
+			perror("crypto_scrypt");
+			return (1);
+		}
+		tohex(dk, sizeof(dk), hex);
+		if (strcmp(hex, v->dk) != 0) {
+			printf("%-6s FAIL N=%llu r=%u p=%u threads=%u\n"
+			    "  expected %s\n  actual   %s\n", impl->name,
+			    (unsigned long long)v->N, v->r, v->p, threads,
+			    v->dk, hex);
+			failures++;
+		} else {
+			printf("%-6s ok   N=%llu r=%u p=%u threads=%u\n",
+			    impl->name, (unsigned long long)v->N, v->r, v->p,
+			    threads);
+		}
+	}
+	return (failures);
+}
+
+/*
+ * SMix reads and writes every 128r byte block of V once, then does the same
+ * for N pseudo-randomly chosen blocks, so each derivation moves 256rN bytes
+ * per lane. That's what the MB/s figure counts.
+ */
+static void
+bench(const struct crypto_scrypt_smix_impl * impl, uint32_t p,
+    unsigned int threads, double seconds)
+{
+	const struct vector v = { "password", "salt", 16384, 8, p, 0, NULL };
+	uint8_t dk[32];
+	double start, elapsed;
+	unsigned int rounds = 0;
+
+	start = now();
+	do {
+		if (derive(&v, threads, dk, sizeof(dk))) {
+			perror("crypto_scrypt");
+			return;
+		}
+		rounds++;
+		elapsed = now() - start;
+	} while (elapsed < seconds);
+
+	printf("%-6s %.1f ms per derivation (N=%llu r=%u p=%u threads=%u), "
+	    "%.1f MB/s\n", impl->name, elapsed * 1000 / rounds,
+	    (unsigned long long)v.N, v.r, v.p, threads,
+	    256.0 * v.r * v.N * v.p * rounds / elapsed / 1e6);
+}
+
+int
+main(int argc, char * argv[])
+{
+	const struct crypto_scrypt_smix_impl * impl;
+	double seconds = 0;
+	int large = 0;
+	int failures = 0;
+	int ch;
+
+	while ((ch = getopt(argc, argv, "lb:")) != -1) {
+		switch (ch) {
+		case 'l':
+			large = 1;
+			break;
+		case 'b':
+			seconds = atof(optarg);
+			break;
+		default:
+			fprintf(stderr, "usage: %s [-l] [-b seconds]\n", argv[0]);
+			return (2);
+		}
+	}
+
+	for (impl = crypto_scrypt_smix_impls; impl->name != NULL; impl++) {
+		if (crypto_scrypt_smix_select(impl->name) == NULL) {
+			printf("%-6s not supported by this CPU\n", impl->name);
+			continue;
+		}
+		failures += check(impl, 0, large);
+		failures += check(impl, 1, large);
+		failures += check(impl, 4, large);
+	}
+
+	if (seconds > 0) {
+		for (impl = crypto_scrypt_smix_impls; impl->name != NULL;
+		    impl++) {
+			if (crypto_scrypt_smix_select(impl->name) == NULL)
+				continue;
+			bench(impl, 1, 0, seconds);
+			bench(impl, 4, 0, seconds);
+			bench(impl, 4, 4, seconds);
+		}
+	}
+
+	crypto_scrypt_release_scratch();
+	impl = crypto_scrypt_smix_select(NULL);
+	printf("selected by default: %s\n", impl->name);
+
+	return (failures ? 1 : 0);
+}
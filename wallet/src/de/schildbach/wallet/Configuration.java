@@ -17,6 +17,8 @@
 
 package de.schildbach.wallet;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.utils.MonetaryFormat;
@@ -26,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Strings;
 
 import de.schildbach.wallet.data.ExchangeRate;
+import de.schildbach.wallet.util.ScryptCalibration;
 import de.schildbach.wallet.R;
 
 import android.content.SharedPreferences;
@@ -48,6 +51,7 @@ public class Configuration {
     public static final String PREFS_KEY_OWN_NAME = "own_name";
     public static final String PREFS_KEY_SEND_COINS_AUTOCLOSE = "send_coins_autoclose";
     public static final String PREFS_KEY_CONNECTIVITY_NOTIFICATION = "connectivity_notification";
+    public static final String PREFS_KEY_CACHE_SPENDING_KEY = "cache_spending_key";
     public static final String PREFS_KEY_EXCHANGE_CURRENCY = "exchange_currency";
     public static final String PREFS_KEY_TRUSTED_PEER = "trusted_peer";
     public static final String PREFS_KEY_TRUSTED_PEER_ONLY = "trusted_peer_only";
@@ -59,6 +63,11 @@ public class Configuration {
     private static final String PREFS_KEY_LAST_VERSION = "last_version";
     private static final String PREFS_KEY_LAST_USED = "last_used";
     private static final String PREFS_KEY_BEST_CHAIN_HEIGHT_EVER = "best_chain_height_ever";
+    private static final String PREFS_KEY_RESCAN_STARTED_AT = "rescan_started_at";
+    private static final String PREFS_KEY_SCRYPT_N = "scrypt_n";
+    private static final String PREFS_KEY_SCRYPT_R = "scrypt_r";
+    private static final String PREFS_KEY_SCRYPT_P = "scrypt_p";
+    private static final String PREFS_KEY_SCRYPT_CALIBRATED_DEVICE = "scrypt_calibrated_device";
     private static final String PREFS_KEY_CACHED_EXCHANGE_CURRENCY = "cached_exchange_currency";
     private static final String PREFS_KEY_CACHED_EXCHANGE_RATE_COIN = "cached_exchange_rate_coin";
     private static final String PREFS_KEY_CACHED_EXCHANGE_RATE_FIAT = "cached_exchange_rate_fiat";
@@ -137,6 +146,10 @@ public class Configuration {
         return prefs.getBoolean(PREFS_KEY_SEND_COINS_AUTOCLOSE, true);
     }
 
+    public boolean getCacheSpendingKey() {
+        return prefs.getBoolean(PREFS_KEY_CACHE_SPENDING_KEY, false);
+    }
+
     public boolean getConnectivityNotificationEnabled() {
         return prefs.getBoolean(PREFS_KEY_CONNECTIVITY_NOTIFICATION, false);
     }
@@ -235,6 +248,37 @@ public class Configuration {
             prefs.edit().putInt(PREFS_KEY_BEST_CHAIN_HEIGHT_EVER, bestChainHeightEver).apply();
     }
 
+    public long getRescanStartedAt() {
+        return prefs.getLong(PREFS_KEY_RESCAN_STARTED_AT, 0);
+    }
+
+    public void setRescanStartedAt(final long rescanStartedAt) {
+        if (rescanStartedAt > 0)
+            prefs.edit().putLong(PREFS_KEY_RESCAN_STARTED_AT, rescanStartedAt).apply();
+        else
+            prefs.edit().remove(PREFS_KEY_RESCAN_STARTED_AT).apply();
+    }
+
+    /**
+     * Returns the scrypt parameters calibrated on the given device, or {@code null} if there are none, e.g. because
+     * preferences were restored onto a different device.
+     */
+    public @Nullable ScryptCalibration.Params getScryptCalibration(final String device) {
+        if (!device.equals(prefs.getString(PREFS_KEY_SCRYPT_CALIBRATED_DEVICE, null)))
+            return null;
+        return new ScryptCalibration.Params(prefs.getInt(PREFS_KEY_SCRYPT_N, 0), prefs.getInt(PREFS_KEY_SCRYPT_R, 0),
+                prefs.getInt(PREFS_KEY_SCRYPT_P, 0));
+    }
+
+    public void setScryptCalibration(final ScryptCalibration.Params params, final String device) {
+        final Editor edit = prefs.edit();
+        edit.putInt(PREFS_KEY_SCRYPT_N, params.n);
+        edit.putInt(PREFS_KEY_SCRYPT_R, params.r);
+        edit.putInt(PREFS_KEY_SCRYPT_P, params.p);
+        edit.putString(PREFS_KEY_SCRYPT_CALIBRATED_DEVICE, device);
+        edit.apply();
+    }
+
     public ExchangeRate getCachedExchangeRate() {
         if (prefs.contains(PREFS_KEY_CACHED_EXCHANGE_CURRENCY) && prefs.contains(PREFS_KEY_CACHED_EXCHANGE_RATE_COIN)
                 && prefs.contains(PREFS_KEY_CACHED_EXCHANGE_RATE_FIAT)) {
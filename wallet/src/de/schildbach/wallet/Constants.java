@@ -193,10 +193,19 @@ public final class Constants {
     public static final String NOTIFICATION_CHANNEL_ID_ONGOING = "ongoing";
     public static final String NOTIFICATION_CHANNEL_ID_IMPORTANT = "important";
 
-    /** Desired number of scrypt iterations for deriving the spending PIN */
+    /** Number of scrypt iterations for deriving the spending PIN, until calibrated to the device */
     public static final int SCRYPT_ITERATIONS_TARGET = 65536;
     public static final int SCRYPT_ITERATIONS_TARGET_LOWRAM = 32768;
 
+    /** Desired time it takes to derive the key from the spending PIN, used for calibrating scrypt */
+    public static final long SCRYPT_CALIBRATION_TARGET_MS = 1000;
+
+    /** How long the key derived from the spending PIN is kept, if the user opted in */
+    public static final long SPENDING_KEY_CACHE_TIMEOUT_MS = 2 * DateUtils.MINUTE_IN_MILLIS;
+
+    /** Memory used for keeping recently rendered QR codes */
+    public static final int QR_BITMAP_CACHE_MAX_BYTES = 512 * 1024;
+
     /** Default ports for Electrum servers */
     public static final int ELECTRUM_SERVER_DEFAULT_PORT_TCP = NETWORK_PARAMETERS.getId()
             .equals(NetworkParameters.ID_MAINNET) ? 50001 : 51001;
@@ -26,6 +26,8 @@ import java.io.OutputStream;
 import java.time.Clock;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.core.VersionMessage;
@@ -43,10 +45,17 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 
+import de.schildbach.wallet.data.WalletObserver;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.BlockchainStateBus;
+import de.schildbach.wallet.ui.send.SpendingKeyCache;
+import de.schildbach.wallet.util.BackupFileIndex;
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.CrashReporter;
+import de.schildbach.wallet.util.NativeScrypt;
+import de.schildbach.wallet.util.QrBitmapCache;
+import de.schildbach.wallet.util.ScryptCalibration;
 import de.schildbach.wallet.BuildConfig;
 import de.schildbach.wallet.R;
 
@@ -57,14 +66,20 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
@@ -91,7 +106,12 @@ public class WalletApplication extends Application {
 
     private File walletFile;
     private Wallet wallet;
+    private WalletObserver walletObserver;
     private PackageInfo packageInfo;
+    private final BlockchainStateBus blockchainStateBus = new BlockchainStateBus();
+    private final BackupFileIndex backupFileIndex = new BackupFileIndex(Constants.NETWORK_PARAMETERS);
+    private final QrBitmapCache qrBitmapCache = new QrBitmapCache(Constants.QR_BITMAP_CACHE_MAX_BYTES);
+    private final SpendingKeyCache spendingKeyCache = new SpendingKeyCache(Constants.SPENDING_KEY_CACHE_TIMEOUT_MS);
 
     public static final String ACTION_WALLET_REFERENCE_CHANGED = WalletApplication.class.getPackage().getName()
             + ".wallet_reference_changed";
@@ -146,6 +166,7 @@ public class WalletApplication extends Application {
         walletFile = getFileStreamPath(Constants.Files.WALLET_FILENAME_PROTOBUF);
 
         loadWalletFromProtobuf();
+        walletObserver = new WalletObserver(wallet);
 
         if (config.versionCodeCrossed(packageInfo.versionCode, VERSION_CODE_SHOW_BACKUP_REMINDER)
                 && !wallet.getImportedKeys().isEmpty()) {
@@ -161,6 +182,22 @@ public class WalletApplication extends Application {
         cleanupFiles();
 
         initNotificationManager();
+
+        maybeCalibrateScrypt();
+
+        registerReceiver(screenOffReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+        config.registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+
+        spendingKeyCache.clear();
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            NativeScrypt.trimMemory();
+            qrBitmapCache.evictAll();
+        }
     }
 
     private void afterLoadWallet() {
@@ -255,6 +292,22 @@ public class WalletApplication extends Application {
         return wallet;
     }
 
+    public WalletObserver getWalletObserver() {
+        return walletObserver;
+    }
+
+    public BlockchainStateBus getBlockchainStateBus() {
+        return blockchainStateBus;
+    }
+
+    public BackupFileIndex getBackupFileIndex() {
+        return backupFileIndex;
+    }
+
+    public QrBitmapCache getQrBitmapCache() {
+        return qrBitmapCache;
+    }
+
     private void loadWalletFromProtobuf() {
         if (walletFile.exists()) {
             FileInputStream walletStream = null;
@@ -436,7 +489,7 @@ public class WalletApplication extends Application {
     }
 
     public void resetBlockchain() {
-        // implicitly stops blockchain service
+        // implicitly stops blockchain service; on shutdown it rewinds the stored headers (or falls back to checkpoints)
         startService(blockchainServiceResetBlockchainIntent);
     }
 
@@ -445,6 +498,7 @@ public class WalletApplication extends Application {
         wallet.shutdownAutosaveAndWait();
 
         wallet = newWallet;
+        walletObserver.setWallet(newWallet);
         config.maybeIncrementBestChainHeightEver(newWallet.getLastBlockSeenHeight());
         afterLoadWallet();
 
@@ -510,8 +564,73 @@ public class WalletApplication extends Application {
         return isLowRamDevice() ? 4 : 6;
     }
 
-    public int scryptIterationsTarget() {
-        return isLowRamDevice() ? Constants.SCRYPT_ITERATIONS_TARGET_LOWRAM : Constants.SCRYPT_ITERATIONS_TARGET;
+    /**
+     * Upper bound of scratch memory for scrypt, in bytes.
+     */
+    public long maxScryptMemory() {
+        return activityManager.getMemoryClass() * 1024L * 1024L / 2;
+    }
+
+    /**
+     * Returns the scrypt parameters new keys should be derived with. Until scrypt has been calibrated on this device,
+     * a guess based on the available memory is returned.
+     */
+    public ScryptCalibration.Params scryptTarget() {
+        final ScryptCalibration.Params calibrated = config.getScryptCalibration(Build.FINGERPRINT);
+        if (calibrated != null)
+            return calibrated;
+        return new ScryptCalibration.Params(
+                isLowRamDevice() ? Constants.SCRYPT_ITERATIONS_TARGET_LOWRAM : Constants.SCRYPT_ITERATIONS_TARGET,
+                ScryptCalibration.R, 1);
+    }
+
+    /**
+     * Returns the cache for the key derived from the spending PIN, or null if the user didn't opt in.
+     */
+    public @Nullable SpendingKeyCache spendingKeyCache() {
+        if (config.getCacheSpendingKey())
+            return spendingKeyCache;
+        spendingKeyCache.clear();
+        return null;
+    }
+
+    private final BroadcastReceiver screenOffReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+            spendingKeyCache.clear();
+        }
+    };
+
+    // must be a field, as shared preferences only keep weak references to their listeners
+    private final OnSharedPreferenceChangeListener preferenceChangeListener = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, final String key) {
+            if (Configuration.PREFS_KEY_CACHE_SPENDING_KEY.equals(key) && !config.getCacheSpendingKey())
+                spendingKeyCache.clear();
+        }
+    };
+
+    private void maybeCalibrateScrypt() {
+        if (config.getScryptCalibration(Build.FINGERPRINT) != null)
+            return;
+
+        final long maxMemory = maxScryptMemory();
+        // No parallel lanes even if native scrypt could run them, as the wallet would be slow to unlock after
+        // restoring it on a device that can't.
+        final int parallelLanes = 1;
+        final HandlerThread calibrationThread = new HandlerThread("scryptCalibrationThread");
+        calibrationThread.start();
+        // wait for startup to settle, as it would skew the benchmark
+        new Handler(calibrationThread.getLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final ScryptCalibration.Params params = ScryptCalibration.calibrate(
+                        ScryptCalibration.SCRYPT_BENCHMARK, Constants.SCRYPT_CALIBRATION_TARGET_MS, maxMemory,
+                        parallelLanes);
+                config.setScryptCalibration(params, Build.FINGERPRINT);
+                calibrationThread.quit();
+            }
+        }, DateUtils.SECOND_IN_MILLIS * 30);
     }
 
     public static void scheduleStartBlockchainService(final Context context) {
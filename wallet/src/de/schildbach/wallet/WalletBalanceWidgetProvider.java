@@ -19,16 +19,18 @@ package de.schildbach.wallet;
 
 import java.lang.reflect.Method;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.schildbach.wallet.data.ExchangeRate;
 import de.schildbach.wallet.data.ExchangeRatesProvider;
+import de.schildbach.wallet.data.WalletObserver;
 import de.schildbach.wallet.ui.RequestCoinsActivity;
 import de.schildbach.wallet.ui.SendCoinsQrActivity;
 import de.schildbach.wallet.ui.WalletActivity;
@@ -60,7 +62,7 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(final Context context, final AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
         final WalletApplication application = (WalletApplication) context.getApplicationContext();
-        final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+        final Coin balance = application.getWalletObserver().getBalance(BalanceType.ESTIMATED);
 
         updateWidgets(context, appWidgetManager, appWidgetIds, balance);
     }
@@ -73,12 +75,20 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
                     newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH));
 
         final WalletApplication application = (WalletApplication) context.getApplicationContext();
-        final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+        final Coin balance = application.getWalletObserver().getBalance(BalanceType.ESTIMATED);
 
         updateWidget(context, appWidgetManager, appWidgetId, newOptions, balance);
     }
 
-    public static void updateWidgets(final Context context, final Wallet wallet) {
+    public static void updateWidgets(final Context context) {
+        updateWidgets(context, (Coin) null);
+    }
+
+    /**
+     * @param knownBalance
+     *            estimated balance, or {@code null} to read it from the cache of {@link WalletObserver}
+     */
+    public static void updateWidgets(final Context context, @Nullable final Coin knownBalance) {
         final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
         final ComponentName providerName = new ComponentName(context, WalletBalanceWidgetProvider.class);
 
@@ -86,7 +96,9 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
             final int[] appWidgetIds = appWidgetManager.getAppWidgetIds(providerName);
 
             if (appWidgetIds.length > 0) {
-                final Coin balance = wallet.getBalance(BalanceType.ESTIMATED);
+                final Coin balance = knownBalance != null ? knownBalance
+                        : ((WalletApplication) context.getApplicationContext()).getWalletObserver()
+                                .getBalance(BalanceType.ESTIMATED);
                 WalletBalanceWidgetProvider.updateWidgets(context, appWidgetManager, appWidgetIds, balance);
             }
         } catch (final RuntimeException x) // system server dead?
@@ -30,6 +30,7 @@ import org.slf4j.LoggerFactory;
 import com.google.zxing.PlanarYUVLuminanceSource;
 
 import android.annotation.SuppressLint;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.hardware.Camera;
@@ -158,12 +159,14 @@ public final class CameraManager {
     public void close() {
         if (camera != null) {
             try {
+                camera.setPreviewCallbackWithBuffer(null);
                 camera.stopPreview();
             } catch (final RuntimeException x) {
                 log.warn("something went wrong while stopping camera preview", x);
             }
 
             camera.release();
+            camera = null;
         }
     }
 
@@ -250,22 +253,49 @@ public final class CameraManager {
         camera.setParameters(parameters);
     }
 
-    public void requestPreviewFrame(final PreviewCallback callback) {
+    /**
+     * Delivers preview frames to the callback for as long as the preview runs, in buffers from a pool of the given
+     * size. The camera skips frames while the pool is empty, so each buffer must be handed back via
+     * {@link #returnBuffer(byte[])} once it is done with.
+     */
+    public void startPreviewFrames(final PreviewCallback callback, final int numBuffers) {
         try {
-            camera.setOneShotPreviewCallback(callback);
+            final Camera.Parameters parameters = camera.getParameters();
+            final int bufferSize = cameraResolution.width * cameraResolution.height
+                    * ImageFormat.getBitsPerPixel(parameters.getPreviewFormat()) / 8;
+            camera.setPreviewCallbackWithBuffer(callback);
+            for (int i = 0; i < numBuffers; i++)
+                camera.addCallbackBuffer(new byte[bufferSize]);
         } catch (final RuntimeException x) {
-            log.warn("problem requesting preview frame, callback won't be called", x);
+            log.warn("problem requesting preview frames, callback won't be called", x);
         }
     }
 
+    /**
+     * Hands a buffer back to the pool. Must be called on the thread the camera was opened on. Does nothing if the
+     * camera has been closed in the meantime.
+     */
+    public void returnBuffer(final byte[] buffer) {
+        if (camera != null)
+            camera.addCallbackBuffer(buffer);
+    }
+
     public PlanarYUVLuminanceSource buildLuminanceSource(final byte[] data) {
         return new PlanarYUVLuminanceSource(data, cameraResolution.width, cameraResolution.height,
                 (int) framePreview.left, (int) framePreview.top, (int) framePreview.width(),
                 (int) framePreview.height(), false);
     }
 
+    /**
+     * Like {@link #buildLuminanceSource(byte[])}, but covering the whole preview rather than just the framing rect.
+     */
+    public PlanarYUVLuminanceSource buildFullLuminanceSource(final byte[] data) {
+        return new PlanarYUVLuminanceSource(data, cameraResolution.width, cameraResolution.height, 0, 0,
+                cameraResolution.width, cameraResolution.height, false);
+    }
+
     public void setTorch(final boolean enabled) {
-        if (enabled != getTorchEnabled(camera))
+        if (camera != null && enabled != getTorchEnabled(camera))
             setTorchEnabled(camera, enabled);
     }
 
@@ -17,7 +17,12 @@
 
 package de.schildbach.wallet.data;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Joiner;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -62,6 +67,31 @@ public class AddressBookProvider extends ContentProvider {
         return label;
     }
 
+    /**
+     * Resolves the labels of many addresses with a single query. Addresses without a label are missing from the
+     * returned map.
+     */
+    public static Map<String, String> resolveLabels(final Context context, final Collection<String> addresses) {
+        final Map<String, String> labels = new HashMap<String, String>();
+        if (addresses.isEmpty())
+            return labels;
+
+        final Uri uri = contentUri(context.getPackageName());
+        final Cursor cursor = context.getContentResolver().query(uri, null, SELECTION_IN,
+                new String[] { Joiner.on(',').join(addresses) }, null);
+
+        if (cursor != null) {
+            final int addressColumn = cursor.getColumnIndexOrThrow(AddressBookProvider.KEY_ADDRESS);
+            final int labelColumn = cursor.getColumnIndexOrThrow(AddressBookProvider.KEY_LABEL);
+            while (cursor.moveToNext())
+                labels.put(cursor.getString(addressColumn), cursor.getString(labelColumn));
+
+            cursor.close();
+        }
+
+        return labels;
+    }
+
     private Helper helper;
 
     @Override
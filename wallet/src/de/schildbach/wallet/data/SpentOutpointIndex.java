@@ -0,0 +1,144 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Index from outpoints to the wallet transactions spending them, so that checking whether an output has already been
+ * spent by the wallet doesn't need to walk the whole transaction history.
+ *
+ * Transactions are added as the wallet learns about them. After events that can remove transactions, like a reorg,
+ * the index is invalidated and rebuilt on the next lookup.
+ *
+ * Wallet listeners add to the index while holding the wallet lock, so the index must never wait for the wallet lock
+ * while holding its own. That's why a rebuild fetches the transactions before locking the index.
+ *
+ * @author Andreas Schildbach
+ */
+public final class SpentOutpointIndex {
+    private final Map<Outpoint, Sha256Hash> spentBy = new HashMap<Outpoint, Sha256Hash>();
+    private boolean valid = false;
+    /** counts changes, including those ignored while invalid */
+    private long version = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(SpentOutpointIndex.class);
+
+    private static final class Outpoint {
+        private final Sha256Hash hash;
+        private final long index;
+
+        public Outpoint(final Sha256Hash hash, final long index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            final Outpoint other = (Outpoint) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode() * 31 + (int) index;
+        }
+    }
+
+    public synchronized void add(final Transaction tx) {
+        version++;
+        if (!valid)
+            return;
+        final Sha256Hash txHash = tx.getHash();
+        for (final TransactionInput input : tx.getInputs()) {
+            final TransactionOutPoint outpoint = input.getOutpoint();
+            spentBy.put(new Outpoint(outpoint.getHash(), outpoint.getIndex()), txHash);
+        }
+    }
+
+    public synchronized void invalidate() {
+        version++;
+        valid = false;
+        spentBy.clear();
+    }
+
+    /**
+     * Returns the hash of the wallet transaction spending the given outpoint, or {@code null} if there is none. Dead
+     * transactions don't count.
+     */
+    @Nullable
+    public Sha256Hash getSpentBy(final Wallet wallet, final Sha256Hash hash, final long index) {
+        final Outpoint outpoint = new Outpoint(hash, index);
+        while (true) {
+            final long expectedVersion;
+            synchronized (this) {
+                if (valid)
+                    return spentBy.get(outpoint);
+                expectedVersion = version;
+            }
+
+            // takes the wallet lock
+            final Set<Transaction> transactions = wallet.getTransactions(false);
+
+            synchronized (this) {
+                // retry if the wallet changed in the meantime, as the fetched transactions may miss that change
+                if (version == expectedVersion) {
+                    rebuild(transactions);
+                    return spentBy.get(outpoint);
+                }
+            }
+        }
+    }
+
+    public boolean isSpent(final Wallet wallet, final Sha256Hash hash, final long index) {
+        return getSpentBy(wallet, hash, index) != null;
+    }
+
+    private void rebuild(final Set<Transaction> transactions) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        spentBy.clear();
+        valid = true;
+        for (final Transaction tx : transactions)
+            add(tx);
+        watch.stop();
+        log.info("indexed {} spent outpoints, took {}", spentBy.size(), watch);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[" + (valid ? spentBy.size() + " outpoints" : "invalid") + "]";
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Single observer of the wallet. On each (throttled) change, one {@link WalletSnapshot} is taken on a background
+ * thread and fanned out to all listeners, so that screens don't each register with the wallet and re-query it.
+ *
+ * The observer stays attached to the wallet for its whole lifetime, so that it can keep track of what changed and
+ * maintain the {@link SpentOutpointIndex} (see {@link #isSpentByWallet(Sha256Hash, long)}). Snapshots however are only
+ * taken while there are listeners. The latest snapshot doubles as a balance cache (see
+ * {@link #getBalance(BalanceType)}) for as long as it is current; otherwise the wallet is queried directly.
+ *
+ * Must be created and used on the UI thread, except for {@link #getBalance(BalanceType)} and
+ * {@link #isSpentByWallet(Sha256Hash, long)}.
+ *
+ * @author Andreas Schildbach
+ */
+public class WalletObserver {
+    public interface Listener {
+        /** will be called back on UI thread */
+        void onWalletChanged(WalletSnapshot snapshot);
+    }
+
+    private volatile Wallet wallet;
+    private final Handler handler = new Handler();
+    private final Handler backgroundHandler;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile boolean attached = false;
+
+    private final AtomicLong transactionsVersion = new AtomicLong();
+    private final AtomicLong confidenceVersion = new AtomicLong();
+    private final AtomicLong keysVersion = new AtomicLong();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final SpentOutpointIndex spentOutpoints = new SpentOutpointIndex();
+    @Nullable
+    private volatile WalletSnapshot snapshot = null;
+
+    private final AtomicLong numSnapshots = new AtomicLong();
+    private final AtomicLong numBalanceHits = new AtomicLong();
+    private final AtomicLong numBalanceMisses = new AtomicLong();
+
+    private static final Logger log = LoggerFactory.getLogger(WalletObserver.class);
+
+    public WalletObserver(final Wallet wallet) {
+        this.wallet = wallet;
+
+        final HandlerThread backgroundThread = new HandlerThread("walletObserverThread",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+
+        attach();
+    }
+
+    /**
+     * Switches to a new wallet instance, e.g. after a restore. Listeners will receive a snapshot of the new wallet.
+     */
+    public void setWallet(final Wallet wallet) {
+        detach();
+        this.wallet = wallet;
+        transactionsVersion.incrementAndGet();
+        confidenceVersion.incrementAndGet();
+        keysVersion.incrementAndGet();
+        attach();
+    }
+
+    /**
+     * Adds a listener. If a snapshot is available, it is delivered immediately. If there is none or it is outdated, a
+     * new one is delivered as soon as it is ready.
+     */
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+
+        final WalletSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            listener.onWalletChanged(snapshot);
+        if (snapshot == null || !isCurrent(snapshot) || snapshot.keysVersion != keysVersion.get())
+            requestSnapshot();
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Nullable
+    public WalletSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the balance of the given type. The cached value from the latest snapshot is used if no relevant wallet
+     * event happened since it was taken; otherwise, e.g. because there were no listeners to take snapshots for, the
+     * wallet is queried. Can be called from any thread.
+     */
+    public Coin getBalance(final BalanceType balanceType) {
+        final WalletSnapshot snapshot = this.snapshot;
+        if (snapshot != null && isCurrent(snapshot)) {
+            numBalanceHits.incrementAndGet();
+            return snapshot.getBalance(balanceType);
+        } else {
+            numBalanceMisses.incrementAndGet();
+            return wallet.getBalance(balanceType);
+        }
+    }
+
+    /**
+     * Returns whether the given outpoint is spent by any transaction of the wallet, including pending ones but not
+     * dead ones. Can be called from any thread.
+     */
+    public boolean isSpentByWallet(final Sha256Hash hash, final long index) {
+        return spentOutpoints.isSpent(wallet, hash, index);
+    }
+
+    private boolean isCurrent(final WalletSnapshot snapshot) {
+        return attached && snapshot.transactionsVersion == transactionsVersion.get()
+                && snapshot.confidenceVersion == confidenceVersion.get();
+    }
+
+    private void attach() {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletChangeListener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletChangeListener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletChangeListener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, unclassifiedChangeListener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, walletChangeListener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, walletChangeListener);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, keyChainListener);
+        spentOutpoints.invalidate();
+        attached = true;
+
+        if (!listeners.isEmpty())
+            requestSnapshot();
+    }
+
+    private void detach() {
+        wallet.removeKeyChainEventListener(keyChainListener);
+        wallet.removeTransactionConfidenceEventListener(walletChangeListener);
+        wallet.removeChangeEventListener(walletChangeListener);
+        wallet.removeChangeEventListener(unclassifiedChangeListener);
+        wallet.removeReorganizeEventListener(walletChangeListener);
+        wallet.removeCoinsSentEventListener(walletChangeListener);
+        wallet.removeCoinsReceivedEventListener(walletChangeListener);
+        walletChangeListener.removeCallbacks();
+        attached = false;
+
+        snapshot = null;
+    }
+
+    private void requestSnapshot() {
+        if (!snapshotPending.getAndSet(true))
+            backgroundHandler.post(takeSnapshotRunnable);
+    }
+
+    private final Runnable takeSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+
+            snapshotPending.set(false);
+
+            final Wallet wallet = WalletObserver.this.wallet;
+            final Stopwatch watch = Stopwatch.createStarted();
+            final WalletSnapshot snapshot = WalletSnapshot.take(wallet, transactionsVersion.get(),
+                    confidenceVersion.get(), keysVersion.get());
+            watch.stop();
+            numSnapshots.incrementAndGet();
+            log.debug("took {}, {}", snapshot, watch);
+
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!attached || wallet != WalletObserver.this.wallet)
+                        return;
+
+                    WalletObserver.this.snapshot = snapshot;
+                    for (final Listener listener : listeners)
+                        listener.onWalletChanged(snapshot);
+                }
+            });
+        }
+    };
+
+    /**
+     * Changes without a more specific event, e.g. {@link Wallet#reset()}, could have changed anything, so the cached
+     * balance must not be trusted any longer.
+     */
+    private final WalletChangeEventListener unclassifiedChangeListener = new WalletChangeEventListener() {
+        @Override
+        public void onWalletChanged(final Wallet wallet) {
+            transactionsVersion.incrementAndGet();
+        }
+    };
+
+    private final ThrottlingWalletChangeListener walletChangeListener = new ThrottlingWalletChangeListener() {
+        @Override
+        public void onThrottledWalletChanged() {
+            if (!listeners.isEmpty())
+                requestSnapshot();
+        }
+
+        @Override
+        public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            transactionsVersion.incrementAndGet();
+            spentOutpoints.add(tx);
+            super.onCoinsReceived(wallet, tx, prevBalance, newBalance);
+        }
+
+        @Override
+        public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            transactionsVersion.incrementAndGet();
+            spentOutpoints.add(tx);
+            super.onCoinsSent(wallet, tx, prevBalance, newBalance);
+        }
+
+        @Override
+        public void onReorganize(final Wallet wallet) {
+            transactionsVersion.incrementAndGet();
+            spentOutpoints.invalidate();
+            super.onReorganize(wallet);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+            confidenceVersion.incrementAndGet();
+            if (tx.getConfidence().getConfidenceType() == ConfidenceType.DEAD)
+                spentOutpoints.invalidate(); // its inputs are free again
+            super.onTransactionConfidenceChanged(wallet, tx);
+        }
+    };
+
+    private final KeyChainEventListener keyChainListener = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(final List<ECKey> keys) {
+            keysVersion.incrementAndGet();
+
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (attached && !listeners.isEmpty())
+                        requestSnapshot();
+                }
+            });
+        }
+    };
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[listeners: " + listeners.size() + ", snapshots: " + numSnapshots.get()
+                + ", balance hits/misses: " + numBalanceHits.get() + "/" + numBalanceMisses.get() + ", "
+                + spentOutpoints + "]";
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelector;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * Immutable view of a wallet, taken once per change and shared by all subscribers of {@link WalletObserver}.
+ *
+ * @author Andreas Schildbach
+ */
+public final class WalletSnapshot {
+    private final Map<BalanceType, Coin> balances;
+    public final long transactionsVersion;
+    public final long confidenceVersion;
+    public final long keysVersion;
+    public final int numKeys;
+
+    private WalletSnapshot(final Map<BalanceType, Coin> balances, final long transactionsVersion,
+            final long confidenceVersion, final long keysVersion, final int numKeys) {
+        this.balances = balances;
+        this.transactionsVersion = transactionsVersion;
+        this.confidenceVersion = confidenceVersion;
+        this.keysVersion = keysVersion;
+        this.numKeys = numKeys;
+    }
+
+    public Coin getBalance(final BalanceType balanceType) {
+        return balances.get(balanceType);
+    }
+
+    /**
+     * Takes a snapshot of the given wallet. Balances are derived from a single spend candidate query, rather than
+     * querying the wallet once per {@link BalanceType}. The spendable candidates are filtered from the same result, so
+     * that all balances are consistent with each other.
+     */
+    public static WalletSnapshot take(final Wallet wallet, final long transactionsVersion,
+            final long confidenceVersion, final long keysVersion) {
+        final List<TransactionOutput> all = wallet.calculateAllSpendCandidates(false, false);
+        final List<TransactionOutput> spendable = new ArrayList<TransactionOutput>(all.size());
+        for (final TransactionOutput output : all)
+            if (wallet.canSignFor(output.getScriptPubKey()))
+                spendable.add(output);
+        final int numKeys = wallet.getKeyChainGroupSize();
+
+        final CoinSelector coinSelector = wallet.getCoinSelector();
+        final Map<BalanceType, Coin> balances = new EnumMap<BalanceType, Coin>(BalanceType.class);
+        balances.put(BalanceType.ESTIMATED, sum(all));
+        balances.put(BalanceType.ESTIMATED_SPENDABLE, sum(spendable));
+        balances.put(BalanceType.AVAILABLE, available(coinSelector, all));
+        balances.put(BalanceType.AVAILABLE_SPENDABLE, available(coinSelector, spendable));
+
+        return new WalletSnapshot(balances, transactionsVersion, confidenceVersion, keysVersion, numKeys);
+    }
+
+    private static Coin sum(final List<TransactionOutput> outputs) {
+        Coin value = Coin.ZERO;
+        for (final TransactionOutput output : outputs)
+            value = value.add(output.getValue());
+        return value;
+    }
+
+    private static Coin available(final CoinSelector coinSelector, final List<TransactionOutput> candidates) {
+        // same as Wallet.getBalance(): immature coinbases are never available
+        final List<TransactionOutput> mature = new ArrayList<TransactionOutput>(candidates.size());
+        for (final TransactionOutput output : candidates)
+            if (output.getParentTransaction().isMature())
+                mature.add(output);
+        return coinSelector.select(Constants.NETWORK_PARAMETERS.getMaxMoney(), mature).valueGathered;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + '[' + balances + ',' + transactionsVersion + '/' + confidenceVersion + '/'
+                + keysVersion + ',' + numKeys + " keys]";
+    }
+}
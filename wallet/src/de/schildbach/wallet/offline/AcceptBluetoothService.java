@@ -18,6 +18,9 @@
 package de.schildbach.wallet.offline;
 
 import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.VerificationException;
@@ -25,6 +28,8 @@ import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.Toast;
@@ -51,12 +56,19 @@ public final class AcceptBluetoothService extends Service {
     private WakeLock wakeLock;
     private AcceptBluetoothThread classicThread;
     private AcceptBluetoothThread paymentProtocolThread;
+    private ThreadPoolExecutor workers;
 
     private long serviceCreatedAt;
 
     private final Handler handler = new Handler();
 
     private static final long TIMEOUT_MS = 5 * DateUtils.MINUTE_IN_MILLIS;
+    /** connections served at the same time, across both protocols */
+    private static final int MAX_WORKERS = 4;
+    /** accepted connections waiting for a worker, beyond that they are rejected */
+    private static final int MAX_QUEUED_CONNECTIONS = 8;
+    /** how long connections in progress may take to finish once the service is stopping */
+    private static final long SHUTDOWN_GRACE_MS = 10 * DateUtils.SECOND_IN_MILLIS;
 
     private static final Logger log = LoggerFactory.getLogger(AcceptBluetoothService.class);
 
@@ -91,14 +103,19 @@ public final class AcceptBluetoothService extends Service {
 
         registerReceiver(bluetoothStateChangeReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
 
+        workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_CONNECTIONS),
+                new ThreadFactoryBuilder().setNameFormat("bluetooth-payment-%d").setDaemon(true).build());
+        workers.allowCoreThreadTimeOut(true);
+
         try {
-            classicThread = new AcceptBluetoothThread.ClassicBluetoothThread(bluetoothAdapter) {
+            classicThread = new AcceptBluetoothThread.ClassicBluetoothThread(bluetoothAdapter, workers) {
                 @Override
                 public boolean handleTx(final Transaction tx) {
                     return AcceptBluetoothService.this.handleTx(tx);
                 }
             };
-            paymentProtocolThread = new AcceptBluetoothThread.PaymentProtocolThread(bluetoothAdapter) {
+            paymentProtocolThread = new AcceptBluetoothThread.PaymentProtocolThread(bluetoothAdapter, workers) {
                 @Override
                 public boolean handleTx(final Transaction tx) {
                     return AcceptBluetoothService.this.handleTx(tx);
@@ -147,7 +164,7 @@ public final class AcceptBluetoothService extends Service {
 
         unregisterReceiver(bluetoothStateChangeReceiver);
 
-        wakeLock.release();
+        shutdownWorkers();
 
         handler.removeCallbacksAndMessages(null);
 
@@ -156,6 +173,36 @@ public final class AcceptBluetoothService extends Service {
         log.info("service was up for " + ((System.currentTimeMillis() - serviceCreatedAt) / 1000 / 60) + " minutes");
     }
 
+    /**
+     * Lets connections in progress finish, so that payers get their ack. Those that are still going after a grace
+     * period are aborted. The wake lock is held until then.
+     */
+    private void shutdownWorkers() {
+        workers.shutdown();
+
+        final AcceptBluetoothThread classicThread = this.classicThread;
+        final AcceptBluetoothThread paymentProtocolThread = this.paymentProtocolThread;
+        new Thread("bluetooth-shutdown") {
+            @Override
+            public void run() {
+                try {
+                    if (!workers.awaitTermination(SHUTDOWN_GRACE_MS, TimeUnit.MILLISECONDS)) {
+                        log.info("connections still in progress, aborting");
+                        if (classicThread != null)
+                            classicThread.closeConnections();
+                        if (paymentProtocolThread != null)
+                            paymentProtocolThread.closeConnections();
+                        workers.shutdownNow();
+                    }
+                } catch (final InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    wakeLock.release();
+                }
+            }
+        }.start();
+    }
+
     private final BroadcastReceiver bluetoothStateChangeReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(final Context context, final Intent intent) {
@@ -20,7 +20,18 @@ package de.schildbach.wallet.offline;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bitcoin.protocols.payments.Protos;
 import org.bitcoin.protocols.payments.Protos.PaymentACK;
@@ -30,174 +41,220 @@ import org.bitcoinj.protocols.payments.PaymentProtocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.util.Bluetooth;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
 
 /**
+ * Accepts connections and hands each one to a worker, so that a slow payer doesn't hold up the next one. Each
+ * connection is closed if it isn't done within {@link #CONNECTION_TIMEOUT_MS}.
+ *
  * @author Shahar Livne
  * @author Andreas Schildbach
  */
 public abstract class AcceptBluetoothThread extends Thread {
     protected final BluetoothServerSocket listeningSocket;
     protected final AtomicBoolean running = new AtomicBoolean(true);
+    private final Executor workers;
+    private final Set<Connection> connections = Collections
+            .newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+
+    public static final long CONNECTION_TIMEOUT_MS = 30 * 1000;
+
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("bluetooth-timeouts-%d").setDaemon(true).build());
 
     protected static final Logger log = LoggerFactory.getLogger(AcceptBluetoothThread.class);
 
-    private AcceptBluetoothThread(final BluetoothServerSocket listeningSocket) {
+    private AcceptBluetoothThread(final BluetoothServerSocket listeningSocket, final Executor workers) {
         this.listeningSocket = listeningSocket;
+        this.workers = workers;
+    }
+
+    @Override
+    public void run() {
+        while (running.get()) {
+            final BluetoothSocket socket;
+            try {
+                // start a blocking call, and return only on success or exception
+                socket = listeningSocket.accept();
+            } catch (final IOException x) {
+                if (running.get())
+                    log.info("exception in bluetooth accept loop", x);
+                continue;
+            }
+
+            final Connection connection = new Connection(connectionCounter.incrementAndGet(), socket);
+            log.info("accepted {} bluetooth {}", getName(), connection);
+            try {
+                workers.execute(connection);
+            } catch (final RejectedExecutionException x) {
+                log.info("too many bluetooth connections, rejecting {}", connection);
+                connection.close();
+            }
+        }
     }
 
     public static abstract class ClassicBluetoothThread extends AcceptBluetoothThread {
-        public ClassicBluetoothThread(final BluetoothAdapter adapter) throws IOException {
+        public ClassicBluetoothThread(final BluetoothAdapter adapter, final Executor workers) throws IOException {
             super(adapter.listenUsingInsecureRfcommWithServiceRecord(Bluetooth.CLASSIC_PAYMENT_PROTOCOL_NAME,
-                    Bluetooth.CLASSIC_PAYMENT_PROTOCOL_UUID));
+                    Bluetooth.CLASSIC_PAYMENT_PROTOCOL_UUID), workers);
+            setName("classic");
         }
 
         @Override
-        public void run() {
-            org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
-
-            while (running.get()) {
-                BluetoothSocket socket = null;
-                DataInputStream is = null;
-                DataOutputStream os = null;
-
-                try {
-                    // start a blocking call, and return only on success or exception
-                    socket = listeningSocket.accept();
-
-                    log.info("accepted classic bluetooth connection");
-
-                    is = new DataInputStream(socket.getInputStream());
-                    os = new DataOutputStream(socket.getOutputStream());
+        protected void serve(final Connection connection) throws IOException {
+            final DataInputStream is = new DataInputStream(connection.getInputStream());
+            final DataOutputStream os = new DataOutputStream(connection.socket.getOutputStream());
 
-                    boolean ack = true;
+            boolean ack = true;
 
-                    final int numMessages = is.readInt();
+            final int numMessages = is.readInt();
 
-                    for (int i = 0; i < numMessages; i++) {
-                        final int msgLength = is.readInt();
-                        final byte[] msg = new byte[msgLength];
-                        is.readFully(msg);
+            for (int i = 0; i < numMessages; i++) {
+                final int msgLength = is.readInt();
+                final byte[] msg = new byte[msgLength];
+                is.readFully(msg);
 
-                        try {
-                            final Transaction tx = new Transaction(Constants.NETWORK_PARAMETERS, msg);
-
-                            if (!handleTx(tx))
-                                ack = false;
-                        } catch (final ProtocolException x) {
-                            log.info("cannot decode message received via bluetooth", x);
-                            ack = false;
-                        }
-                    }
-
-                    os.writeBoolean(ack);
-                } catch (final IOException x) {
-                    log.info("exception in bluetooth accept loop", x);
-                } finally {
-                    if (os != null) {
-                        try {
-                            os.close();
-                        } catch (final IOException x) {
-                            // swallow
-                        }
-                    }
-
-                    if (is != null) {
-                        try {
-                            is.close();
-                        } catch (final IOException x) {
-                            // swallow
-                        }
-                    }
-
-                    if (socket != null) {
-                        try {
-                            socket.close();
-                        } catch (final IOException x) {
-                            // swallow
-                        }
-                    }
+                try {
+                    long start = SystemClock.elapsedRealtime();
+                    final Transaction tx = new Transaction(Constants.NETWORK_PARAMETERS, msg);
+                    connection.parseMs += SystemClock.elapsedRealtime() - start;
+
+                    start = SystemClock.elapsedRealtime();
+                    if (!handleTx(tx))
+                        ack = false;
+                    connection.handleMs += SystemClock.elapsedRealtime() - start;
+                } catch (final ProtocolException x) {
+                    log.info("cannot decode message received via bluetooth", x);
+                    ack = false;
                 }
             }
+
+            final long start = SystemClock.elapsedRealtime();
+            os.writeBoolean(ack);
+            os.flush();
+            connection.ackMs = SystemClock.elapsedRealtime() - start;
         }
     }
 
     public static abstract class PaymentProtocolThread extends AcceptBluetoothThread {
-        public PaymentProtocolThread(final BluetoothAdapter adapter) throws IOException {
+        public PaymentProtocolThread(final BluetoothAdapter adapter, final Executor workers) throws IOException {
             super(adapter.listenUsingInsecureRfcommWithServiceRecord(Bluetooth.BIP70_PAYMENT_PROTOCOL_NAME,
-                    Bluetooth.BIP70_PAYMENT_PROTOCOL_UUID));
+                    Bluetooth.BIP70_PAYMENT_PROTOCOL_UUID), workers);
+            setName("payment protocol");
         }
 
         @Override
-        public void run() {
-            org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
-
-            while (running.get()) {
-                BluetoothSocket socket = null;
-                DataInputStream is = null;
-                DataOutputStream os = null;
-
-                try {
-                    // start a blocking call, and return only on success or exception
-                    socket = listeningSocket.accept();
-
-                    log.info("accepted payment protocol bluetooth connection");
+        protected void serve(final Connection connection) throws IOException {
+            final DataInputStream is = new DataInputStream(connection.getInputStream());
+            final DataOutputStream os = new DataOutputStream(connection.socket.getOutputStream());
+
+            boolean ack = true;
+
+            long start = SystemClock.elapsedRealtime();
+            final Protos.Payment payment = Protos.Payment.parseDelimitedFrom(is);
+            if (payment == null)
+                throw new IOException("connection closed before payment message");
+            final List<Transaction> txns = PaymentProtocol
+                    .parseTransactionsFromPaymentMessage(Constants.NETWORK_PARAMETERS, payment);
+            connection.parseMs = SystemClock.elapsedRealtime() - start;
+
+            log.debug("got payment message");
+
+            start = SystemClock.elapsedRealtime();
+            for (final Transaction tx : txns) {
+                if (!handleTx(tx))
+                    ack = false;
+            }
+            connection.handleMs = SystemClock.elapsedRealtime() - start;
 
-                    is = new DataInputStream(socket.getInputStream());
-                    os = new DataOutputStream(socket.getOutputStream());
+            final String memo = ack ? "ack" : "nack";
 
-                    boolean ack = true;
+            log.info("sending {} via bluetooth", memo);
 
-                    final Protos.Payment payment = Protos.Payment.parseDelimitedFrom(is);
+            start = SystemClock.elapsedRealtime();
+            final PaymentACK paymentAck = PaymentProtocol.createPaymentAck(payment, memo);
+            paymentAck.writeDelimitedTo(os);
+            os.flush();
+            connection.ackMs = SystemClock.elapsedRealtime() - start;
+        }
+    }
 
-                    log.debug("got payment message");
+    /**
+     * One accepted connection, served by a worker. Keeps a few numbers for the log.
+     */
+    protected final class Connection implements Runnable {
+        private final int id;
+        private final BluetoothSocket socket;
+        private final long acceptedAt = SystemClock.elapsedRealtime();
+        private CountingInputStream is;
+        private volatile boolean closed = false;
+
+        public long parseMs, handleMs, ackMs;
+
+        private Connection(final int id, final BluetoothSocket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
 
-                    for (final Transaction tx : PaymentProtocol
-                            .parseTransactionsFromPaymentMessage(Constants.NETWORK_PARAMETERS, payment)) {
-                        if (!handleTx(tx))
-                            ack = false;
-                    }
+        @Override
+        public void run() {
+            org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
-                    final String memo = ack ? "ack" : "nack";
+            connections.add(this);
+            final ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    log.info("{} timed out, closing", Connection.this);
+                    close();
+                }
+            }, CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            try {
+                serve(this);
+            } catch (final IOException x) {
+                if (!closed)
+                    log.info("exception serving bluetooth " + this, x);
+            } finally {
+                timeout.cancel(false);
+                close();
+                connections.remove(this);
+                log.info("finished {}: {} bytes, parse {} ms, handle {} ms, ack {} ms, total {} ms", this,
+                        is != null ? is.getCount() : 0, parseMs, handleMs, ackMs,
+                        SystemClock.elapsedRealtime() - acceptedAt);
+            }
+        }
 
-                    log.info("sending {} via bluetooth", memo);
+        private CountingInputStream getInputStream() throws IOException {
+            is = new CountingInputStream(socket.getInputStream());
+            return is;
+        }
 
-                    final PaymentACK paymentAck = PaymentProtocol.createPaymentAck(payment, memo);
-                    paymentAck.writeDelimitedTo(os);
-                } catch (final IOException x) {
-                    log.info("exception in bluetooth accept loop", x);
-                } finally {
-                    if (os != null) {
-                        try {
-                            os.close();
-                        } catch (final IOException x) {
-                            // swallow
-                        }
-                    }
-
-                    if (is != null) {
-                        try {
-                            is.close();
-                        } catch (final IOException x) {
-                            // swallow
-                        }
-                    }
-
-                    if (socket != null) {
-                        try {
-                            socket.close();
-                        } catch (final IOException x) {
-                            // swallow
-                        }
-                    }
-                }
+        /**
+         * Closing the socket is the only way to abort a blocking read.
+         */
+        public void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (final IOException x) {
+                // swallow
             }
         }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + id + "]";
+        }
     }
 
     public void stopAccepting() {
@@ -210,5 +267,15 @@ public abstract class AcceptBluetoothThread extends Thread {
         }
     }
 
+    /**
+     * Aborts all connections that are still being served.
+     */
+    public void closeConnections() {
+        for (final Connection connection : connections)
+            connection.close();
+    }
+
+    protected abstract void serve(Connection connection) throws IOException;
+
     protected abstract boolean handleTx(Transaction tx);
 }
@@ -28,12 +28,6 @@ import org.bitcoinj.core.StoredBlock;
  * @author Andreas Schildbach
  */
 public interface BlockchainService {
-    public static final String ACTION_PEER_STATE = BlockchainService.class.getPackage().getName() + ".peer_state";
-    public static final String ACTION_PEER_STATE_NUM_PEERS = "num_peers";
-
-    public static final String ACTION_BLOCKCHAIN_STATE = BlockchainService.class.getPackage().getName()
-            + ".blockchain_state";
-
     public static final String ACTION_CANCEL_COINS_RECEIVED = BlockchainService.class.getPackage().getName()
             + ".cancel_coins_received";
     public static final String ACTION_RESET_BLOCKCHAIN = BlockchainService.class.getPackage().getName()
@@ -25,8 +25,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -60,20 +64,25 @@ import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.WalletBalanceWidgetProvider;
 import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.data.WalletObserver;
+import de.schildbach.wallet.data.WalletSnapshot;
 import de.schildbach.wallet.service.BlockchainState.Impediment;
 import de.schildbach.wallet.ui.WalletActivity;
 import de.schildbach.wallet.util.CrashReporter;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
 
@@ -92,11 +101,13 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
 import android.support.v4.app.NotificationCompat;
-import android.support.v4.content.LocalBroadcastManager;
 import android.text.format.DateUtils;
 
 /**
@@ -114,6 +125,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
     private final Handler handler = new Handler();
     private final Handler delayHandler = new Handler();
+    private Handler notificationHandler;
     private WakeLock wakeLock;
 
     private PeerConnectivityListener peerConnectivityListener;
@@ -122,7 +134,10 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     private final Set<Impediment> impediments = EnumSet.noneOf(Impediment.class);
     private int notificationCount = 0;
     private Coin notificationAccumulatedAmount = Coin.ZERO;
-    private final List<Address> notificationAddresses = new LinkedList<Address>();
+    private final Map<Address, String> notificationAddresses = new LinkedHashMap<Address, String>();
+    private final StringBuilder notificationAddressesText = new StringBuilder();
+    private final List<ReceivedCoins> pendingNotifications = new LinkedList<ReceivedCoins>();
+    private long pendingNotificationsSince = 0;
     private AtomicInteger transactionsReceived = new AtomicInteger();
     private long serviceCreatedAt;
     private boolean resetBlockchainOnShutdown = false;
@@ -131,18 +146,26 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     private static final int IDLE_BLOCK_TIMEOUT_MIN = 2;
     private static final int IDLE_TRANSACTION_TIMEOUT_MIN = 9;
     private static final int MAX_HISTORY_SIZE = Math.max(IDLE_TRANSACTION_TIMEOUT_MIN, IDLE_BLOCK_TIMEOUT_MIN);
-    private static final long APPWIDGET_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
     private static final long BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
+    private static final long NOTIFICATION_BURST_MS = DateUtils.SECOND_IN_MILLIS * 2;
+    private static final long NOTIFICATION_BURST_MAX_MS = DateUtils.SECOND_IN_MILLIS * 10;
+    private static final int MAX_NOTIFICATION_ADDRESSES = 10;
+    private static final long RESCAN_MARGIN_SECS = DateUtils.WEEK_IN_MILLIS / DateUtils.SECOND_IN_MILLIS;
 
     private static final Logger log = LoggerFactory.getLogger(BlockchainServiceImpl.class);
 
-    private final ThrottlingWalletChangeListener walletEventListener = new ThrottlingWalletChangeListener(
-            APPWIDGET_THROTTLE_MS) {
+    private final WalletObserver.Listener walletChangeListener = new WalletObserver.Listener() {
         @Override
-        public void onThrottledWalletChanged() {
-            WalletBalanceWidgetProvider.updateWidgets(BlockchainServiceImpl.this, application.getWallet());
+        public void onWalletChanged(final WalletSnapshot snapshot) {
+            WalletBalanceWidgetProvider.updateWidgets(BlockchainServiceImpl.this,
+                    snapshot.getBalance(BalanceType.ESTIMATED));
         }
+    };
+
+    private final WalletCoinsEventListener walletEventListener = new WalletCoinsEventListener();
 
+    private final class WalletCoinsEventListener
+            implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
         @Override
         public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
                 final Coin newBalance) {
@@ -173,14 +196,94 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 final Coin newBalance) {
             transactionsReceived.incrementAndGet();
         }
-    };
+    }
+
+    private static final class ReceivedCoins {
+        @Nullable
+        public final Address address;
+        public final Coin amount;
+        public final Sha256Hash transactionHash;
+
+        public ReceivedCoins(@Nullable final Address address, final Coin amount, final Sha256Hash transactionHash) {
+            this.address = address;
+            this.amount = amount;
+            this.transactionHash = transactionHash;
+        }
+    }
 
     private void notifyCoinsReceived(@Nullable final Address address, final Coin amount,
             final Sha256Hash transactionHash) {
-        notificationCount++;
-        notificationAccumulatedAmount = notificationAccumulatedAmount.add(amount);
-        if (address != null && !notificationAddresses.contains(address))
-            notificationAddresses.add(address);
+        final long now = System.currentTimeMillis();
+        if (pendingNotifications.isEmpty())
+            pendingNotificationsSince = now;
+        pendingNotifications.add(new ReceivedCoins(address, amount, transactionHash));
+
+        // coalesce bursts, but don't delay the notification forever
+        handler.removeCallbacks(flushNotificationsRunnable);
+        if (now - pendingNotificationsSince >= NOTIFICATION_BURST_MAX_MS)
+            handler.post(flushNotificationsRunnable);
+        else
+            handler.postDelayed(flushNotificationsRunnable, NOTIFICATION_BURST_MS);
+    }
+
+    private final Runnable flushNotificationsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (pendingNotifications.isEmpty())
+                return;
+
+            final List<ReceivedCoins> batch = new ArrayList<ReceivedCoins>(pendingNotifications);
+            pendingNotifications.clear();
+
+            final Set<String> addresses = new HashSet<String>();
+            for (final ReceivedCoins received : batch)
+                if (received.address != null)
+                    addresses.add(received.address.toBase58());
+
+            notificationHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final Map<String, String> labels = AddressBookProvider.resolveLabels(getApplicationContext(),
+                            addresses);
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyCoinsReceived(batch, labels);
+                        }
+                    });
+                }
+            });
+        }
+    };
+
+    private void notifyCoinsReceived(final List<ReceivedCoins> batch, final Map<String, String> labels) {
+        Coin batchAmount = Coin.ZERO;
+        final Set<String> batchAddresses = new LinkedHashSet<String>();
+        for (final ReceivedCoins received : batch) {
+            notificationCount++;
+            notificationAccumulatedAmount = notificationAccumulatedAmount.add(received.amount);
+            batchAmount = batchAmount.add(received.amount);
+
+            final Address address = received.address;
+            if (address == null)
+                continue;
+            final String addressStr = address.toBase58();
+            final String label = labels.get(addressStr);
+            final String text = label != null ? label : addressStr;
+            batchAddresses.add(text);
+            if (!notificationAddresses.containsKey(address)) {
+                if (notificationAddresses.size() < MAX_NOTIFICATION_ADDRESSES) {
+                    notificationAddresses.put(address, text);
+                    if (notificationAddressesText.length() > 0)
+                        notificationAddressesText.append(", ");
+                    notificationAddressesText.append(text);
+                } else if (notificationAddresses.size() == MAX_NOTIFICATION_ADDRESSES) {
+                    notificationAddresses.put(address, null);
+                    notificationAddressesText.append(", \u2026");
+                }
+            }
+        }
 
         final MonetaryFormat btcFormat = config.getFormat();
         final String packageFlavor = application.applicationPackageFlavor();
@@ -197,43 +300,41 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         summaryNotification.setContentTitle(
                 getString(R.string.notification_coins_received_msg, btcFormat.format(notificationAccumulatedAmount))
                         + msgSuffix);
-        if (!notificationAddresses.isEmpty()) {
-            final StringBuilder text = new StringBuilder();
-            for (final Address notificationAddress : notificationAddresses) {
-                if (text.length() > 0)
-                    text.append(", ");
-                final String addressStr = notificationAddress.toBase58();
-                final String label = AddressBookProvider.resolveLabel(getApplicationContext(), addressStr);
-                text.append(label != null ? label : addressStr);
-            }
-            summaryNotification.setContentText(text);
-        }
+        if (notificationAddressesText.length() > 0)
+            summaryNotification.setContentText(notificationAddressesText.toString());
         summaryNotification
                 .setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, WalletActivity.class), 0));
         nm.notify(Constants.NOTIFICATION_ID_COINS_RECEIVED, summaryNotification.build());
 
-        // child notification
+        // one child notification per burst, however many transactions it contains; it makes the sound
         final NotificationCompat.Builder childNotification = new NotificationCompat.Builder(this,
                 Constants.NOTIFICATION_CHANNEL_ID_RECEIVED);
         childNotification.setGroup(Constants.NOTIFICATION_GROUP_KEY_RECEIVED);
         childNotification.setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_CHILDREN);
         childNotification.setWhen(System.currentTimeMillis());
         childNotification.setSmallIcon(R.drawable.stat_notify_received_24dp);
-        final String msg = getString(R.string.notification_coins_received_msg, btcFormat.format(amount)) + msgSuffix;
+        final String msg = getString(R.string.notification_coins_received_msg, btcFormat.format(batchAmount))
+                + msgSuffix;
         childNotification.setTicker(msg);
         childNotification.setContentTitle(msg);
-        if (address != null) {
-            final String addressStr = address.toBase58();
-            final String addressLabel = AddressBookProvider.resolveLabel(getApplicationContext(), addressStr);
-            if (addressLabel != null)
-                childNotification.setContentText(addressLabel);
-            else
-                childNotification.setContentText(addressStr);
+        if (!batchAddresses.isEmpty()) {
+            final StringBuilder batchAddressesText = new StringBuilder();
+            for (final String text : Iterables.limit(batchAddresses, MAX_NOTIFICATION_ADDRESSES)) {
+                if (batchAddressesText.length() > 0)
+                    batchAddressesText.append(", ");
+                batchAddressesText.append(text);
+            }
+            if (batchAddresses.size() > MAX_NOTIFICATION_ADDRESSES)
+                batchAddressesText.append(", \u2026");
+            childNotification.setContentText(batchAddressesText);
         }
         childNotification
                 .setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, WalletActivity.class), 0));
         childNotification.setSound(Uri.parse("android.resource://" + getPackageName() + "/" + R.raw.coins_received));
-        nm.notify(transactionHash.toString(), Constants.NOTIFICATION_ID_COINS_RECEIVED, childNotification.build());
+        nm.notify(batch.get(0).transactionHash.toString(), Constants.NOTIFICATION_ID_COINS_RECEIVED,
+                childNotification.build());
+
+        log.info("notified {} received transactions, {} in total", batch.size(), notificationCount);
     }
 
     private final class PeerConnectivityListener
@@ -320,10 +421,24 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         private final Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                lastMessageTime.set(System.currentTimeMillis());
+                final long now = System.currentTimeMillis();
+                lastMessageTime.set(now);
 
-                config.maybeIncrementBestChainHeightEver(blockChain.getChainHead().getHeight());
+                final int chainHeight = blockChain.getChainHead().getHeight();
+                config.maybeIncrementBestChainHeightEver(chainHeight);
                 broadcastBlockchainState();
+
+                final long rescanStartedAt = config.getRescanStartedAt();
+                if (rescanStartedAt > 0) {
+                    final int bestChainHeightEver = config.getBestChainHeightEver();
+                    if (chainHeight >= bestChainHeightEver) {
+                        log.info("rescan finished at height {}, took {} seconds", chainHeight,
+                                (now - rescanStartedAt) / DateUtils.SECOND_IN_MILLIS);
+                        config.setRescanStartedAt(0);
+                    } else {
+                        log.debug("rescanning, at height {} of {}", chainHeight, bestChainHeightEver);
+                    }
+                }
             }
         };
     };
@@ -580,6 +695,11 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
         peerConnectivityListener = new PeerConnectivityListener();
 
+        final HandlerThread notificationThread = new HandlerThread("notificationThread",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        notificationThread.start();
+        notificationHandler = new Handler(notificationThread.getLooper());
+
         broadcastPeerState(0);
 
         blockChainFile = new File(getDir("blockstore", Context.MODE_PRIVATE), Constants.Files.BLOCKCHAIN_FILENAME);
@@ -630,7 +750,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
         application.getWallet().addCoinsReceivedEventListener(Threading.SAME_THREAD, walletEventListener);
         application.getWallet().addCoinsSentEventListener(Threading.SAME_THREAD, walletEventListener);
-        application.getWallet().addChangeEventListener(Threading.SAME_THREAD, walletEventListener);
+        application.getWalletObserver().addListener(walletChangeListener);
 
         registerReceiver(tickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
     }
@@ -647,10 +767,11 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 notificationCount = 0;
                 notificationAccumulatedAmount = Coin.ZERO;
                 notificationAddresses.clear();
+                notificationAddressesText.setLength(0);
 
                 nm.cancel(Constants.NOTIFICATION_ID_COINS_RECEIVED);
             } else if (BlockchainService.ACTION_RESET_BLOCKCHAIN.equals(action)) {
-                log.info("will remove blockchain on service shutdown");
+                log.info("will rescan blockchain on service shutdown");
 
                 resetBlockchainOnShutdown = true;
                 stopSelf();
@@ -681,7 +802,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
         unregisterReceiver(tickReceiver);
 
-        application.getWallet().removeChangeEventListener(walletEventListener);
+        application.getWalletObserver().removeListener(walletChangeListener);
         application.getWallet().removeCoinsSentEventListener(walletEventListener);
         application.getWallet().removeCoinsReceivedEventListener(walletEventListener);
 
@@ -699,6 +820,29 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         peerConnectivityListener.stop();
 
         delayHandler.removeCallbacksAndMessages(null);
+        // don't drop coins still waiting in the burst window; the notification thread quits once it has resolved
+        // their labels (like Looper.quitSafely(), which isn't available before API level 18)
+        handler.removeCallbacks(flushNotificationsRunnable);
+        flushNotificationsRunnable.run();
+        notificationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+
+        boolean rescanFromStoredHeaders = false;
+        if (resetBlockchainOnShutdown) {
+            config.setRescanStartedAt(System.currentTimeMillis());
+
+            final Wallet wallet = application.getWallet();
+            final StoredBlock rescanFrom = rewindBlockStore(wallet.getEarliestKeyCreationTime());
+            if (rescanFrom != null) {
+                log.info("rewound blockchain to height {}, resetting wallet for rescan", rescanFrom.getHeight());
+                wallet.reset();
+                rescanFromStoredHeaders = true;
+            }
+        }
 
         try {
             blockStore.close();
@@ -713,18 +857,49 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
             wakeLock.release();
         }
 
-        if (resetBlockchainOnShutdown) {
+        if (resetBlockchainOnShutdown && !rescanFromStoredHeaders) {
             log.info("removing blockchain");
             blockChainFile.delete();
         }
 
         stopForeground(true);
 
+        log.info("blockchain state bus: {}", application.getBlockchainStateBus());
+
         super.onDestroy();
 
         log.info("service was up for " + ((System.currentTimeMillis() - serviceCreatedAt) / 1000 / 60) + " minutes");
     }
 
+    /**
+     * Rewinds the chain head to the newest stored block that is at least a week older than the given time, like
+     * {@link CheckpointManager} does. Already validated headers are kept, so only filtered blocks need to be
+     * downloaded again. Returns {@code null} if the block store doesn't reach back far enough, in which case it has to
+     * be recreated from checkpoints.
+     */
+    @Nullable
+    private StoredBlock rewindBlockStore(final long earliestKeyCreationTime) {
+        if (earliestKeyCreationTime <= 0)
+            return null;
+
+        final long rewindTime = earliestKeyCreationTime - RESCAN_MARGIN_SECS;
+        try {
+            StoredBlock block = blockStore.getChainHead();
+            while (block.getHeader().getTimeSeconds() > rewindTime) {
+                block = block.getPrev(blockStore);
+                if (block == null) {
+                    log.info("blockstore doesn't reach back to {}, cannot rescan", new Date(rewindTime * 1000));
+                    return null;
+                }
+            }
+            blockStore.setChainHead(block);
+            return block;
+        } catch (final BlockStoreException x) {
+            log.warn("problem rewinding blockstore", x);
+            return null;
+        }
+    }
+
     @Override
     public void onTrimMemory(final int level) {
         log.info("onTrimMemory({}) called", level);
@@ -776,17 +951,10 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     }
 
     private void broadcastPeerState(final int numPeers) {
-        final Intent broadcast = new Intent(ACTION_PEER_STATE);
-        broadcast.setPackage(getPackageName());
-        broadcast.putExtra(ACTION_PEER_STATE_NUM_PEERS, numPeers);
-
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        application.getBlockchainStateBus().postPeerState(numPeers);
     }
 
     private void broadcastBlockchainState() {
-        final Intent broadcast = new Intent(ACTION_BLOCKCHAIN_STATE);
-        broadcast.setPackage(getPackageName());
-        getBlockchainState().putExtras(broadcast);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        application.getBlockchainStateBus().postBlockchainState(getBlockchainState());
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * In-process bus for the latest {@link BlockchainState} and peer count. States can be posted from any thread; they
+ * are delivered to listeners on the main thread, at most once per frame. States posted in between replace each
+ * other and are counted as coalesced.
+ *
+ * @author Andreas Schildbach
+ */
+public class BlockchainStateBus {
+    public interface Listener<T> {
+        /** will be called back on UI thread */
+        void onStateChanged(T state);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final AtomicReference<BlockchainState> blockchainState = new AtomicReference<BlockchainState>();
+    private final AtomicReference<Integer> numPeers = new AtomicReference<Integer>();
+    private final AtomicBoolean blockchainStateDirty = new AtomicBoolean();
+    private final AtomicBoolean numPeersDirty = new AtomicBoolean();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+
+    private final CopyOnWriteArrayList<Listener<BlockchainState>> blockchainStateListeners =
+            new CopyOnWriteArrayList<Listener<BlockchainState>>();
+    private final CopyOnWriteArrayList<Listener<Integer>> peerStateListeners =
+            new CopyOnWriteArrayList<Listener<Integer>>();
+
+    private final AtomicLong numDelivered = new AtomicLong();
+    private final AtomicLong numCoalesced = new AtomicLong();
+
+    public void postBlockchainState(final BlockchainState state) {
+        blockchainState.set(state);
+        if (blockchainStateDirty.getAndSet(true))
+            numCoalesced.incrementAndGet();
+        scheduleFrame();
+    }
+
+    public void postPeerState(final int numPeers) {
+        this.numPeers.set(numPeers);
+        if (numPeersDirty.getAndSet(true))
+            numCoalesced.incrementAndGet();
+        scheduleFrame();
+    }
+
+    @Nullable
+    public BlockchainState getBlockchainState() {
+        return blockchainState.get();
+    }
+
+    @Nullable
+    public Integer getNumPeers() {
+        return numPeers.get();
+    }
+
+    /**
+     * Adds a listener. If a state is already known, it is delivered immediately. Must be called on the UI thread.
+     */
+    public void addBlockchainStateListener(final Listener<BlockchainState> listener) {
+        blockchainStateListeners.add(listener);
+
+        final BlockchainState state = blockchainState.get();
+        if (state != null)
+            listener.onStateChanged(state);
+    }
+
+    public void removeBlockchainStateListener(final Listener<BlockchainState> listener) {
+        blockchainStateListeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener. If a peer count is already known, it is delivered immediately. Must be called on the UI
+     * thread.
+     */
+    public void addPeerStateListener(final Listener<Integer> listener) {
+        peerStateListeners.add(listener);
+
+        final Integer numPeers = this.numPeers.get();
+        if (numPeers != null)
+            listener.onStateChanged(numPeers);
+    }
+
+    public void removePeerStateListener(final Listener<Integer> listener) {
+        peerStateListeners.remove(listener);
+    }
+
+    public long getNumDelivered() {
+        return numDelivered.get();
+    }
+
+    public long getNumCoalesced() {
+        return numCoalesced.get();
+    }
+
+    private void scheduleFrame() {
+        if (!frameScheduled.getAndSet(true))
+            handler.post(postFrameCallbackRunnable);
+    }
+
+    private final Runnable postFrameCallbackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            frameScheduled.set(false);
+
+            if (blockchainStateDirty.getAndSet(false)) {
+                final BlockchainState state = blockchainState.get();
+                for (final Listener<BlockchainState> listener : blockchainStateListeners)
+                    listener.onStateChanged(state);
+                numDelivered.incrementAndGet();
+            }
+
+            if (numPeersDirty.getAndSet(false)) {
+                final Integer state = numPeers.get();
+                for (final Listener<Integer> listener : peerStateListeners)
+                    listener.onStateChanged(state);
+                numDelivered.incrementAndGet();
+            }
+        }
+    };
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[delivered: " + numDelivered.get() + ", coalesced: "
+                + numCoalesced.get() + "]";
+    }
+}
@@ -19,7 +19,6 @@ package de.schildbach.wallet.service;
 
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.data.WalletObserver;
 import de.schildbach.wallet.ui.WalletActivity;
 import de.schildbach.wallet.ui.send.FeeCategory;
 import de.schildbach.wallet.ui.send.SendCoinsActivity;
@@ -54,7 +54,7 @@ public final class InactivityNotificationService extends IntentService {
     private NotificationManager nm;
     private WalletApplication application;
     private Configuration config;
-    private Wallet wallet;
+    private WalletObserver walletObserver;
 
     private static final String ACTION_DISMISS = InactivityNotificationService.class.getPackage().getName()
             + ".dismiss";
@@ -77,7 +77,7 @@ public final class InactivityNotificationService extends IntentService {
         nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         application = (WalletApplication) getApplication();
         config = application.getConfiguration();
-        wallet = application.getWallet();
+        walletObserver = application.getWalletObserver();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             final NotificationCompat.Builder notification = new NotificationCompat.Builder(this,
@@ -104,12 +104,12 @@ public final class InactivityNotificationService extends IntentService {
     }
 
     private void handleMaybeShowNotification() {
-        final Coin estimatedBalance = wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE);
+        final Coin estimatedBalance = walletObserver.getBalance(BalanceType.ESTIMATED_SPENDABLE);
 
         if (estimatedBalance.isPositive()) {
             log.info("detected balance, showing inactivity notification");
 
-            final Coin availableBalance = wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE);
+            final Coin availableBalance = walletObserver.getBalance(BalanceType.AVAILABLE_SPENDABLE);
             final boolean canDonate = Constants.DONATION_ADDRESS != null && availableBalance.isPositive();
 
             final MonetaryFormat btcFormat = config.getFormat();
@@ -162,7 +162,7 @@ public final class InactivityNotificationService extends IntentService {
     }
 
     private void handleDonate() {
-        final Coin balance = wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE);
+        final Coin balance = walletObserver.getBalance(BalanceType.AVAILABLE_SPENDABLE);
         SendCoinsActivity.startDonate(this, balance, FeeCategory.ECONOMIC,
                 Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         nm.cancel(Constants.NOTIFICATION_ID_INACTIVITY);
@@ -19,10 +19,11 @@ package de.schildbach.wallet.ui;
 
 import static com.google.common.base.Preconditions.checkState;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.DateFormat;
@@ -54,6 +55,9 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnShowListener;
 import android.graphics.Typeface;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.LayoutInflater;
@@ -86,7 +90,14 @@ public class BackupWalletDialogFragment extends DialogFragment {
     private TextView passwordStrengthView;
     private View passwordMismatchView;
     private CheckBox showView;
-    private Button positiveButton;
+    private CheckBox authenticatedView;
+    private Button positiveButton, negativeButton;
+
+    private boolean backingUp = false;
+
+    private final Handler handler = new Handler();
+    private HandlerThread backgroundThread;
+    private Handler backgroundHandler;
 
     private static final Logger log = LoggerFactory.getLogger(BackupWalletDialogFragment.class);
 
@@ -115,6 +126,15 @@ public class BackupWalletDialogFragment extends DialogFragment {
         this.wallet = application.getWallet();
     }
 
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        backgroundThread = new HandlerThread("backgroundThread", Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+    }
+
     @Override
     public Dialog onCreateDialog(final Bundle savedInstanceState) {
         final View view = LayoutInflater.from(activity).inflate(R.layout.backup_wallet_dialog, null);
@@ -131,6 +151,8 @@ public class BackupWalletDialogFragment extends DialogFragment {
 
         showView = (CheckBox) view.findViewById(R.id.backup_wallet_dialog_show);
 
+        authenticatedView = (CheckBox) view.findViewById(R.id.backup_wallet_dialog_authenticated);
+
         final TextView warningView = (TextView) view.findViewById(R.id.backup_wallet_dialog_warning_encrypted);
         warningView.setVisibility(wallet.isEncrypted() ? View.VISIBLE : View.GONE);
 
@@ -147,6 +169,7 @@ public class BackupWalletDialogFragment extends DialogFragment {
             @Override
             public void onShow(final DialogInterface d) {
                 positiveButton = dialog.getButton(DialogInterface.BUTTON_POSITIVE);
+                negativeButton = dialog.getButton(DialogInterface.BUTTON_NEGATIVE);
                 positiveButton.setTypeface(Typeface.DEFAULT_BOLD);
                 positiveButton.setOnClickListener(new OnClickListener() {
                     @Override
@@ -182,6 +205,13 @@ public class BackupWalletDialogFragment extends DialogFragment {
         super.onDismiss(dialog);
     }
 
+    @Override
+    public void onDestroy() {
+        backgroundThread.getLooper().quit();
+
+        super.onDestroy();
+    }
+
     private void handleGo() {
         final String password = passwordView.getText().toString().trim();
         final String passwordAgain = passwordAgainView.getText().toString().trim();
@@ -190,11 +220,8 @@ public class BackupWalletDialogFragment extends DialogFragment {
             passwordView.setText(null); // get rid of it asap
             passwordAgainView.setText(null);
 
-            backupWallet(password);
-
-            dismiss();
-
-            application.getConfiguration().disarmBackupReminder();
+            backupWallet(password,
+                    authenticatedView.isChecked() ? Crypto.Format.AUTHENTICATED : Crypto.Format.OPENSSL);
         } else {
             passwordMismatchView.setVisibility(View.VISIBLE);
         }
@@ -227,43 +254,79 @@ public class BackupWalletDialogFragment extends DialogFragment {
         final boolean hasPassword = !passwordView.getText().toString().trim().isEmpty();
         final boolean hasPasswordAgain = !passwordAgainView.getText().toString().trim().isEmpty();
 
-        positiveButton.setEnabled(hasPassword && hasPasswordAgain);
+        passwordView.setEnabled(!backingUp);
+        passwordAgainView.setEnabled(!backingUp);
+        showView.setEnabled(!backingUp);
+        authenticatedView.setEnabled(!backingUp);
+        positiveButton.setEnabled(hasPassword && hasPasswordAgain && !backingUp);
+        negativeButton.setEnabled(!backingUp);
     }
 
-    private void backupWallet(final String password) {
-        final File file = determineBackupFile();
-
-        final Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(wallet);
-
-        Writer cipherOut = null;
+    private void backupWallet(final String password, final Crypto.Format format) {
+        backingUp = true;
+        updateView();
 
-        try {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            walletProto.writeTo(baos);
-            baos.close();
-            final byte[] plainBytes = baos.toByteArray();
-
-            cipherOut = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8);
-            cipherOut.write(Crypto.encrypt(plainBytes, password.toCharArray()));
-            cipherOut.flush();
+        // key derivation of the authenticated format takes time
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final File file = determineBackupFile();
+                try {
+                    writeBackup(file, password, format);
+                    log.info("backed up wallet to: '" + file + "'");
+                    onBackupDone(file, null);
+                } catch (final IOException x) {
+                    log.error("problem backing up wallet", x);
+                    onBackupDone(file, x);
+                }
+            }
 
-            log.info("backed up wallet to: '" + file + "'");
+            private void onBackupDone(final File file, @Nullable final IOException x) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (x == null)
+                            application.getConfiguration().disarmBackupReminder();
+
+                        if (!isAdded())
+                            return;
+
+                        if (x == null) {
+                            ArchiveBackupDialogFragment.show(getFragmentManager(), file);
+                        } else {
+                            final DialogBuilder dialog = DialogBuilder.warn(activity,
+                                    R.string.import_export_keys_dialog_failure_title);
+                            dialog.setMessage(getString(R.string.export_keys_dialog_failure, x.getMessage()));
+                            dialog.singleDismissButton(null);
+                            dialog.show();
+                        }
+
+                        dismiss();
+                    }
+                });
+            }
+        });
+    }
 
-            ArchiveBackupDialogFragment.show(getFragmentManager(), file);
-        } catch (final IOException x) {
-            final DialogBuilder dialog = DialogBuilder.warn(activity, R.string.import_export_keys_dialog_failure_title);
-            dialog.setMessage(getString(R.string.export_keys_dialog_failure, x.getMessage()));
-            dialog.singleDismissButton(null);
-            dialog.show();
+    private void writeBackup(final File file, final String password, final Crypto.Format format) throws IOException {
+        final Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(wallet);
 
-            log.error("problem backing up wallet", x);
+        final Writer fileOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+        boolean finished = false;
+        try {
+            final OutputStream cipherOut = Crypto.encryptingStream(fileOut, password.toCharArray(), format);
+            walletProto.writeTo(cipherOut);
+            cipherOut.close(); // finishes encryption
+            finished = true;
         } finally {
-            if (cipherOut != null) {
+            if (!finished) {
+                // closing the cipher stream would authenticate the truncated ciphertext
                 try {
-                    cipherOut.close();
+                    fileOut.close();
                 } catch (final IOException x) {
                     // swallow
                 }
+                file.delete();
             }
         }
     }
@@ -234,7 +234,7 @@ public class EncryptKeysDialogFragment extends DialogFragment {
                 final KeyParameter oldKey = oldPassword != null ? wallet.getKeyCrypter().deriveKey(oldPassword) : null;
 
                 // For the new key, we create a new key crypter according to the desired parameters.
-                final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(application.scryptIterationsTarget());
+                final KeyCrypterScrypt keyCrypter = application.scryptTarget().newKeyCrypter();
                 final KeyParameter newKey = newPassword != null ? keyCrypter.deriveKey(newPassword) : null;
 
                 handler.post(new Runnable() {
@@ -371,7 +371,7 @@ public final class ExchangeRatesFragment extends Fragment implements OnSharedPre
                             if (item.getItemId() == R.id.exchange_rates_context_set_as_default) {
                                 setDefaultCurrency(exchangeRate.getCurrencyCode());
                                 config.setExchangeCurrencyCode(exchangeRate.getCurrencyCode());
-                                WalletBalanceWidgetProvider.updateWidgets(activity, wallet);
+                                WalletBalanceWidgetProvider.updateWidgets(activity);
                                 return true;
                             } else {
                                 return false;
@@ -26,19 +26,14 @@ import org.bitcoinj.wallet.Wallet;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainState;
+import de.schildbach.wallet.service.BlockchainStateBus;
 import de.schildbach.wallet.ui.send.MaintenanceDialogFragment;
 
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentManager;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
 
 /**
  * @author Andreas Schildbach
@@ -55,7 +50,7 @@ public class MaybeMaintenanceFragment extends Fragment {
     }
 
     private Wallet wallet;
-    private LocalBroadcastManager broadcastManager;
+    private BlockchainStateBus blockchainStateBus;
     private boolean dialogWasShown = false;
 
     @Override
@@ -64,7 +59,7 @@ public class MaybeMaintenanceFragment extends Fragment {
 
         final WalletApplication application = ((AbstractWalletActivity) activity).getWalletApplication();
         this.wallet = application.getWallet();
-        this.broadcastManager = LocalBroadcastManager.getInstance(activity);
+        this.blockchainStateBus = application.getBlockchainStateBus();
     }
 
     @Override
@@ -78,22 +73,19 @@ public class MaybeMaintenanceFragment extends Fragment {
     public void onResume() {
         super.onResume();
 
-        broadcastManager.registerReceiver(broadcastReceiver,
-                new IntentFilter(BlockchainService.ACTION_BLOCKCHAIN_STATE));
+        blockchainStateBus.addBlockchainStateListener(blockchainStateListener);
     }
 
     @Override
     public void onPause() {
-        broadcastManager.unregisterReceiver(broadcastReceiver);
+        blockchainStateBus.removeBlockchainStateListener(blockchainStateListener);
 
         super.onPause();
     }
 
-    private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
+    private final BlockchainStateBus.Listener<BlockchainState> blockchainStateListener = new BlockchainStateBus.Listener<BlockchainState>() {
         @Override
-        public void onReceive(final Context context, final Intent broadcast) {
-            final BlockchainState blockchainState = BlockchainState.fromIntent(broadcast);
-
+        public void onStateChanged(final BlockchainState blockchainState) {
             if (!dialogWasShown && !blockchainState.replaying && maintenanceRecommended()) {
                 MaintenanceDialogFragment.show(getFragmentManager());
                 dialogWasShown = true;
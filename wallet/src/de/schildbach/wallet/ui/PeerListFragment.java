@@ -29,8 +29,10 @@ import org.bitcoinj.core.VersionMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.BlockchainStateBus;
 import de.schildbach.wallet.R;
 
 import android.app.Activity;
@@ -38,18 +40,15 @@ import android.app.Fragment;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.AsyncTaskLoader;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.ServiceConnection;
 import android.graphics.Typeface;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.format.DateUtils;
@@ -272,13 +271,13 @@ public final class PeerListFragment extends Fragment {
     }
 
     private static class PeerLoader extends AsyncTaskLoader<List<Peer>> {
-        private LocalBroadcastManager broadcastManager;
+        private final BlockchainStateBus blockchainStateBus;
         private BlockchainService service;
 
         private PeerLoader(final Context context, final BlockchainService service) {
             super(context);
 
-            this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
+            this.blockchainStateBus = ((WalletApplication) context.getApplicationContext()).getBlockchainStateBus();
             this.service = service;
         }
 
@@ -286,14 +285,14 @@ public final class PeerListFragment extends Fragment {
         protected void onStartLoading() {
             super.onStartLoading();
 
-            broadcastManager.registerReceiver(broadcastReceiver, new IntentFilter(BlockchainService.ACTION_PEER_STATE));
+            blockchainStateBus.addPeerStateListener(peerStateListener);
 
             forceLoad();
         }
 
         @Override
         protected void onStopLoading() {
-            broadcastManager.unregisterReceiver(broadcastReceiver);
+            blockchainStateBus.removePeerStateListener(peerStateListener);
 
             super.onStopLoading();
         }
@@ -303,9 +302,9 @@ public final class PeerListFragment extends Fragment {
             return service.getConnectedPeers();
         }
 
-        private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
+        private final BlockchainStateBus.Listener<Integer> peerStateListener = new BlockchainStateBus.Listener<Integer>() {
             @Override
-            public void onReceive(final Context context, final Intent intent) {
+            public void onStateChanged(final Integer state) {
                 try {
                     forceLoad();
                 } catch (final RejectedExecutionException x) {
@@ -44,7 +44,6 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.SpannableStringBuilder;
-import android.text.format.DateUtils;
 import android.text.style.StyleSpan;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -62,7 +61,6 @@ import org.bitcoinj.core.ScriptException;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Transaction.Purpose;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
-import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -83,12 +81,15 @@ import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.R;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.data.WalletObserver;
+import de.schildbach.wallet.data.WalletSnapshot;
 import de.schildbach.wallet.ui.TransactionsAdapter.Warning;
 import de.schildbach.wallet.ui.send.RaiseFeeDialogFragment;
+import de.schildbach.wallet.util.AnimatedQrFragment;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.Qr;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+import de.schildbach.wallet.util.QrBitmapCache;
 import de.schildbach.wallet.util.WalletUtils;
 
 /**
@@ -122,7 +123,6 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
     private static final int ID_TRANSACTION_LOADER = 0;
     private static final String ARG_DIRECTION = "direction";
 
-    private static final long THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
     private static final Uri KEY_ROTATION_URI = Uri.parse("https://bitcoin.org/en/alert/2013-08-11-android");
     private static final int SHOW_QR_THRESHOLD_BYTES = 2500;
 
@@ -207,21 +207,14 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
         args.putSerializable(ARG_DIRECTION, direction);
         loaderManager.initLoader(ID_TRANSACTION_LOADER, args, this);
 
-        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addChangeEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, transactionChangeListener);
+        application.getWalletObserver().addListener(transactionChangeListener);
 
         updateView();
     }
 
     @Override
     public void onPause() {
-        wallet.removeTransactionConfidenceEventListener(transactionChangeListener);
-        wallet.removeChangeEventListener(transactionChangeListener);
-        wallet.removeCoinsSentEventListener(transactionChangeListener);
-        wallet.removeCoinsReceivedEventListener(transactionChangeListener);
-        transactionChangeListener.removeCallbacks();
+        application.getWalletObserver().removeListener(transactionChangeListener);
 
         loaderManager.destroyLoader(ID_TRANSACTION_LOADER);
 
@@ -304,7 +297,8 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
         popupMenu.getMenu().findItem(R.id.wallet_transactions_context_show_qr)
                 .setVisible(!txRotation && txSerialized.length < SHOW_QR_THRESHOLD_BYTES);
         popupMenu.getMenu().findItem(R.id.wallet_transactions_context_raise_fee)
-                .setVisible(RaiseFeeDialogFragment.feeCanLikelyBeRaised(wallet, tx));
+                .setVisible(RaiseFeeDialogFragment.feeCanLikelyBeRaised(wallet, application.getWalletObserver(),
+                        tx));
         popupMenu.getMenu().findItem(R.id.wallet_transactions_context_browse).setVisible(Constants.ENABLE_BROWSE);
         popupMenu.setOnMenuItemClickListener(new OnMenuItemClickListener() {
             @Override
@@ -347,8 +341,17 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
             }
 
             private void handleShowQr() {
-                final Bitmap qrCodeBitmap = Qr.bitmap(Qr.encodeCompressBinary(txSerialized));
-                BitmapFragment.show(getFragmentManager(), qrCodeBitmap);
+                final String content = Qr.encodeCompressBinary(txSerialized);
+                if (content.length() > Qr.MAX_SINGLE_FRAME_LENGTH)
+                    AnimatedQrFragment.show(getFragmentManager(), content);
+                else
+                    application.getQrBitmapCache().render(content, new QrBitmapCache.Callback() {
+                        @Override
+                        public void onBitmap(final String content, final Bitmap bitmap) {
+                            if (isResumed())
+                                BitmapFragment.show(getFragmentManager(), bitmap);
+                        }
+                    });
             }
 
             private void handleReportIssue(final Transaction tx) {
@@ -446,10 +449,9 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
         // don't clear the adapter, because it will confuse users
     }
 
-    private final ThrottlingWalletChangeListener transactionChangeListener = new ThrottlingWalletChangeListener(
-            THROTTLE_MS) {
+    private final WalletObserver.Listener transactionChangeListener = new WalletObserver.Listener() {
         @Override
-        public void onThrottledWalletChanged() {
+        public void onWalletChanged(final WalletSnapshot snapshot) {
             adapter.notifyDataSetChanged();
             refreshPets();
         }
@@ -457,6 +459,7 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
 
     private static class TransactionsLoader extends AsyncTaskLoader<List<Transaction>> {
         private LocalBroadcastManager broadcastManager;
+        private final WalletObserver walletObserver;
         private final Wallet wallet;
         @Nullable
         private final Direction direction;
@@ -465,6 +468,7 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
             super(context);
 
             this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
+            this.walletObserver = ((WalletApplication) context.getApplicationContext()).getWalletObserver();
             this.wallet = wallet;
             this.direction = direction;
         }
@@ -477,34 +481,26 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
         protected void onStartLoading() {
             super.onStartLoading();
 
-            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
-            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
-            wallet.addChangeEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
             broadcastManager.registerReceiver(walletChangeReceiver,
                     new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
-            transactionAddRemoveListener.onReorganize(null); // trigger at least one reload
+            lastTransactionsVersion = -1;
+            walletObserver.addListener(transactionAddRemoveListener);
 
             safeForceLoad();
         }
 
         @Override
         protected void onStopLoading() {
+            walletObserver.removeListener(transactionAddRemoveListener);
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsSentEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsReceivedEventListener(transactionAddRemoveListener);
-            transactionAddRemoveListener.removeCallbacks();
 
             super.onStopLoading();
         }
 
         @Override
         protected void onReset() {
+            walletObserver.removeListener(transactionAddRemoveListener);
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsSentEventListener(transactionAddRemoveListener);
-            wallet.removeCoinsReceivedEventListener(transactionAddRemoveListener);
-            transactionAddRemoveListener.removeCallbacks();
 
             super.onReset();
         }
@@ -530,11 +526,15 @@ public class PetsSchoolFragment extends Fragment implements LoaderCallbacks<List
             return filteredTransactions;
         }
 
-        private final ThrottlingWalletChangeListener transactionAddRemoveListener = new ThrottlingWalletChangeListener(
-                THROTTLE_MS, true, true, false) {
+        private long lastTransactionsVersion;
+
+        private final WalletObserver.Listener transactionAddRemoveListener = new WalletObserver.Listener() {
             @Override
-            public void onThrottledWalletChanged() {
-                safeForceLoad();
+            public void onWalletChanged(final WalletSnapshot snapshot) {
+                // the first snapshot only sets the baseline, as we're loading anyway
+                if (lastTransactionsVersion >= 0 && snapshot.transactionsVersion != lastTransactionsVersion)
+                    safeForceLoad();
+                lastTransactionsVersion = snapshot.transactionsVersion;
             }
         };
 
@@ -37,6 +37,17 @@ public class ProgressDialogFragment extends DialogFragment {
         fragment.show(fm, FRAGMENT_TAG);
     }
 
+    public static void updateProgress(final FragmentManager fm, final String message) {
+        final ProgressDialogFragment fragment = (ProgressDialogFragment) fm.findFragmentByTag(FRAGMENT_TAG);
+        if (fragment == null)
+            return;
+
+        fragment.getArguments().putString(KEY_MESSAGE, message);
+        final ProgressDialog dialog = (ProgressDialog) fragment.getDialog();
+        if (dialog != null)
+            dialog.setMessage(message);
+    }
+
     public static void dismissProgress(final FragmentManager fm) {
         final DialogFragment fragment = (DialogFragment) fm.findFragmentByTag(FRAGMENT_TAG);
         fragment.dismiss();
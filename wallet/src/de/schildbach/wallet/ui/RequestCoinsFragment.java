@@ -29,6 +29,8 @@ import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
@@ -40,7 +42,7 @@ import de.schildbach.wallet.ui.send.SendCoinsActivity;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.Nfc;
-import de.schildbach.wallet.util.Qr;
+import de.schildbach.wallet.util.QrBitmapCache;
 import de.schildbach.wallet.util.Toast;
 import de.schildbach.wallet.R;
 
@@ -58,6 +60,7 @@ import android.content.Intent;
 import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
@@ -66,6 +69,7 @@ import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.nfc.NfcEvent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.ShareCompat;
 import android.support.v7.widget.CardView;
 import android.text.SpannableStringBuilder;
@@ -98,7 +102,11 @@ public final class RequestCoinsFragment extends Fragment implements NfcAdapter.C
     private NfcAdapter nfcAdapter;
 
     private ImageView qrView;
+    @Nullable
     private BitmapDrawable qrCodeBitmap;
+    @Nullable
+    private String qrContent;
+    private final Handler handler = new Handler();
     private CheckBox acceptBluetoothPaymentView;
     private TextView initiateRequestView;
 
@@ -115,6 +123,9 @@ public final class RequestCoinsFragment extends Fragment implements NfcAdapter.C
 
     private static final int ID_RATE_LOADER = 0;
 
+    /** delay before rendering a QR code that isn't cached, so that typing doesn't render every keystroke */
+    private static final long QR_DEBOUNCE_MS = 150;
+
     private static final Logger log = LoggerFactory.getLogger(RequestCoinsFragment.class);
 
     private final LoaderCallbacks<Cursor> rateLoaderCallbacks = new LoaderManager.LoaderCallbacks<Cursor>() {
@@ -183,7 +194,8 @@ public final class RequestCoinsFragment extends Fragment implements NfcAdapter.C
         qrCardView.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(final View v) {
-                BitmapFragment.show(getFragmentManager(), qrCodeBitmap.getBitmap());
+                if (qrCodeBitmap != null)
+                    BitmapFragment.show(getFragmentManager(), qrCodeBitmap.getBitmap());
             }
         });
 
@@ -270,6 +282,8 @@ public final class RequestCoinsFragment extends Fragment implements NfcAdapter.C
         loaderManager.destroyLoader(ID_RATE_LOADER);
 
         amountCalculatorLink.setListener(null);
+        handler.removeCallbacks(renderQrRunnable);
+        qrContent = null;
 
         super.onPause();
     }
@@ -393,10 +407,16 @@ public final class RequestCoinsFragment extends Fragment implements NfcAdapter.C
         final String bitcoinRequest = determineBitcoinRequestStr(true);
         final byte[] paymentRequest = determinePaymentRequest(true);
 
-        // update qr-code
-        qrCodeBitmap = new BitmapDrawable(getResources(), Qr.bitmap(bitcoinRequest));
-        qrCodeBitmap.setFilterBitmap(false);
-        qrView.setImageDrawable(qrCodeBitmap);
+        // update qr-code, right away if cached
+        if (!bitcoinRequest.equals(qrContent)) {
+            qrContent = bitcoinRequest;
+            handler.removeCallbacks(renderQrRunnable);
+            final Bitmap cached = application.getQrBitmapCache().get(bitcoinRequest, ErrorCorrectionLevel.H);
+            if (cached != null)
+                setQrBitmap(cached);
+            else
+                handler.postDelayed(renderQrRunnable, QR_DEBOUNCE_MS);
+        }
 
         // update initiate request message
         final SpannableStringBuilder initiateText = new SpannableStringBuilder(
@@ -412,6 +432,26 @@ public final class RequestCoinsFragment extends Fragment implements NfcAdapter.C
         paymentRequestRef.set(paymentRequest);
     }
 
+    private final Runnable renderQrRunnable = new Runnable() {
+        @Override
+        public void run() {
+            application.getQrBitmapCache().render(qrContent, ErrorCorrectionLevel.H, new QrBitmapCache.Callback() {
+                @Override
+                public void onBitmap(final String content, final Bitmap bitmap) {
+                    // drop if request has changed in the meantime
+                    if (isResumed() && content.equals(qrContent))
+                        setQrBitmap(bitmap);
+                }
+            });
+        }
+    };
+
+    private void setQrBitmap(final Bitmap bitmap) {
+        qrCodeBitmap = new BitmapDrawable(getResources(), bitmap);
+        qrCodeBitmap.setFilterBitmap(false);
+        qrView.setImageDrawable(qrCodeBitmap);
+    }
+
     private String determineBitcoinRequestStr(final boolean includeBluetoothMac) {
         final Coin amount = amountCalculatorLink.getAmount();
         final String ownName = config.getOwnName();
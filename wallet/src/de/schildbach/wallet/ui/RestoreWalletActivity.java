@@ -17,22 +17,15 @@
 
 package de.schildbach.wallet.ui;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 
-import com.google.common.base.Charsets;
-
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.util.Crypto;
-import de.schildbach.wallet.util.Io;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
 
@@ -189,15 +182,8 @@ public final class RestoreWalletActivity extends AbstractWalletActivity {
     }
 
     private void restoreWalletFromEncrypted(final InputStream cipher, final String password) throws IOException {
-        final BufferedReader cipherIn = new BufferedReader(new InputStreamReader(cipher, Charsets.UTF_8));
-        final StringBuilder cipherText = new StringBuilder();
-        Io.copy(cipherIn, cipherText, Constants.BACKUP_MAX_CHARS);
-        cipherIn.close();
-
-        final byte[] plainText = Crypto.decryptBytes(cipherText.toString(), password.toCharArray());
-        final InputStream is = new ByteArrayInputStream(plainText);
-
-        application.replaceWallet(WalletUtils.restoreWalletFromProtobufOrBase58(is, Constants.NETWORK_PARAMETERS));
+        application.replaceWallet(
+                WalletUtils.restoreWalletFromEncrypted(cipher, password, Constants.NETWORK_PARAMETERS));
     }
 
     private class FinishListener implements DialogInterface.OnClickListener, DialogInterface.OnCancelListener {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright the original author or authors.
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -15,44 +15,56 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-package de.schildbach.wallet.ui.send;
+package de.schildbach.wallet.ui;
 
-import org.bitcoinj.core.ECKey;
-import org.bitcoinj.crypto.BIP38PrivateKey;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.bitcoinj.wallet.Wallet;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.WalletUtils;
 
 import android.os.Handler;
 import android.os.Looper;
 
 /**
+ * Restores a wallet from an encrypted backup, off the UI thread. The authenticated format derives its keys by scrypt,
+ * which takes a while on slow devices.
+ *
  * @author Andreas Schildbach
  */
-public abstract class DecodePrivateKeyTask {
+public abstract class RestoreWalletFromEncryptedTask {
     private final Handler backgroundHandler;
     private final Handler callbackHandler;
 
-    public DecodePrivateKeyTask(final Handler backgroundHandler) {
+    public RestoreWalletFromEncryptedTask(final Handler backgroundHandler) {
         this.backgroundHandler = backgroundHandler;
         this.callbackHandler = new Handler(Looper.myLooper());
     }
 
-    public final void decodePrivateKey(final BIP38PrivateKey encryptedKey, final String passphrase) {
+    public final void restoreWallet(final File file, final String password) {
         backgroundHandler.post(new Runnable() {
             @Override
             public void run() {
+                org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+
                 try {
-                    final ECKey decryptedKey = encryptedKey.decrypt(passphrase); // takes time
+                    final Wallet wallet = WalletUtils.restoreWalletFromEncrypted(new FileInputStream(file), password,
+                            Constants.NETWORK_PARAMETERS);
 
                     callbackHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            onSuccess(decryptedKey);
+                            onSuccess(wallet);
                         }
                     });
-                } catch (final BIP38PrivateKey.BadPassphraseException x) {
+                } catch (final IOException x) {
                     callbackHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            onBadPassphrase();
+                            onFailure(x);
                         }
                     });
                 }
@@ -60,7 +72,7 @@ public abstract class DecodePrivateKeyTask {
         });
     }
 
-    protected abstract void onSuccess(ECKey decryptedKey);
+    protected abstract void onSuccess(Wallet wallet);
 
-    protected abstract void onBadPassphrase();
+    protected abstract void onFailure(IOException x);
 }
@@ -17,12 +17,23 @@
 
 package de.schildbach.wallet.ui;
 
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.zxing.BinaryBitmap;
 import com.google.zxing.DecodeHintType;
 import com.google.zxing.PlanarYUVLuminanceSource;
@@ -31,9 +42,13 @@ import com.google.zxing.Result;
 import com.google.zxing.ResultPoint;
 import com.google.zxing.ResultPointCallback;
 import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
 import com.google.zxing.qrcode.QRCodeReader;
 
 import de.schildbach.wallet.camera.CameraManager;
+import de.schildbach.wallet.util.FountainCode;
+import de.schildbach.wallet.util.Qr;
+import de.schildbach.wallet.BuildConfig;
 import de.schildbach.wallet.R;
 
 import android.Manifest;
@@ -56,6 +71,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -65,6 +81,7 @@ import android.view.TextureView;
 import android.view.TextureView.SurfaceTextureListener;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.TextView;
 
 /**
  * @author Andreas Schildbach
@@ -72,7 +89,11 @@ import android.view.WindowManager;
 @SuppressWarnings("deprecation")
 public final class ScanActivity extends Activity
         implements SurfaceTextureListener, ActivityCompat.OnRequestPermissionsResultCallback {
+    /** if true, keep scanning and collect all codes until the user is done */
+    public static final String INTENT_EXTRA_MULTIPLE = "multiple";
     public static final String INTENT_EXTRA_RESULT = "result";
+    /** all distinct codes in the order they were scanned, if {@link #INTENT_EXTRA_MULTIPLE} was set */
+    public static final String INTENT_EXTRA_RESULTS = "results";
 
     private static final long VIBRATE_DURATION = 50L;
     private static final long AUTO_FOCUS_INTERVAL_MS = 2500L;
@@ -80,11 +101,48 @@ public final class ScanActivity extends Activity
     private final CameraManager cameraManager = new CameraManager();
     private ScannerView scannerView;
     private TextureView previewView;
+    private TextView progressView;
     private volatile boolean surfaceCreated = false;
 
     private Vibrator vibrator;
     private HandlerThread cameraThread;
     private volatile Handler cameraHandler;
+    private final Handler handler = new Handler();
+    private TextView debugView;
+
+    /** frames are decoded on these threads, while the camera thread captures the next frames */
+    private ThreadPoolExecutor decodeExecutor;
+    private final Map<DecodeHintType, Object> decodeHints = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
+    private final AtomicBoolean resultFound = new AtomicBoolean(false);
+    private boolean multiple;
+    /** distinct codes scanned so far, in multiple mode */
+    private final Set<String> results = new LinkedHashSet<String>();
+    /** collects the frames of an animated code */
+    private final FountainCode.Decoder frameDecoder = new FountainCode.Decoder();
+
+    private final AtomicInteger numDecoding = new AtomicInteger();
+    private final AtomicInteger numFrames = new AtomicInteger();
+    private final AtomicInteger numDropped = new AtomicInteger();
+    private final AtomicInteger numDecoded = new AtomicInteger();
+    private final AtomicLong decodeTimeMs = new AtomicLong();
+
+    private static final int NUM_DECODE_THREADS = Math.max(1,
+            Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long DEBUG_UPDATE_INTERVAL_MS = 1000;
+
+    private static final ThreadLocal<QRCodeReader> READER = new ThreadLocal<QRCodeReader>() {
+        @Override
+        protected QRCodeReader initialValue() {
+            return new QRCodeReader();
+        }
+    };
+
+    private static final ThreadLocal<QRCodeMultiReader> MULTI_READER = new ThreadLocal<QRCodeMultiReader>() {
+        @Override
+        protected QRCodeMultiReader initialValue() {
+            return new QRCodeMultiReader();
+        }
+    };
 
     private static boolean DISABLE_CONTINUOUS_AUTOFOCUS = Build.MODEL.equals("GT-I9100") // Galaxy S2
             || Build.MODEL.equals("SGH-T989") // Galaxy S2
@@ -100,16 +158,42 @@ public final class ScanActivity extends Activity
         super.onCreate(savedInstanceState);
 
         vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+        multiple = getIntent().getBooleanExtra(INTENT_EXTRA_MULTIPLE, false);
 
         setContentView(R.layout.scan_activity);
         scannerView = (ScannerView) findViewById(R.id.scan_activity_mask);
         previewView = (TextureView) findViewById(R.id.scan_activity_preview);
         previewView.setSurfaceTextureListener(this);
+        progressView = (TextView) findViewById(R.id.scan_activity_progress);
+        debugView = (TextView) findViewById(R.id.scan_activity_debug);
+        if (multiple) {
+            scannerView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(final View v) {
+                    handleMultipleDone();
+                }
+            });
+        }
 
         cameraThread = new HandlerThread("cameraThread", Process.THREAD_PRIORITY_BACKGROUND);
         cameraThread.start();
         cameraHandler = new Handler(cameraThread.getLooper());
 
+        decodeExecutor = new ThreadPoolExecutor(NUM_DECODE_THREADS, NUM_DECODE_THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("scan-decoder-%d").setDaemon(true).build());
+        decodeHints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, new ResultPointCallback() {
+            @Override
+            public void foundPossibleResultPoint(final ResultPoint dot) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        scannerView.addDot(dot);
+                    }
+                });
+            }
+        });
+
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED)
             ActivityCompat.requestPermissions(this, new String[] { Manifest.permission.CAMERA }, 0);
     }
@@ -119,10 +203,16 @@ public final class ScanActivity extends Activity
         super.onResume();
 
         maybeOpenCamera();
+
+        if (BuildConfig.DEBUG) {
+            debugView.setVisibility(View.VISIBLE);
+            handler.post(updateDebugRunnable);
+        }
     }
 
     @Override
     protected void onPause() {
+        handler.removeCallbacks(updateDebugRunnable);
         cameraHandler.post(closeRunnable);
 
         super.onPause();
@@ -133,6 +223,7 @@ public final class ScanActivity extends Activity
         // cancel background thread
         cameraHandler.removeCallbacksAndMessages(null);
         cameraThread.quit();
+        decodeExecutor.shutdownNow();
 
         previewView.setSurfaceTextureListener(null);
 
@@ -185,6 +276,11 @@ public final class ScanActivity extends Activity
 
     @Override
     public void onBackPressed() {
+        if (multiple && !results.isEmpty()) {
+            handleMultipleDone();
+            return;
+        }
+
         scannerView.setVisibility(View.GONE);
         setResult(RESULT_CANCELED);
         postFinish();
@@ -211,13 +307,40 @@ public final class ScanActivity extends Activity
         return super.onKeyDown(keyCode, event);
     }
 
-    public void handleResult(final Result scanResult) {
+    public void handleResult(final String scanResult) {
         vibrator.vibrate(VIBRATE_DURATION);
 
         scannerView.setIsResult(true);
+        progressView.setVisibility(View.GONE);
 
         final Intent result = new Intent();
-        result.putExtra(INTENT_EXTRA_RESULT, scanResult.getText());
+        result.putExtra(INTENT_EXTRA_RESULT, scanResult);
+        setResult(RESULT_OK, result);
+        postFinish();
+    }
+
+    private void handleMultipleResult(final String scanResult) {
+        if (!results.add(scanResult))
+            return;
+
+        vibrator.vibrate(VIBRATE_DURATION);
+
+        progressView.setText(getString(R.string.scan_multiple_progress, results.size()));
+        progressView.setVisibility(View.VISIBLE);
+    }
+
+    private void handleMultipleDone() {
+        if (results.isEmpty())
+            return;
+
+        resultFound.set(true);
+        scannerView.setIsResult(true);
+        progressView.setVisibility(View.GONE);
+
+        final Intent result = new Intent();
+        final ArrayList<String> resultList = new ArrayList<String>(results);
+        result.putExtra(INTENT_EXTRA_RESULT, resultList.get(0));
+        result.putStringArrayListExtra(INTENT_EXTRA_RESULTS, resultList);
         setResult(RESULT_OK, result);
         postFinish();
     }
@@ -258,7 +381,7 @@ public final class ScanActivity extends Activity
                 if (nonContinuousAutoFocus)
                     cameraHandler.post(new AutoFocusRunnable(camera));
 
-                cameraHandler.post(fetchAndDecodeRunnable);
+                cameraManager.startPreviewFrames(previewCallback, NUM_DECODE_THREADS + 1);
             } catch (final Exception x) {
                 log.info("problem opening camera", x);
                 runOnUiThread(new Runnable() {
@@ -322,51 +445,134 @@ public final class ScanActivity extends Activity
         };
     }
 
-    private final Runnable fetchAndDecodeRunnable = new Runnable() {
-        private final QRCodeReader reader = new QRCodeReader();
-        private final Map<DecodeHintType, Object> hints = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
-
+    private final PreviewCallback previewCallback = new PreviewCallback() {
         @Override
-        public void run() {
-            cameraManager.requestPreviewFrame(new PreviewCallback() {
-                @Override
-                public void onPreviewFrame(final byte[] data, final Camera camera) {
-                    decode(data);
-                }
-            });
-        }
-
-        private void decode(final byte[] data) {
-            final PlanarYUVLuminanceSource source = cameraManager.buildLuminanceSource(data);
-            final BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        public void onPreviewFrame(final byte[] data, final Camera camera) {
+            numFrames.incrementAndGet();
+            if (resultFound.get() || numDecoding.get() >= NUM_DECODE_THREADS) {
+                // hand back right away, so the camera can fill it with a fresher frame
+                numDropped.incrementAndGet();
+                cameraManager.returnBuffer(data);
+                return;
+            }
 
-            try {
-                hints.put(DecodeHintType.NEED_RESULT_POINT_CALLBACK, new ResultPointCallback() {
-                    @Override
-                    public void foundPossibleResultPoint(final ResultPoint dot) {
-                        runOnUiThread(new Runnable() {
+            numDecoding.incrementAndGet();
+            // several codes may well be outside the framing rect
+            final PlanarYUVLuminanceSource source = multiple ? cameraManager.buildFullLuminanceSource(data)
+                    : cameraManager.buildLuminanceSource(data);
+            decodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = SystemClock.elapsedRealtime();
+                    try {
+                        decode(source);
+                    } finally {
+                        decodeTimeMs.addAndGet(SystemClock.elapsedRealtime() - start);
+                        numDecoded.incrementAndGet();
+                        numDecoding.decrementAndGet();
+                        cameraHandler.post(new Runnable() {
                             @Override
                             public void run() {
-                                scannerView.addDot(dot);
+                                cameraManager.returnBuffer(data);
                             }
                         });
                     }
-                });
-                final Result scanResult = reader.decode(bitmap, hints);
+                }
+            });
+        }
+    };
 
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        handleResult(scanResult);
-                    }
-                });
+    /**
+     * Called on a decode thread.
+     */
+    private void decode(final PlanarYUVLuminanceSource source) {
+        final BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+
+        if (multiple) {
+            final QRCodeMultiReader reader = MULTI_READER.get();
+            try {
+                for (final Result scanResult : reader.decodeMultiple(bitmap, decodeHints))
+                    handleDecoded(scanResult.getText());
+            } catch (final ReaderException x) {
+                // retry with next frame
+            } finally {
+                reader.reset();
+            }
+        } else {
+            final QRCodeReader reader = READER.get();
+            try {
+                handleDecoded(reader.decode(bitmap, decodeHints).getText());
             } catch (final ReaderException x) {
-                // retry
-                cameraHandler.post(fetchAndDecodeRunnable);
+                // retry with next frame
             } finally {
                 reader.reset();
             }
         }
+    }
+
+    private void handleDecoded(final String text) {
+        if (FountainCode.isFrame(text))
+            handleFrame(text);
+        else
+            handleCode(text);
+    }
+
+    private void handleCode(final String text) {
+        if (multiple) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    handleMultipleResult(text);
+                }
+            });
+        } else if (resultFound.compareAndSet(false, true)) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    handleResult(text);
+                }
+            });
+        }
+    }
+
+    private void handleFrame(final String frame) {
+        final byte[] payload;
+        final int percent;
+        synchronized (frameDecoder) {
+            try {
+                frameDecoder.receive(frame);
+            } catch (final IllegalArgumentException x) {
+                log.info("ignoring invalid frame", x);
+            }
+            payload = frameDecoder.getContent();
+            percent = (int) (frameDecoder.getProgress() * 100);
+        }
+
+        if (payload != null) {
+            try {
+                handleCode(Qr.contentOfFrames(payload));
+            } catch (final IllegalArgumentException x) {
+                log.info("ignoring invalid frames", x);
+            }
+        } else {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    progressView.setText(getString(R.string.scan_frames_progress, percent));
+                    progressView.setVisibility(View.VISIBLE);
+                }
+            });
+        }
+    }
+
+    private final Runnable updateDebugRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int decoded = numDecoded.get();
+            debugView.setText(String.format(Locale.US, "%d frames, %d dropped, %d decoded, %d ms each",
+                    numFrames.get(), numDropped.get(), decoded, decoded > 0 ? decodeTimeMs.get() / decoded : 0));
+            handler.postDelayed(this, DEBUG_UPDATE_INTERVAL_MS);
+        }
     };
 
     public static class WarnDialogFragment extends DialogFragment {
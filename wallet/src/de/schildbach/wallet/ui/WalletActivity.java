@@ -17,17 +17,15 @@
 
 package de.schildbach.wallet.ui;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.VerificationException;
@@ -35,8 +33,6 @@ import org.bitcoinj.core.VersionedChecksummedBytes;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 
-import com.google.common.base.Charsets;
-
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
@@ -46,9 +42,8 @@ import de.schildbach.wallet.ui.InputParser.StringInputParser;
 import de.schildbach.wallet.ui.preference.PreferenceActivity;
 import de.schildbach.wallet.ui.send.SendCoinsActivity;
 import de.schildbach.wallet.ui.send.SweepWalletActivity;
+import de.schildbach.wallet.util.BackupFileIndex;
 import de.schildbach.wallet.util.CrashReporter;
-import de.schildbach.wallet.util.Crypto;
-import de.schildbach.wallet.util.Io;
 import de.schildbach.wallet.util.Nfc;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
@@ -70,6 +65,8 @@ import android.nfc.NfcAdapter;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.text.format.DateUtils;
@@ -97,6 +94,8 @@ public final class WalletActivity extends AbstractBindServiceActivity
     private Wallet wallet;
 
     private Handler handler = new Handler();
+    private HandlerThread backgroundThread;
+    private Handler backgroundHandler;
 
     private static final int REQUEST_CODE_SCAN = 0;
     private static final int REQUEST_CODE_BACKUP_WALLET = 1;
@@ -106,6 +105,10 @@ public final class WalletActivity extends AbstractBindServiceActivity
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        backgroundThread = new HandlerThread("backgroundThread", Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+
         application = getWalletApplication();
         config = application.getConfiguration();
         wallet = application.getWallet();
@@ -163,6 +166,13 @@ public final class WalletActivity extends AbstractBindServiceActivity
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        backgroundThread.getLooper().quit();
+
+        super.onDestroy();
+    }
+
     @Override
     protected void onNewIntent(final Intent intent) {
         handleIntent(intent);
@@ -459,11 +469,12 @@ public final class WalletActivity extends AbstractBindServiceActivity
                 final String password = passwordView.getText().toString().trim();
                 passwordView.setText(null); // get rid of it asap
 
-                if (WalletUtils.BACKUP_FILE_FILTER.accept(file))
+                final BackupFileIndex.Type type = application.getBackupFileIndex().get(file);
+                if (type == BackupFileIndex.Type.PROTOBUF)
                     restoreWalletFromProtobuf(file);
-                else if (WalletUtils.KEYS_FILE_FILTER.accept(file))
+                else if (type == BackupFileIndex.Type.KEYS)
                     restorePrivateKeysFromBase58(file);
-                else if (Crypto.OPENSSL_FILE_FILTER.accept(file))
+                else if (type == BackupFileIndex.Type.ENCRYPTED)
                     restoreWalletFromEncrypted(file, password);
             }
         });
@@ -485,7 +496,8 @@ public final class WalletActivity extends AbstractBindServiceActivity
             public View getDropDownView(final int position, View row, final ViewGroup parent) {
                 final File file = getItem(position);
                 final boolean isExternal = Constants.Files.EXTERNAL_WALLET_BACKUP_DIR.equals(file.getParentFile());
-                final boolean isEncrypted = Crypto.OPENSSL_FILE_FILTER.accept(file);
+                final boolean isEncrypted = application.getBackupFileIndex()
+                        .get(file) == BackupFileIndex.Type.ENCRYPTED;
 
                 if (row == null)
                     row = inflater.inflate(R.layout.restore_wallet_file_row, null);
@@ -526,20 +538,33 @@ public final class WalletActivity extends AbstractBindServiceActivity
         else
             path = backupPath;
 
-        final List<File> files = new LinkedList<File>();
+        final List<File> candidates = new LinkedList<File>();
 
         // external storage
         final File[] externalFiles = Constants.Files.EXTERNAL_WALLET_BACKUP_DIR.listFiles();
         if (externalFiles != null)
-            for (final File file : externalFiles)
-                if (Crypto.OPENSSL_FILE_FILTER.accept(file))
-                    files.add(file);
+            candidates.addAll(Arrays.asList(externalFiles));
 
         // internal storage
         for (final String filename : fileList())
             if (filename.startsWith(Constants.Files.WALLET_KEY_BACKUP_PROTOBUF + '.'))
-                files.add(new File(getFilesDir(), filename));
+                candidates.add(new File(getFilesDir(), filename));
 
+        // classify off the main thread, only encrypted files are offered from external storage
+        application.getBackupFileIndex().scan(candidates, handler, new BackupFileIndex.Callback() {
+            @Override
+            public void onScanned(final Map<File, BackupFileIndex.Type> types) {
+                final List<File> files = new LinkedList<File>();
+                for (final File file : candidates)
+                    if (!Constants.Files.EXTERNAL_WALLET_BACKUP_DIR.equals(file.getParentFile())
+                            || types.get(file) == BackupFileIndex.Type.ENCRYPTED)
+                        files.add(file);
+                updateRestoreWalletDialog(alertDialog, path, files);
+            }
+        });
+    }
+
+    private void updateRestoreWalletDialog(final AlertDialog alertDialog, final String path, final List<File> files) {
         // sort
         Collections.sort(files, new Comparator<File>() {
             @Override
@@ -581,7 +606,8 @@ public final class WalletActivity extends AbstractBindServiceActivity
             @Override
             protected boolean needsPassword() {
                 final File selectedFile = (File) fileView.getSelectedItem();
-                return selectedFile != null ? Crypto.OPENSSL_FILE_FILTER.accept(selectedFile) : false;
+                return selectedFile != null
+                        ? application.getBackupFileIndex().get(selectedFile) == BackupFileIndex.Type.ENCRYPTED : false;
             }
         };
         passwordView.addTextChangedListener(dialogButtonEnabler);
@@ -639,33 +665,44 @@ public final class WalletActivity extends AbstractBindServiceActivity
     }
 
     private void restoreWalletFromEncrypted(final File file, final String password) {
-        try {
-            final BufferedReader cipherIn = new BufferedReader(
-                    new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
-            final StringBuilder cipherText = new StringBuilder();
-            Io.copy(cipherIn, cipherText, Constants.BACKUP_MAX_CHARS);
-            cipherIn.close();
+        ProgressDialogFragment.showProgress(getFragmentManager(), getString(R.string.restore_wallet_dialog_progress));
 
-            final byte[] plainText = Crypto.decryptBytes(cipherText.toString(), password.toCharArray());
-            final InputStream is = new ByteArrayInputStream(plainText);
+        new RestoreWalletFromEncryptedTask(backgroundHandler) {
+            @Override
+            protected void onSuccess(final Wallet restoredWallet) {
+                ProgressDialogFragment.dismissProgress(getFragmentManager());
 
-            restoreWallet(WalletUtils.restoreWalletFromProtobufOrBase58(is, Constants.NETWORK_PARAMETERS));
+                try {
+                    restoreWallet(restoredWallet);
 
-            log.info("successfully restored encrypted wallet: {}", file);
-        } catch (final IOException x) {
-            final DialogBuilder dialog = DialogBuilder.warn(this, R.string.import_export_keys_dialog_failure_title);
-            dialog.setMessage(getString(R.string.import_keys_dialog_failure, x.getMessage()));
-            dialog.setPositiveButton(R.string.button_dismiss, null);
-            dialog.setNegativeButton(R.string.button_retry, new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(final DialogInterface dialog, final int id) {
-                    showDialog(DIALOG_RESTORE_WALLET);
+                    log.info("successfully restored encrypted wallet: {}", file);
+                } catch (final IOException x) {
+                    restoreWalletFromEncryptedFailed(file, x);
                 }
-            });
-            dialog.show();
+            }
 
-            log.info("problem restoring wallet: " + file, x);
-        }
+            @Override
+            protected void onFailure(final IOException x) {
+                ProgressDialogFragment.dismissProgress(getFragmentManager());
+
+                restoreWalletFromEncryptedFailed(file, x);
+            }
+        }.restoreWallet(file, password);
+    }
+
+    private void restoreWalletFromEncryptedFailed(final File file, final IOException x) {
+        final DialogBuilder dialog = DialogBuilder.warn(this, R.string.import_export_keys_dialog_failure_title);
+        dialog.setMessage(getString(R.string.import_keys_dialog_failure, x.getMessage()));
+        dialog.setPositiveButton(R.string.button_dismiss, null);
+        dialog.setNegativeButton(R.string.button_retry, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(final DialogInterface dialog, final int id) {
+                showDialog(DIALOG_RESTORE_WALLET);
+            }
+        });
+        dialog.show();
+
+        log.info("problem restoring wallet: " + file, x);
     }
 
     private void restoreWalletFromProtobuf(final File file) {
@@ -25,7 +25,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.schildbach.wallet.Constants;
-import de.schildbach.wallet.util.Qr;
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.util.QrBitmapCache;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
 
@@ -33,6 +34,7 @@ import android.app.Activity;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.FragmentManager;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.support.v4.app.ShareCompat;
@@ -90,10 +92,15 @@ public class WalletAddressDialogFragment extends DialogFragment {
         dialog.setCanceledOnTouchOutside(true);
 
         final String uri = BitcoinURI.convertToBitcoinURI(address, null, addressLabel, null);
-        final BitmapDrawable bitmap = new BitmapDrawable(getResources(), Qr.bitmap(uri));
-        bitmap.setFilterBitmap(false);
         final ImageView imageView = (ImageView) dialog.findViewById(R.id.wallet_address_dialog_image);
-        imageView.setImageDrawable(bitmap);
+        ((WalletApplication) activity.getApplication()).getQrBitmapCache().render(uri, new QrBitmapCache.Callback() {
+            @Override
+            public void onBitmap(final String content, final Bitmap bitmap) {
+                final BitmapDrawable drawable = new BitmapDrawable(activity.getResources(), bitmap);
+                drawable.setFilterBitmap(false);
+                imageView.setImageDrawable(drawable);
+            }
+        });
 
         final View labelButtonView = dialog.findViewById(R.id.wallet_address_dialog_label_button);
         final TextView labelView = (TextView) dialog.findViewById(R.id.wallet_address_dialog_label);
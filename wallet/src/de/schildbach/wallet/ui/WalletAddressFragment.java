@@ -24,7 +24,6 @@ import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.uri.BitcoinURI;
-import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,8 +31,9 @@ import org.slf4j.LoggerFactory;
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.util.Qr;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+import de.schildbach.wallet.data.WalletObserver;
+import de.schildbach.wallet.data.WalletSnapshot;
+import de.schildbach.wallet.util.QrBitmapCache;
 import de.schildbach.wallet.R;
 
 import android.app.Activity;
@@ -48,6 +48,7 @@ import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.nfc.NdefMessage;
@@ -150,6 +151,7 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
 
     public static class CurrentAddressLoader extends AsyncTaskLoader<Address> {
         private LocalBroadcastManager broadcastManager;
+        private final WalletObserver walletObserver;
         private final Wallet wallet;
         private Configuration config;
 
@@ -159,6 +161,7 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
             super(context);
 
             this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
+            this.walletObserver = ((WalletApplication) context.getApplicationContext()).getWalletObserver();
             this.wallet = wallet;
             this.config = config;
         }
@@ -167,11 +170,10 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
         protected void onStartLoading() {
             super.onStartLoading();
 
-            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletChangeListener);
-            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletChangeListener);
-            wallet.addChangeEventListener(Threading.SAME_THREAD, walletChangeListener);
             broadcastManager.registerReceiver(walletChangeReceiver,
                     new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
+            lastSnapshot = null;
+            walletObserver.addListener(walletChangeListener);
             config.registerOnSharedPreferenceChangeListener(preferenceChangeListener);
 
             safeForceLoad();
@@ -180,11 +182,8 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
         @Override
         protected void onStopLoading() {
             config.unregisterOnSharedPreferenceChangeListener(preferenceChangeListener);
+            walletObserver.removeListener(walletChangeListener);
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(walletChangeListener);
-            wallet.removeCoinsSentEventListener(walletChangeListener);
-            wallet.removeCoinsReceivedEventListener(walletChangeListener);
-            walletChangeListener.removeCallbacks();
 
             super.onStopLoading();
         }
@@ -192,11 +191,8 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
         @Override
         protected void onReset() {
             config.unregisterOnSharedPreferenceChangeListener(preferenceChangeListener);
+            walletObserver.removeListener(walletChangeListener);
             broadcastManager.unregisterReceiver(walletChangeReceiver);
-            wallet.removeChangeEventListener(walletChangeListener);
-            wallet.removeCoinsSentEventListener(walletChangeListener);
-            wallet.removeCoinsReceivedEventListener(walletChangeListener);
-            walletChangeListener.removeCallbacks();
 
             super.onReset();
         }
@@ -208,10 +204,17 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
             return wallet.currentReceiveAddress();
         }
 
-        private final ThrottlingWalletChangeListener walletChangeListener = new ThrottlingWalletChangeListener() {
+        @Nullable
+        private WalletSnapshot lastSnapshot;
+
+        private final WalletObserver.Listener walletChangeListener = new WalletObserver.Listener() {
             @Override
-            public void onThrottledWalletChanged() {
-                safeForceLoad();
+            public void onWalletChanged(final WalletSnapshot snapshot) {
+                // current address can only change by coins moving or keys being added
+                if (lastSnapshot != null && (snapshot.transactionsVersion != lastSnapshot.transactionsVersion
+                        || snapshot.keysVersion != lastSnapshot.keysVersion))
+                    safeForceLoad();
+                lastSnapshot = snapshot;
             }
         };
 
@@ -253,12 +256,20 @@ public final class WalletAddressFragment extends Fragment implements NfcAdapter.
                 final String addressStr = BitcoinURI.convertToBitcoinURI(currentAddressQrAddress.address, null,
                         currentAddressQrAddress.label, null);
 
-                currentAddressQrBitmap = new BitmapDrawable(getResources(), Qr.bitmap(addressStr));
-                currentAddressQrBitmap.setFilterBitmap(false);
-
                 currentAddressUriRef.set(addressStr);
 
-                updateView();
+                application.getQrBitmapCache().render(addressStr, new QrBitmapCache.Callback() {
+                    @Override
+                    public void onBitmap(final String content, final Bitmap bitmap) {
+                        // drop if address has changed in the meantime
+                        if (!isAdded() || !content.equals(currentAddressUriRef.get()))
+                            return;
+
+                        currentAddressQrBitmap = new BitmapDrawable(getResources(), bitmap);
+                        currentAddressQrBitmap.setFilterBitmap(false);
+                        updateView();
+                    }
+                });
             }
         }
 
@@ -24,9 +24,7 @@ import java.util.List;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.uri.BitcoinURI;
-import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
-import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +32,8 @@ import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.data.WalletObserver;
+import de.schildbach.wallet.data.WalletSnapshot;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.Qr;
 import de.schildbach.wallet.util.Toast;
@@ -112,15 +112,15 @@ public final class WalletAddressesFragment extends FancyListFragment {
         contentResolver.registerContentObserver(AddressBookProvider.contentUri(activity.getPackageName()), true,
                 contentObserver);
 
-        wallet.addKeyChainEventListener(Threading.SAME_THREAD, walletListener);
-        walletListener.onKeysAdded(null); // trigger initial load of keys
+        lastKeysVersion = -1;
+        application.getWalletObserver().addListener(walletListener); // triggers initial load of keys
 
         updateView();
     }
 
     @Override
     public void onPause() {
-        wallet.removeKeyChainEventListener(walletListener);
+        application.getWalletObserver().removeListener(walletListener);
 
         contentResolver.unregisterContentObserver(contentObserver);
 
@@ -236,9 +236,15 @@ public final class WalletAddressesFragment extends FancyListFragment {
         }
     };
 
-    private final KeyChainEventListener walletListener = new KeyChainEventListener() {
+    private long lastKeysVersion;
+
+    private final WalletObserver.Listener walletListener = new WalletObserver.Listener() {
         @Override
-        public void onKeysAdded(final List<ECKey> keysAdded) {
+        public void onWalletChanged(final WalletSnapshot snapshot) {
+            if (snapshot.keysVersion == lastKeysVersion)
+                return;
+            lastKeysVersion = snapshot.keysVersion;
+
             final List<ECKey> derivedKeys = wallet.getIssuedReceiveKeys();
             final List<ECKey> randomKeys = wallet.getImportedKeys();
 
@@ -258,13 +264,8 @@ public final class WalletAddressesFragment extends FancyListFragment {
                 }
             });
 
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    adapter.replaceDerivedKeys(derivedKeys);
-                    adapter.replaceRandomKeys(randomKeys);
-                }
-            });
+            adapter.replaceDerivedKeys(derivedKeys);
+            adapter.replaceRandomKeys(randomKeys);
         }
     };
 }
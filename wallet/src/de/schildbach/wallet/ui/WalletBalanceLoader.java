@@ -20,7 +20,6 @@ package de.schildbach.wallet.ui;
 import java.util.concurrent.RejectedExecutionException;
 
 import org.bitcoinj.core.Coin;
-import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.slf4j.Logger;
@@ -28,7 +27,8 @@ import org.slf4j.LoggerFactory;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
+import de.schildbach.wallet.data.WalletObserver;
+import de.schildbach.wallet.data.WalletSnapshot;
 
 import android.content.AsyncTaskLoader;
 import android.content.BroadcastReceiver;
@@ -42,6 +42,7 @@ import android.support.v4.content.LocalBroadcastManager;
  */
 public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
     private LocalBroadcastManager broadcastManager;
+    private final WalletObserver walletObserver;
     private final Wallet wallet;
 
     private static final Logger log = LoggerFactory.getLogger(WalletBalanceLoader.class);
@@ -50,6 +51,7 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
         super(context);
 
         this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
+        this.walletObserver = ((WalletApplication) context.getApplicationContext()).getWalletObserver();
         this.wallet = wallet;
     }
 
@@ -57,33 +59,23 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
     protected void onStartLoading() {
         super.onStartLoading();
 
-        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletChangeListener);
-        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletChangeListener);
-        wallet.addChangeEventListener(Threading.SAME_THREAD, walletChangeListener);
         broadcastManager.registerReceiver(walletChangeReceiver,
                 new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
-
-        safeForceLoad();
+        walletObserver.addListener(walletChangeListener); // delivers at least one snapshot
     }
 
     @Override
     protected void onStopLoading() {
+        walletObserver.removeListener(walletChangeListener);
         broadcastManager.unregisterReceiver(walletChangeReceiver);
-        wallet.removeChangeEventListener(walletChangeListener);
-        wallet.removeCoinsSentEventListener(walletChangeListener);
-        wallet.removeCoinsReceivedEventListener(walletChangeListener);
-        walletChangeListener.removeCallbacks();
 
         super.onStopLoading();
     }
 
     @Override
     protected void onReset() {
+        walletObserver.removeListener(walletChangeListener);
         broadcastManager.unregisterReceiver(walletChangeReceiver);
-        wallet.removeChangeEventListener(walletChangeListener);
-        wallet.removeCoinsSentEventListener(walletChangeListener);
-        wallet.removeCoinsReceivedEventListener(walletChangeListener);
-        walletChangeListener.removeCallbacks();
 
         super.onReset();
     }
@@ -92,13 +84,13 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<Coin> {
     public Coin loadInBackground() {
         org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
-        return wallet.getBalance(BalanceType.ESTIMATED);
+        return walletObserver.getBalance(BalanceType.ESTIMATED);
     }
 
-    private final ThrottlingWalletChangeListener walletChangeListener = new ThrottlingWalletChangeListener() {
+    private final WalletObserver.Listener walletChangeListener = new WalletObserver.Listener() {
         @Override
-        public void onThrottledWalletChanged() {
-            safeForceLoad();
+        public void onWalletChanged(final WalletSnapshot snapshot) {
+            deliverResult(snapshot.getBalance(BalanceType.ESTIMATED));
         }
     };
 
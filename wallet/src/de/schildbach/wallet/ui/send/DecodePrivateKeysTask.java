@@ -0,0 +1,254 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.crypto.BIP38PrivateKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.NativeScrypt;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Decrypts many BIP38 private keys with the same passphrase, spread across all cores.
+ *
+ * BIP38 uses scrypt with N=16384, r=8 and p=8, so each key needs 16 MiB of scratch memory per lane that runs in
+ * parallel. Native scrypt runs lanes in parallel by itself, which is used for getting few keys done quickly. For many
+ * keys, each key is decrypted by a single thread instead, as that avoids synchronizing the lanes. Either way, the
+ * scratch memory stays within the given limit.
+ *
+ * The task can be cancelled. Keys that haven't been started on yet are skipped then, but as scrypt can't be
+ * interrupted, keys in progress are decrypted until done.
+ *
+ * @author Andreas Schildbach
+ */
+public abstract class DecodePrivateKeysTask {
+    private final Handler backgroundHandler;
+    private final Handler callbackHandler;
+    private final long maxMemory;
+    private volatile boolean cancelled = false;
+
+    private static final int BIP38_LANES = 8;
+    private static final long BIP38_LANE_MEMORY = 128L * 8 * 16384;
+
+    private static final Logger log = LoggerFactory.getLogger(DecodePrivateKeysTask.class);
+
+    /**
+     * @param maxMemory
+     *            upper bound of scratch memory used by all decryptions in parallel, in bytes
+     */
+    public DecodePrivateKeysTask(final Handler backgroundHandler, final long maxMemory) {
+        this.backgroundHandler = backgroundHandler;
+        this.callbackHandler = new Handler(Looper.myLooper());
+        this.maxMemory = maxMemory;
+    }
+
+    public final void decodePrivateKeys(final List<BIP38PrivateKey> encryptedKeys, final String passphrase) {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int numKeys = encryptedKeys.size();
+                final Plan plan = Plan.of(numKeys, Runtime.getRuntime().availableProcessors(),
+                        NativeScrypt.isAvailable(), maxMemory);
+                final ExecutorService executor = Executors.newFixedThreadPool(plan.keyThreads,
+                        new ThreadFactoryBuilder().setNameFormat("decode-private-key-%d").setDaemon(true).build());
+                final AtomicInteger numDecoded = new AtomicInteger();
+                final Stopwatch watch = Stopwatch.createStarted();
+
+                final List<Future<ECKey>> futures = new ArrayList<>(numKeys);
+                for (int i = 0; i < numKeys; i++) {
+                    final int index = i;
+                    final BIP38PrivateKey encryptedKey = encryptedKeys.get(i);
+                    futures.add(executor.submit(new Callable<ECKey>() {
+                        @Override
+                        @Nullable
+                        public ECKey call() {
+                            if (cancelled)
+                                return null;
+
+                            org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+                            NativeScrypt.limitThreads(plan.lanesPerKey);
+
+                            ECKey decryptedKey = null;
+                            try {
+                                decryptedKey = encryptedKey.decrypt(passphrase); // takes time
+                                return decryptedKey;
+                            } catch (final BIP38PrivateKey.BadPassphraseException x) {
+                                return null;
+                            } finally {
+                                final ECKey keyToReport = decryptedKey;
+                                final int decoded = numDecoded.incrementAndGet();
+                                callbackHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (cancelled)
+                                            return;
+                                        onKeyDecoded(index, keyToReport);
+                                        onProgress(decoded, numKeys);
+                                    }
+                                });
+                            }
+                        }
+                    }));
+                }
+
+                final List<ECKey> decryptedKeys = new ArrayList<>(numKeys);
+                final List<BIP38PrivateKey> badPassphraseKeys = new ArrayList<>();
+                Exception failure = null;
+                try {
+                    for (int i = 0; i < numKeys; i++) {
+                        final ECKey decryptedKey = futures.get(i).get();
+                        if (decryptedKey != null)
+                            decryptedKeys.add(decryptedKey);
+                        else
+                            badPassphraseKeys.add(encryptedKeys.get(i));
+                    }
+                } catch (final InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    failure = x;
+                } catch (final ExecutionException x) {
+                    final Throwable cause = x.getCause();
+                    failure = cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+                } finally {
+                    executor.shutdownNow();
+                    // the batch leaves lots of pooled scratch memory behind
+                    NativeScrypt.trimMemory();
+                }
+
+                watch.stop();
+                if (failure != null)
+                    log.info("failed after " + numDecoded.get() + " of " + numKeys + " BIP38 private keys", failure);
+                else
+                    log.info("{} {} of {} BIP38 private keys using {}, took {}",
+                            cancelled ? "cancelled after" : "decoded", numDecoded.get(), numKeys, plan, watch);
+
+                final Exception finalFailure = failure;
+                callbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cancelled)
+                            onCancelled();
+                        else if (finalFailure != null)
+                            onFailure(finalFailure);
+                        else
+                            onResult(decryptedKeys, badPassphraseKeys);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Skips keys not started on yet. Neither progress nor result is reported after calling this, only
+     * {@link #onCancelled()}. Must be called on the thread that created the task.
+     */
+    public final void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Called for each key as soon as it is done, in no particular order.
+     *
+     * @param key
+     *            the decrypted key, or null if the passphrase doesn't fit
+     */
+    protected void onKeyDecoded(final int index, @Nullable final ECKey key) {
+    }
+
+    protected abstract void onProgress(int numDecoded, int numKeys);
+
+    protected abstract void onResult(List<ECKey> decryptedKeys, List<BIP38PrivateKey> badPassphraseKeys);
+
+    /**
+     * Called instead of {@link #onResult(List, List)} if decrypting failed for another reason than a bad passphrase,
+     * or the task was interrupted.
+     */
+    protected abstract void onFailure(Exception exception);
+
+    protected void onCancelled() {
+    }
+
+    static final class Plan {
+        /** number of keys decrypted side by side */
+        public final int keyThreads;
+        /** number of scrypt lanes each of these keys runs in parallel */
+        public final int lanesPerKey;
+
+        public Plan(final int keyThreads, final int lanesPerKey) {
+            this.keyThreads = keyThreads;
+            this.lanesPerKey = lanesPerKey;
+        }
+
+        /**
+         * @param parallelLanes
+         *            if scrypt can run the lanes of one key in parallel
+         */
+        public static Plan of(final int numKeys, final int cores, final boolean parallelLanes, final long maxMemory) {
+            int lanes = 1;
+            if (parallelLanes && numKeys < cores)
+                lanes = Math.min(BIP38_LANES, cores / Math.max(numKeys, 1));
+            int threads = Math.max(1, Math.min(numKeys, cores / lanes));
+
+            while (threads * lanes * BIP38_LANE_MEMORY > maxMemory && (threads > 1 || lanes > 1)) {
+                if (lanes > 1)
+                    lanes--;
+                else
+                    threads--;
+            }
+            return new Plan(threads, lanes);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            final Plan other = (Plan) o;
+            return keyThreads == other.keyThreads && lanesPerKey == other.lanesPerKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return keyThreads * 31 + lanesPerKey;
+        }
+
+        @Override
+        public String toString() {
+            return keyThreads + " threads, " + lanesPerKey + " lanes each";
+        }
+    }
+}
@@ -20,15 +20,19 @@ package de.schildbach.wallet.ui.send;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.crypto.KeyCrypter;
 import org.bitcoinj.crypto.KeyCrypterException;
 import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.wallet.Protos.ScryptParameters;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.ScryptCalibration;
 
 import android.os.Handler;
 import android.os.Looper;
@@ -39,14 +43,37 @@ import android.os.Looper;
 public abstract class DeriveKeyTask {
     private final Handler backgroundHandler;
     private final Handler callbackHandler;
-    private final int scryptIterationsTarget;
+    private final ScryptCalibration.Params scryptTarget;
+    @Nullable
+    private final SpendingKeyCache keyCache;
+    @Nullable
+    private final SpeculativeKeyDerivation speculation;
 
     private static final Logger log = LoggerFactory.getLogger(DeriveKeyTask.class);
 
-    public DeriveKeyTask(final Handler backgroundHandler, final int scryptIterationsTarget) {
+    public DeriveKeyTask(final Handler backgroundHandler, final ScryptCalibration.Params scryptTarget) {
+        this(backgroundHandler, scryptTarget, null, null);
+    }
+
+    public DeriveKeyTask(final Handler backgroundHandler, final ScryptCalibration.Params scryptTarget,
+            @Nullable final SpendingKeyCache keyCache) {
+        this(backgroundHandler, scryptTarget, keyCache, null);
+    }
+
+    /**
+     * @param keyCache
+     *            if not null, a key cached for the same password is used instead of deriving it again, and a freshly
+     *            derived key is put into the cache
+     * @param speculation
+     *            if not null, a key it has already derived for the same password is used instead of deriving it again
+     */
+    public DeriveKeyTask(final Handler backgroundHandler, final ScryptCalibration.Params scryptTarget,
+            @Nullable final SpendingKeyCache keyCache, @Nullable final SpeculativeKeyDerivation speculation) {
         this.backgroundHandler = backgroundHandler;
         this.callbackHandler = new Handler(Looper.myLooper());
-        this.scryptIterationsTarget = scryptIterationsTarget;
+        this.scryptTarget = scryptTarget;
+        this.keyCache = keyCache;
+        this.speculation = speculation;
     }
 
     public final void deriveKey(final Wallet wallet, final String password) {
@@ -58,19 +85,35 @@ public abstract class DeriveKeyTask {
             public void run() {
                 org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
-                // Key derivation takes time.
-                KeyParameter key = keyCrypter.deriveKey(password);
+                // Skip derivation if the key is still cached.
+                final KeyParameter cachedKey = keyCache != null ? keyCache.get(keyCrypter, password) : null;
+                if (cachedKey != null && wallet.checkAESKey(cachedKey)) {
+                    log.info("using cached key");
+                    callbackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSuccess(cachedKey, false);
+                        }
+                    });
+                    return;
+                }
+
+                // Key derivation takes time, unless it was done while the password was typed.
+                final KeyParameter speculatedKey = speculation != null ? speculation.take(keyCrypter, password) : null;
+                KeyParameter key = speculatedKey != null ? speculatedKey : keyCrypter.deriveKey(password);
                 boolean wasChanged = false;
 
-                // If the key isn't derived using the desired parameters, derive a new key.
+                // If the key is derived using different parameters that aren't stronger, derive a new key.
                 if (keyCrypter instanceof KeyCrypterScrypt) {
-                    final long scryptIterations = ((KeyCrypterScrypt) keyCrypter).getScryptParameters().getN();
+                    final ScryptParameters scryptParameters = ((KeyCrypterScrypt) keyCrypter)
+                            .getScryptParameters();
 
-                    if (scryptIterations != scryptIterationsTarget) {
-                        log.info("upgrading scrypt iterations from {} to {}; re-encrypting wallet", scryptIterations,
-                                scryptIterationsTarget);
+                    if (scryptTarget.shouldReplace((KeyCrypterScrypt) keyCrypter)) {
+                        log.info("changing scrypt parameters from N={},r={},p={} to {}; re-encrypting wallet",
+                                scryptParameters.getN(), scryptParameters.getR(), scryptParameters.getP(),
+                                scryptTarget);
 
-                        final KeyCrypterScrypt newKeyCrypter = new KeyCrypterScrypt(scryptIterationsTarget);
+                        final KeyCrypterScrypt newKeyCrypter = scryptTarget.newKeyCrypter();
                         final KeyParameter newKey = newKeyCrypter.deriveKey(password);
 
                         // Re-encrypt wallet with new key.
@@ -78,13 +121,17 @@ public abstract class DeriveKeyTask {
                             wallet.changeEncryptionKey(newKeyCrypter, key, newKey);
                             key = newKey;
                             wasChanged = true;
-                            log.info("scrypt upgrade succeeded");
+                            log.info("scrypt change succeeded");
                         } catch (final KeyCrypterException x) {
-                            log.info("scrypt upgrade failed: {}", x.getMessage());
+                            log.info("scrypt change failed: {}", x.getMessage());
                         }
                     }
                 }
 
+                // Only remember a key that actually decrypts the wallet.
+                if (keyCache != null && wallet.checkAESKey(key))
+                    keyCache.put(checkNotNull(wallet.getKeyCrypter()), password, key);
+
                 // Hand back the (possibly changed) encryption key.
                 final KeyParameter keyToReturn = key;
                 final boolean keyToReturnWasChanged = wasChanged;
@@ -0,0 +1,551 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+import com.squareup.moshi.Moshi;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Client for the Electrum JSON-RPC protocol. Connections are pooled per server and kept alive between calls. A
+ * connection that stays idle for longer than the keep-alive time is closed in the background.
+ * Concurrent calls to the same server share one connection: requests are pipelined and responses are matched by their
+ * id. Many calls of the same method can be sent as one JSON-RPC batch.
+ *
+ * Responses are parsed straight off the socket, so a parser sees each result as it arrives and decides what to keep.
+ * Servers may send the result before the id. Such a result is streamed through the parser that all waiting calls have
+ * in common; calls should therefore share one parser instance where they can. Otherwise the result has to be read
+ * into memory as a whole before the right parser is known.
+ *
+ * Failed calls are retried once on a fresh connection. Errors reported by the server and certificate mismatches are not
+ * retried. Neither are calls whose thread got interrupted; they give up right away, without disturbing other calls on
+ * the same connection.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ElectrumClient implements Closeable {
+    public interface ResultParser<T> {
+        /** reads the value of the {@code result} member; must bound what it keeps, as results can be huge */
+        T parse(JsonReader reader) throws IOException;
+    }
+
+    public static class ServerErrorException extends IOException {
+        public ServerErrorException(final String message) {
+            super(message);
+        }
+    }
+
+    /** the server presented a certificate other than the one expected */
+    public static class CertificateMismatchException extends SSLHandshakeException {
+        public CertificateMismatchException(final String message) {
+            super(message);
+        }
+    }
+
+    private final long timeoutMs;
+    private final long keepAliveMs;
+    private final ConcurrentMap<ElectrumServer, Connection> connections =
+            new ConcurrentHashMap<ElectrumServer, Connection>();
+    private final ConcurrentMap<ElectrumServer, Object> connectLocks = new ConcurrentHashMap<ElectrumServer, Object>();
+    private final AtomicInteger idCounter = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor reaper;
+
+    private static final int MAX_ATTEMPTS = 2;
+    private static final JsonAdapter<Object> JSON_VALUE_ADAPTER = new Moshi.Builder().build().adapter(Object.class);
+
+    private static final Logger log = LoggerFactory.getLogger(ElectrumClient.class);
+
+    public ElectrumClient(final long timeoutMs, final long keepAliveMs) {
+        this.timeoutMs = timeoutMs;
+        this.keepAliveMs = keepAliveMs;
+        this.reaper = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("electrum-reaper-%d").setDaemon(true).build());
+        // the thread only lingers while connections are open
+        this.reaper.setKeepAliveTime(1, TimeUnit.SECONDS);
+        this.reaper.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> T call(final ElectrumServer server, final String method, final ResultParser<T> parser,
+            final String... params) throws IOException {
+        final List<String[]> paramsList = Collections.singletonList(params);
+        return batch(server, method, Collections.singletonList(parser), paramsList).get(0);
+    }
+
+    /**
+     * Calls the same method once for each of the given parameter lists, as one JSON-RPC batch. Each result is read by
+     * the parser at the same position. Results are returned in the order of the parameter lists.
+     */
+    public <T> List<T> batch(final ElectrumServer server, final String method,
+            final List<? extends ResultParser<T>> parsers, final List<String[]> paramsList) throws IOException {
+        checkArgument(parsers.size() == paramsList.size(), "need one parser per call");
+        IOException lastException = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Connection connection = null;
+            try {
+                connection = connection(server);
+                return connection.batch(method, parsers, paramsList);
+            } catch (final ServerErrorException | CertificateMismatchException x) {
+                throw x;
+            } catch (final IOException x) {
+                if (x instanceof InterruptedIOException && !(x instanceof SocketTimeoutException))
+                    throw x; // interrupted
+                log.info("call to {} failed (attempt {}): {}", server, attempt + 1, x.getMessage());
+                if (connection != null)
+                    connection.close();
+                lastException = x;
+            }
+        }
+        throw lastException;
+    }
+
+    private Connection connection(final ElectrumServer server) throws IOException {
+        final Connection connection = connections.get(server);
+        if (connection != null && connection.isUsable())
+            return connection;
+
+        // connecting can take a while, so only calls to the same server wait for each other
+        connectLocks.putIfAbsent(server, new Object());
+        synchronized (connectLocks.get(server)) {
+            final Connection existingConnection = connections.get(server);
+            if (existingConnection != null && existingConnection.isUsable())
+                return existingConnection;
+            if (existingConnection != null)
+                existingConnection.close();
+
+            final Connection newConnection = new Connection(server, connect(server));
+            connections.put(server, newConnection);
+            return newConnection;
+        }
+    }
+
+    public int numConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        for (final Connection connection : new ArrayList<Connection>(connections.values()))
+            connection.close();
+    }
+
+    private Socket connect(final ElectrumServer server) throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(server.socketAddress.getHostName(),
+                server.socketAddress.getPort());
+        final Socket socket;
+        if (server.type == ElectrumServer.Type.TLS) {
+            final Socket plainSocket = new Socket();
+            plainSocket.connect(address, (int) timeoutMs);
+            socket = sslTrustAllCertificates().createSocket(plainSocket, address.getHostName(), address.getPort(),
+                    true);
+            socket.setSoTimeout((int) timeoutMs);
+            final SSLSocket sslSocket = (SSLSocket) socket;
+            try {
+                sslSocket.startHandshake();
+                verifyCertificate(server, sslSocket.getSession());
+            } catch (final IOException x) {
+                socket.close();
+                throw x;
+            }
+            socket.setSoTimeout(0);
+        } else if (server.type == ElectrumServer.Type.TCP) {
+            socket = new Socket();
+            socket.connect(address, (int) timeoutMs);
+        } else {
+            throw new IllegalStateException("Cannot handle: " + server.type);
+        }
+        socket.setKeepAlive(true);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private static void verifyCertificate(final ElectrumServer server, final SSLSession sslSession)
+            throws IOException {
+        final Certificate certificate = sslSession.getPeerCertificates()[0];
+        final String certificateFingerprint = sslCertificateFingerprint(certificate);
+        if (server.certificateFingerprint == null) {
+            // signed by CA
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(server.socketAddress.getHostName(),
+                    sslSession))
+                throw new CertificateMismatchException(
+                        "Expected " + server.socketAddress.getHostName() + ", got " + sslSession.getPeerPrincipal());
+        } else {
+            // self-signed
+            if (!certificateFingerprint.equals(server.certificateFingerprint))
+                throw new CertificateMismatchException(
+                        "Expected " + server.certificateFingerprint + ", got " + certificateFingerprint);
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final ElectrumServer server;
+        private final Socket socket;
+        private final BufferedSink sink;
+        private final BufferedSource source;
+        private final Map<Integer, PendingCall<?>> pendingCalls = new ConcurrentHashMap<Integer, PendingCall<?>>();
+        private volatile boolean closed = false;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private final Runnable reapIfIdle = new Runnable() {
+            @Override
+            public void run() {
+                if (closed)
+                    return;
+                final long idleMs = System.currentTimeMillis() - lastUsed;
+                if (pendingCalls.isEmpty() && idleMs >= keepAliveMs) {
+                    log.info("closing idle connection to {}", server);
+                    close();
+                } else {
+                    reaper.schedule(this, idleMs < keepAliveMs ? keepAliveMs - idleMs : keepAliveMs,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        };
+
+        public Connection(final ElectrumServer server, final Socket socket) throws IOException {
+            this.server = server;
+            this.socket = socket;
+            this.sink = Okio.buffer(Okio.sink(socket));
+            this.sink.timeout().timeout(timeoutMs, TimeUnit.MILLISECONDS);
+            this.source = Okio.buffer(Okio.source(socket));
+
+            final Thread readerThread = new Thread(this, "electrum " + server);
+            readerThread.setDaemon(true);
+            readerThread.start();
+            reaper.schedule(reapIfIdle, keepAliveMs, TimeUnit.MILLISECONDS);
+            log.info("connected to {}", server);
+        }
+
+        public boolean isUsable() {
+            return !closed && System.currentTimeMillis() - lastUsed < keepAliveMs;
+        }
+
+        public <T> List<T> batch(final String method, final List<? extends ResultParser<T>> parsers,
+                final List<String[]> paramsList) throws IOException {
+            lastUsed = System.currentTimeMillis();
+
+            final List<PendingCall<T>> calls = new ArrayList<PendingCall<T>>(paramsList.size());
+            final Buffer request = new Buffer();
+            final JsonWriter writer = JsonWriter.of(request);
+            if (paramsList.size() > 1)
+                writer.beginArray();
+            for (int i = 0; i < paramsList.size(); i++) {
+                final String[] params = paramsList.get(i);
+                final int id = idCounter.getAndIncrement();
+                final PendingCall<T> call = new PendingCall<T>(id, parsers.get(i));
+                calls.add(call);
+                pendingCalls.put(id, call);
+
+                writer.beginObject();
+                writer.name("id").value(id);
+                writer.name("method").value(method);
+                writer.name("params").beginArray();
+                for (final String param : params)
+                    writer.value(param);
+                writer.endArray();
+                writer.endObject();
+            }
+            if (paramsList.size() > 1)
+                writer.endArray();
+            writer.flush();
+            request.writeByte('\n');
+
+            try {
+                try {
+                    synchronized (sink) {
+                        sink.writeAll(request);
+                        sink.flush();
+                    }
+                } catch (final IOException x) {
+                    // a partially written request garbles the stream for everyone
+                    close();
+                    throw x;
+                }
+
+                final List<T> results = new ArrayList<T>(calls.size());
+                for (final PendingCall<T> call : calls)
+                    results.add(call.get(timeoutMs));
+                return results;
+            } finally {
+                for (final PendingCall<T> call : calls)
+                    pendingCalls.remove(call.id);
+                lastUsed = System.currentTimeMillis();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed)
+                    dispatch(JsonReader.of(source));
+            } catch (final IOException | RuntimeException x) {
+                // includes parser failures, which leave the stream at an unknown position; an uncaught exception
+                // would take down the app
+                if (!closed)
+                    log.info("connection to {} lost: {}", server, x.getMessage());
+                failPendingCalls(x);
+            } finally {
+                close();
+            }
+        }
+
+        private void dispatch(final JsonReader reader) throws IOException {
+            if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    readResponse(reader);
+                reader.endArray();
+            } else {
+                readResponse(reader);
+            }
+        }
+
+        private void readResponse(final JsonReader reader) throws IOException {
+            Integer id = null;
+            String error = null;
+            boolean hasResult = false;
+            Object result = null;
+            ResultParser<?> resultParser = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("id".equals(name) && reader.peek() == JsonReader.Token.NUMBER) {
+                    id = reader.nextInt();
+                } else if ("error".equals(name) && reader.peek() != JsonReader.Token.NULL) {
+                    error = readError(reader);
+                } else if ("result".equals(name) && reader.peek() != JsonReader.Token.NULL) {
+                    final PendingCall<?> call = id != null ? pendingCalls.get(id) : null;
+                    if (id == null)
+                        resultParser = commonParser(); // id still to come
+                    else if (call != null)
+                        resultParser = call.parser;
+
+                    if (resultParser != null) {
+                        result = resultParser.parse(reader);
+                        hasResult = true;
+                    } else if (id == null && !pendingCalls.isEmpty()) {
+                        result = JSON_VALUE_ADAPTER.fromJson(reader);
+                        hasResult = true;
+                    } else {
+                        reader.skipValue(); // abandoned call
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            final PendingCall<?> call = id != null ? pendingCalls.remove(id) : null;
+            if (call == null)
+                return; // notification or abandoned call
+            if (error != null)
+                call.fail(new ServerErrorException(error));
+            else if (!hasResult)
+                call.fail(new JsonDataException("empty response"));
+            else if (resultParser != null)
+                call.complete(resultParser, result);
+            else
+                call.completeFromJsonValue(result);
+        }
+
+        /**
+         * @return the parser all waiting calls share, or null if they don't share one
+         */
+        @Nullable
+        private ResultParser<?> commonParser() {
+            ResultParser<?> common = null;
+            for (final PendingCall<?> call : pendingCalls.values()) {
+                if (common == null)
+                    common = call.parser;
+                else if (call.parser != common)
+                    return null;
+            }
+            return common;
+        }
+
+        private String readError(final JsonReader reader) throws IOException {
+            if (reader.peek() != JsonReader.Token.BEGIN_OBJECT)
+                return reader.peek() == JsonReader.Token.STRING ? reader.nextString() : "error";
+
+            String message = "error";
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("message".equals(reader.nextName()) && reader.peek() == JsonReader.Token.STRING)
+                    message = reader.nextString();
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            return message;
+        }
+
+        private void failPendingCalls(final Exception x) {
+            for (final PendingCall<?> call : pendingCalls.values())
+                call.fail(x);
+            pendingCalls.clear();
+        }
+
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            connections.remove(server, this);
+            try {
+                socket.close();
+            } catch (final IOException x) {
+                // swallow
+            }
+            failPendingCalls(new IOException("connection closed"));
+        }
+    }
+
+    private static final class PendingCall<T> {
+        public final int id;
+        public final ResultParser<T> parser;
+        private final SettableFuture<T> result = SettableFuture.create();
+
+        public PendingCall(final int id, final ResultParser<T> parser) {
+            this.id = id;
+            this.parser = parser;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void complete(final ResultParser<?> resultParser, final Object value) {
+            if (resultParser == parser)
+                result.set((T) value);
+            else
+                result.setException(new IllegalStateException("result read by parser of another call"));
+        }
+
+        public void completeFromJsonValue(final Object value) {
+            try {
+                result.set(parser.parse(JsonReader.of(new Buffer().writeUtf8(JSON_VALUE_ADAPTER.toJson(value)))));
+            } catch (final IOException | JsonDataException x) {
+                result.setException(x);
+            }
+        }
+
+        public void fail(final Exception x) {
+            result.setException(x);
+        }
+
+        public T get(final long timeoutMs) throws IOException {
+            try {
+                return result.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException x) {
+                throw new SocketTimeoutException("timeout waiting for response " + id);
+            } catch (final InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for response " + id);
+            } catch (final ExecutionException x) {
+                final Throwable cause = x.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    @Nullable
+    private static SSLSocketFactory sslSocketFactory = null;
+
+    private static synchronized SSLSocketFactory sslTrustAllCertificates() {
+        if (sslSocketFactory == null) {
+            try {
+                final SSLContext context = SSLContext.getInstance("SSL");
+                context.init(null, new TrustManager[] { TRUST_ALL_CERTIFICATES }, null);
+                sslSocketFactory = context.getSocketFactory();
+            } catch (final Exception x) {
+                throw new RuntimeException(x);
+            }
+        }
+        return sslSocketFactory;
+    }
+
+    private static final X509TrustManager TRUST_ALL_CERTIFICATES = new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(final X509Certificate[] chain, final String authType)
+                throws CertificateException {
+        }
+
+        @Override
+        public void checkServerTrusted(final X509Certificate[] chain, final String authType)
+                throws CertificateException {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    };
+
+    private static String sslCertificateFingerprint(final Certificate certificate) {
+        try {
+            return Hashing.sha256().newHasher().putBytes(certificate.getEncoded()).hash().toString();
+        } catch (final Exception x) {
+            throw new RuntimeException(x);
+        }
+    }
+}
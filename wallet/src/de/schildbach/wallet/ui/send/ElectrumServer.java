@@ -0,0 +1,82 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.net.InetSocketAddress;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * @author Andreas Schildbach
+ */
+public final class ElectrumServer {
+    public enum Type {
+        TCP, TLS
+    }
+
+    public final InetSocketAddress socketAddress;
+    public final Type type;
+    @Nullable
+    public final String certificateFingerprint;
+
+    public ElectrumServer(final String type, final String host, @Nullable final String port,
+            @Nullable final String certificateFingerprint) {
+        this.type = Type.valueOf(type.toUpperCase());
+        if (port != null)
+            this.socketAddress = InetSocketAddress.createUnresolved(host, Integer.parseInt(port));
+        else if ("tcp".equalsIgnoreCase(type))
+            this.socketAddress = InetSocketAddress.createUnresolved(host, Constants.ELECTRUM_SERVER_DEFAULT_PORT_TCP);
+        else if ("tls".equalsIgnoreCase(type))
+            this.socketAddress = InetSocketAddress.createUnresolved(host, Constants.ELECTRUM_SERVER_DEFAULT_PORT_TLS);
+        else
+            throw new IllegalStateException("Cannot handle: " + type);
+        this.certificateFingerprint = certificateFingerprint;
+    }
+
+    public ElectrumServer(final Type type, final InetSocketAddress socketAddress,
+            @Nullable final String certificateFingerprint) {
+        this.type = type;
+        this.socketAddress = socketAddress;
+        this.certificateFingerprint = certificateFingerprint;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        final ElectrumServer other = (ElectrumServer) o;
+        return type == other.type && socketAddress.equals(other.socketAddress)
+                && Objects.equal(certificateFingerprint, other.certificateFingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(type, socketAddress, certificateFingerprint);
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + ':' + socketAddress.getHostName() + ':' + socketAddress.getPort();
+    }
+}
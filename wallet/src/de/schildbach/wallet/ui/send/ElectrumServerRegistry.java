@@ -0,0 +1,295 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.wallet.Constants;
+
+import android.content.res.AssetManager;
+
+/**
+ * Registry of the Electrum servers listed in {@link Constants.Files#ELECTRUM_SERVERS_FILENAME}. The list is parsed
+ * once. For each server, the latency of successful requests, consecutive failures and certificate verification
+ * failures are tracked, and used to rank the servers. Failures are forgiven over time: the penalty for consecutive
+ * failures fades out, and a server that failed certificate verification is tried again after a while.
+ *
+ * Requests are raced against the best ranked candidates: the next candidate is started if the previous one fails or
+ * doesn't reply within a short delay. The first successful reply wins.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ElectrumServerRegistry {
+    public interface Request<T> {
+        T execute(ElectrumServer server) throws IOException;
+    }
+
+    private static final class Health {
+        public long latencyMs = -1;
+        public int consecutiveFailures = 0;
+        public long lastFailureTime = 0;
+        public long certificateRetryTime = 0;
+
+        public boolean isUsable(final long now) {
+            return now >= certificateRetryTime;
+        }
+
+        public long score(final long now) {
+            if (!isUsable(now))
+                return Long.MAX_VALUE;
+            return (latencyMs >= 0 ? latencyMs : UNKNOWN_LATENCY_MS) + failurePenalty(now);
+        }
+
+        /** fades out linearly, so that a server that was down a while ago gets another chance */
+        private long failurePenalty(final long now) {
+            final long sinceLastFailure = now - lastFailureTime;
+            if (consecutiveFailures == 0 || sinceLastFailure >= FAILURE_FADE_MS)
+                return 0;
+            return consecutiveFailures * FAILURE_PENALTY_MS * (FAILURE_FADE_MS - sinceLastFailure) / FAILURE_FADE_MS;
+        }
+
+        @Override
+        public String toString() {
+            return (!isUsable(Utils.currentTimeMillis()) ? "bad certificate"
+                    : latencyMs >= 0 ? latencyMs + " ms" : "unknown")
+                    + (consecutiveFailures > 0 ? ", " + consecutiveFailures + " failures" : "");
+        }
+    }
+
+    private final Map<ElectrumServer, Health> servers = new LinkedHashMap<ElectrumServer, Health>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("electrum-request-%d").setDaemon(true).build());
+
+    private static final int NUM_CANDIDATES = 3;
+    private static final long STAGGER_MS = 500;
+    private static final long UNKNOWN_LATENCY_MS = 1000;
+    private static final long FAILURE_PENALTY_MS = 5000;
+    private static final long FAILURE_FADE_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long CERTIFICATE_RETRY_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Nullable
+    private static ElectrumServerRegistry instance = null;
+
+    private static final Logger log = LoggerFactory.getLogger(ElectrumServerRegistry.class);
+
+    public static synchronized ElectrumServerRegistry get(final AssetManager assets) throws IOException {
+        if (instance == null)
+            instance = new ElectrumServerRegistry(
+                    loadElectrumServers(assets.open(Constants.Files.ELECTRUM_SERVERS_FILENAME)));
+        return instance;
+    }
+
+    public ElectrumServerRegistry(final List<ElectrumServer> servers) {
+        for (final ElectrumServer server : servers)
+            this.servers.put(server, new Health());
+    }
+
+    /**
+     * Returns the best ranked servers. Servers of equal rank, e.g. the ones that haven't been used yet, are returned
+     * in random order.
+     */
+    public synchronized List<ElectrumServer> candidates(final int maxCandidates) {
+        final long now = Utils.currentTimeMillis();
+        final List<ElectrumServer> candidates = new ArrayList<ElectrumServer>(servers.keySet());
+        Collections.shuffle(candidates);
+        Collections.sort(candidates, new Comparator<ElectrumServer>() {
+            @Override
+            public int compare(final ElectrumServer lhs, final ElectrumServer rhs) {
+                final long lhsScore = servers.get(lhs).score(now);
+                final long rhsScore = servers.get(rhs).score(now);
+                return lhsScore < rhsScore ? -1 : lhsScore > rhsScore ? 1 : 0;
+            }
+        });
+        final List<ElectrumServer> usable = new ArrayList<ElectrumServer>(maxCandidates);
+        for (final ElectrumServer candidate : candidates) {
+            if (usable.size() >= maxCandidates)
+                break;
+            if (servers.get(candidate).isUsable(now))
+                usable.add(candidate);
+        }
+        return usable;
+    }
+
+    public synchronized void reportSuccess(final ElectrumServer server, final long latencyMs) {
+        final Health health = servers.get(server);
+        if (health == null)
+            return;
+        health.latencyMs = health.latencyMs >= 0 ? (health.latencyMs * 3 + latencyMs) / 4 : latencyMs;
+        health.consecutiveFailures = 0;
+        health.certificateRetryTime = 0;
+    }
+
+    public synchronized void reportFailure(final ElectrumServer server, final Exception x) {
+        final Health health = servers.get(server);
+        if (health == null)
+            return;
+        final long now = Utils.currentTimeMillis();
+        health.consecutiveFailures++;
+        health.lastFailureTime = now;
+        if (x instanceof ElectrumClient.CertificateMismatchException)
+            health.certificateRetryTime = now + CERTIFICATE_RETRY_MS;
+    }
+
+    /**
+     * Executes the request against the best ranked servers and returns the first successful result. If all
+     * candidates fail, the last failure is thrown.
+     */
+    public <T> T race(final Request<T> request) throws IOException {
+        final List<ElectrumServer> candidates = candidates(NUM_CANDIDATES);
+        if (candidates.isEmpty())
+            throw new IOException("no usable electrum server");
+
+        final CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+        final List<Future<T>> futures = new ArrayList<Future<T>>(candidates.size());
+        final Iterator<ElectrumServer> i = candidates.iterator();
+        // losers of the race fail because they are cancelled, which says nothing about their server
+        final AtomicBoolean raceOver = new AtomicBoolean();
+        Throwable lastFailure = null;
+        try {
+            futures.add(completionService.submit(task(i.next(), request, raceOver)));
+            int running = 1;
+            while (running > 0) {
+                Future<T> done = completionService.poll(STAGGER_MS, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (i.hasNext()) {
+                        futures.add(completionService.submit(task(i.next(), request, raceOver)));
+                        running++;
+                        continue;
+                    }
+                    done = completionService.take();
+                }
+                running--;
+                try {
+                    return done.get();
+                } catch (final ExecutionException x) {
+                    lastFailure = x.getCause();
+                    if (lastFailure instanceof ElectrumClient.ServerErrorException)
+                        break;
+                    if (i.hasNext()) {
+                        futures.add(completionService.submit(task(i.next(), request, raceOver)));
+                        running++;
+                    }
+                }
+            }
+        } catch (final InterruptedException x) {
+            throw new InterruptedIOException("interrupted while racing servers");
+        } finally {
+            raceOver.set(true);
+            for (final Future<T> future : futures)
+                future.cancel(true);
+        }
+
+        if (lastFailure instanceof IOException)
+            throw (IOException) lastFailure;
+        if (lastFailure instanceof RuntimeException)
+            throw (RuntimeException) lastFailure;
+        throw new IOException(lastFailure);
+    }
+
+    private <T> Callable<T> task(final ElectrumServer server, final Request<T> request, final AtomicBoolean raceOver) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final long start = System.currentTimeMillis();
+                try {
+                    final T result = request.execute(server);
+                    reportSuccess(server, System.currentTimeMillis() - start);
+                    return result;
+                } catch (final ElectrumClient.ServerErrorException x) {
+                    // server is alive, the request is the problem
+                    throw x;
+                } catch (final IOException | RuntimeException x) {
+                    if (!raceOver.get()) {
+                        log.info("request to {} failed: {}", server, x.getMessage());
+                        reportFailure(server, x);
+                    }
+                    throw x;
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + servers;
+    }
+
+    private static List<ElectrumServer> loadElectrumServers(final InputStream is) throws IOException {
+        final Splitter splitter = Splitter.on(':').trimResults();
+        final List<ElectrumServer> servers = new LinkedList<>();
+        BufferedReader reader = null;
+        String line = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(is, Charsets.UTF_8));
+            while (true) {
+                line = reader.readLine();
+                if (line == null)
+                    break;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#')
+                    continue;
+
+                final Iterator<String> i = splitter.split(line).iterator();
+                final String type = i.next();
+                final String host = i.next();
+                final String port = i.hasNext() ? Strings.emptyToNull(i.next()) : null;
+                final String fingerprint = i.hasNext() ? Strings.emptyToNull(i.next()) : null;
+                servers.add(new ElectrumServer(type, host, port, fingerprint));
+            }
+        } catch (final Exception x) {
+            throw new RuntimeException("Error while parsing: '" + line + "'", x);
+        } finally {
+            if (reader != null)
+                reader.close();
+            is.close();
+        }
+        return servers;
+    }
+}
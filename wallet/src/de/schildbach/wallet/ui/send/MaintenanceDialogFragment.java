@@ -212,7 +212,7 @@ public class MaintenanceDialogFragment extends DialogFragment {
         updateView();
 
         if (wallet.isEncrypted()) {
-            new DeriveKeyTask(backgroundHandler, application.scryptIterationsTarget()) {
+            new DeriveKeyTask(backgroundHandler, application.scryptTarget(), application.spendingKeyCache()) {
                 @Override
                 protected void onSuccess(final KeyParameter encryptionKey, final boolean wasChanged) {
                     if (wasChanged)
@@ -0,0 +1,57 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Recognizes a password without keeping it, by means of a MAC under a random key that never leaves this object.
+ *
+ * @author Andreas Schildbach
+ */
+final class PasswordMac {
+    private final byte[] macKey = new byte[32];
+
+    public PasswordMac() {
+        new SecureRandom().nextBytes(macKey);
+    }
+
+    public byte[] of(final String password) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+            return mac.doFinal(password.getBytes(Charsets.UTF_8));
+        } catch (final GeneralSecurityException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * Compares in constant time.
+     */
+    public boolean matches(final byte[] passwordMac, final String password) {
+        return MessageDigest.isEqual(of(password), passwordMac);
+    }
+}
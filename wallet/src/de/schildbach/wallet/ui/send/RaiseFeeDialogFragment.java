@@ -39,6 +39,7 @@ import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.DynamicFeeLoader;
+import de.schildbach.wallet.data.WalletObserver;
 import de.schildbach.wallet.ui.AbstractWalletActivity;
 import de.schildbach.wallet.ui.DialogBuilder;
 import de.schildbach.wallet.util.WalletUtils;
@@ -94,6 +95,7 @@ public class RaiseFeeDialogFragment extends DialogFragment {
     private WalletApplication application;
     private Configuration config;
     private Wallet wallet;
+    private WalletObserver walletObserver;
     private LoaderManager loaderManager;
 
     private Coin feeRaise = null;
@@ -149,6 +151,7 @@ public class RaiseFeeDialogFragment extends DialogFragment {
         this.application = (WalletApplication) activity.getApplication();
         this.config = application.getConfiguration();
         this.wallet = application.getWallet();
+        this.walletObserver = application.getWalletObserver();
         this.loaderManager = getLoaderManager();
     }
 
@@ -246,7 +249,7 @@ public class RaiseFeeDialogFragment extends DialogFragment {
         updateView();
 
         if (wallet.isEncrypted()) {
-            new DeriveKeyTask(backgroundHandler, application.scryptIterationsTarget()) {
+            new DeriveKeyTask(backgroundHandler, application.scryptTarget(), application.spendingKeyCache()) {
                 @Override
                 protected void onSuccess(final KeyParameter encryptionKey, final boolean wasChanged) {
                     if (wasChanged)
@@ -263,7 +266,8 @@ public class RaiseFeeDialogFragment extends DialogFragment {
 
     private void doRaiseFee(final KeyParameter encryptionKey) {
         // construct child-pays-for-parent
-        final TransactionOutput outputToSpend = checkNotNull(findSpendableOutput(wallet, transaction, feeRaise));
+        final TransactionOutput outputToSpend = checkNotNull(
+                findSpendableOutput(wallet, walletObserver, transaction, feeRaise));
         final Transaction transactionToSend = new Transaction(Constants.NETWORK_PARAMETERS);
         transactionToSend.addInput(outputToSpend);
         transactionToSend.addOutput(outputToSpend.getValue().subtract(feeRaise),
@@ -310,7 +314,7 @@ public class RaiseFeeDialogFragment extends DialogFragment {
         if (feeRaise == null) {
             messageView.setText(R.string.raise_fee_dialog_determining_fee);
             passwordGroup.setVisibility(View.GONE);
-        } else if (findSpendableOutput(wallet, transaction, feeRaise) == null) {
+        } else if (findSpendableOutput(wallet, walletObserver, transaction, feeRaise) == null) {
             messageView.setText(R.string.raise_fee_dialog_cant_raise);
             passwordGroup.setVisibility(View.GONE);
         } else {
@@ -321,7 +325,8 @@ public class RaiseFeeDialogFragment extends DialogFragment {
         if (state == State.INPUT) {
             positiveButton.setText(R.string.raise_fee_dialog_button_raise);
             positiveButton.setEnabled((!needsPassword || passwordView.getText().toString().trim().length() > 0)
-                    && feeRaise != null && findSpendableOutput(wallet, transaction, feeRaise) != null);
+                    && feeRaise != null
+                    && findSpendableOutput(wallet, walletObserver, transaction, feeRaise) != null);
             negativeButton.setEnabled(true);
         } else if (state == State.DECRYPTING) {
             positiveButton.setText(R.string.raise_fee_dialog_state_decrypting);
@@ -350,7 +355,8 @@ public class RaiseFeeDialogFragment extends DialogFragment {
         }
     };
 
-    public static boolean feeCanLikelyBeRaised(final Wallet wallet, final Transaction transaction) {
+    public static boolean feeCanLikelyBeRaised(final Wallet wallet, final WalletObserver walletObserver,
+            final Transaction transaction) {
         if (transaction.getConfidence().getDepthInBlocks() > 0)
             return false;
 
@@ -358,16 +364,18 @@ public class RaiseFeeDialogFragment extends DialogFragment {
             return false;
 
         // We don't know dynamic fees here, so we need to guess.
-        if (findSpendableOutput(wallet, transaction, Transaction.DEFAULT_TX_FEE) == null)
+        if (findSpendableOutput(wallet, walletObserver, transaction, Transaction.DEFAULT_TX_FEE) == null)
             return false;
 
         return true;
     }
 
-    private static @Nullable TransactionOutput findSpendableOutput(final Wallet wallet, final Transaction transaction,
-            final Coin minimumOutputValue) {
+    private static @Nullable TransactionOutput findSpendableOutput(final Wallet wallet,
+            final WalletObserver walletObserver, final Transaction transaction, final Coin minimumOutputValue) {
+        final Sha256Hash hash = transaction.getHash();
         for (final TransactionOutput output : transaction.getOutputs()) {
             if (output.isMine(wallet) && output.isAvailableForSpending()
+                    && !walletObserver.isSpentByWallet(hash, output.getIndex())
                     && output.getValue().isGreaterThan(minimumOutputValue))
                 return output;
         }
@@ -17,32 +17,14 @@
 
 package de.schildbach.wallet.ui.send;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
-
-import javax.net.SocketFactory;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
@@ -53,13 +35,8 @@ import org.bitcoinj.script.ScriptBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Charsets;
-import com.google.common.base.Splitter;
-import com.google.common.base.Strings;
-import com.google.common.hash.Hashing;
-import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.JsonDataException;
-import com.squareup.moshi.Moshi;
+import com.squareup.moshi.JsonReader;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.R;
@@ -67,9 +44,7 @@ import de.schildbach.wallet.R;
 import android.content.res.AssetManager;
 import android.os.Handler;
 import android.os.Looper;
-import okio.BufferedSink;
-import okio.BufferedSource;
-import okio.Okio;
+import android.text.format.DateUtils;
 
 /**
  * @author Andreas Schildbach
@@ -78,6 +53,7 @@ public final class RequestWalletBalanceTask {
     private final Handler backgroundHandler;
     private final Handler callbackHandler;
     private final ResultCallback resultCallback;
+    private final int maxUtxos;
 
     private static final Logger log = LoggerFactory.getLogger(RequestWalletBalanceTask.class);
 
@@ -88,105 +64,68 @@ public final class RequestWalletBalanceTask {
     }
 
     public RequestWalletBalanceTask(final Handler backgroundHandler, final ResultCallback resultCallback) {
+        this(backgroundHandler, resultCallback, DEFAULT_MAX_UTXOS);
+    }
+
+    /**
+     * @param maxUtxos
+     *            maximum number of unspent outputs to collect across all addresses; any further outputs in the
+     *            server replies are skipped without being decoded
+     */
+    public RequestWalletBalanceTask(final Handler backgroundHandler, final ResultCallback resultCallback,
+            final int maxUtxos) {
         this.backgroundHandler = backgroundHandler;
         this.callbackHandler = new Handler(Looper.myLooper());
         this.resultCallback = resultCallback;
+        this.maxUtxos = maxUtxos;
     }
 
-    public static class JsonRpcRequest {
-        public final int id;
-        public final String method;
-        public final String[] params;
-
-        private static transient int idCounter = 0;
-
-        public JsonRpcRequest(final String method, final String[] params) {
-            this.id = idCounter++;
-            this.method = method;
-            this.params = params;
-        }
-    }
-
-    public static class JsonRpcResponse {
-        public int id;
-        public Utxo[] result;
+    public static final int DEFAULT_MAX_UTXOS = 5000;
 
-        public static class Utxo {
-            public String tx_hash;
-            public int tx_pos;
-            public long value;
-            public int height;
-        }
-    }
+    private static final ElectrumClient electrumClient = new ElectrumClient(5000, DateUtils.MINUTE_IN_MILLIS * 5);
 
-    public void requestWalletBalance(final AssetManager assets, final Address address) {
+    /**
+     * Requests the unspent outputs of all given addresses, as one batch from one server.
+     */
+    public void requestWalletBalance(final AssetManager assets, final Collection<Address> addresses) {
         backgroundHandler.post(new Runnable() {
             @Override
             public void run() {
                 org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
                 try {
-                    final List<ElectrumServer> servers = loadElectrumServers(
-                            assets.open(Constants.Files.ELECTRUM_SERVERS_FILENAME));
-                    final ElectrumServer server = servers.get(new Random().nextInt(servers.size()));
-                    log.info("trying to request wallet balance from {}: {}", server.socketAddress, address);
-                    final Socket socket;
-                    if (server.type == ElectrumServer.Type.TLS) {
-                        final SocketFactory sf = sslTrustAllCertificates();
-                        socket = sf.createSocket(server.socketAddress.getHostName(), server.socketAddress.getPort());
-                        final SSLSession sslSession = ((SSLSocket) socket).getSession();
-                        final Certificate certificate = sslSession.getPeerCertificates()[0];
-                        final String certificateFingerprint = sslCertificateFingerprint(certificate);
-                        if (server.certificateFingerprint == null) {
-                            // signed by CA
-                            if (!HttpsURLConnection.getDefaultHostnameVerifier()
-                                    .verify(server.socketAddress.getHostName(), sslSession))
-                                throw new SSLHandshakeException("Expected " + server.socketAddress.getHostName()
-                                        + ", got " + sslSession.getPeerPrincipal());
-                        } else {
-                            // self-signed
-                            if (!certificateFingerprint.equals(server.certificateFingerprint))
-                                throw new SSLHandshakeException("Expected " + server.certificateFingerprint + ", got "
-                                        + certificateFingerprint);
-                        }
-                    } else if (server.type == ElectrumServer.Type.TCP) {
-                        socket = new Socket();
-                        socket.connect(server.socketAddress, 5000);
-                    } else {
-                        throw new IllegalStateException("Cannot handle: " + server.type);
-                    }
-                    final BufferedSink sink = Okio.buffer(Okio.sink(socket));
-                    sink.timeout().timeout(5000, TimeUnit.MILLISECONDS);
-                    final BufferedSource source = Okio.buffer(Okio.source(socket));
-                    source.timeout().timeout(5000, TimeUnit.MILLISECONDS);
-                    final Moshi moshi = new Moshi.Builder().build();
-                    final JsonAdapter<JsonRpcRequest> requestAdapter = moshi.adapter(JsonRpcRequest.class);
-                    final JsonRpcRequest request = new JsonRpcRequest("blockchain.address.listunspent",
-                            new String[] { address.toBase58() });
-                    requestAdapter.toJson(sink, request);
-                    sink.writeUtf8("\n").flush();
-                    final JsonAdapter<JsonRpcResponse> responseAdapter = moshi.adapter(JsonRpcResponse.class);
-                    final JsonRpcResponse response = responseAdapter.fromJson(source);
-                    if (response.id == request.id) {
-                        if (response.result == null)
-                            throw new JsonDataException("empty response");
-                        final Set<UTXO> utxos = new HashSet<>();
-                        for (final JsonRpcResponse.Utxo responseUtxo : response.result) {
-                            final Sha256Hash utxoHash = Sha256Hash.wrap(responseUtxo.tx_hash);
-                            final int utxoIndex = responseUtxo.tx_pos;
-                            final Coin utxoValue = Coin.valueOf(responseUtxo.value);
-                            final Script script = ScriptBuilder.createOutputScript(address);
-                            final UTXO utxo = new UTXO(utxoHash, utxoIndex, utxoValue, responseUtxo.height, false,
-                                    script);
-                            utxos.add(utxo);
+                    final ElectrumServerRegistry registry = ElectrumServerRegistry.get(assets);
+                    log.info("trying to request wallet balance: {}", addresses);
+                    final List<String[]> paramsList = new ArrayList<>(addresses.size());
+                    for (final Address address : addresses)
+                        paramsList.add(new String[] { address.toBase58() });
+                    final Set<UTXO> utxos = registry.race(new ElectrumServerRegistry.Request<Set<UTXO>>() {
+                        @Override
+                        public Set<UTXO> execute(final ElectrumServer server) throws IOException {
+                            org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+                            // raced requests must not share the budget
+                            final AtomicInteger budget = new AtomicInteger(maxUtxos);
+                            // one parser for all, so that results can be streamed before their id is known
+                            final ListUnspentParser parser = new ListUnspentParser(budget);
+                            final List<List<UnspentOutput>> results = electrumClient.batch(server,
+                                    "blockchain.address.listunspent", Collections.nCopies(addresses.size(), parser),
+                                    paramsList);
+                            final Set<UTXO> utxos = new HashSet<>();
+                            int i = 0;
+                            for (final Address address : addresses) {
+                                final Script script = ScriptBuilder.createOutputScript(address);
+                                for (final UnspentOutput output : results.get(i++))
+                                    utxos.add(output.toUtxo(script));
+                            }
+                            if (budget.get() < 0)
+                                log.warn("more than {} unspent outputs, skipped {}", maxUtxos, -budget.get());
+                            log.info("fetched {} unspent outputs of {} addresses from {}", utxos.size(),
+                                    addresses.size(), server.socketAddress);
+                            return utxos;
                         }
-
-                        log.info("fetched {} unspent outputs from {}", response.result.length, server.socketAddress);
-                        onResult(utxos);
-                    } else {
-                        log.info("id mismatch response:{} vs request:{}", response.id, request.id);
-                        onFail(R.string.error_parse, server.socketAddress.toString());
-                    }
+                    });
+                    log.info("server ranking: {}", registry);
+                    onResult(utxos);
                 } catch (final JsonDataException x) {
                     log.info("problem parsing json", x);
                     onFail(R.string.error_parse, x.getMessage());
@@ -198,6 +137,81 @@ public final class RequestWalletBalanceTask {
         });
     }
 
+    /**
+     * An unspent output as listed by the server. The reply doesn't repeat the address, so the output script is added
+     * once the reply is matched to its request.
+     */
+    static final class UnspentOutput {
+        public final Sha256Hash hash;
+        public final long index;
+        public final Coin value;
+        public final int height;
+
+        public UnspentOutput(final Sha256Hash hash, final long index, final Coin value, final int height) {
+            this.hash = hash;
+            this.index = index;
+            this.value = value;
+            this.height = height;
+        }
+
+        public UTXO toUtxo(final Script script) {
+            return new UTXO(hash, index, value, height, false, script);
+        }
+    }
+
+    /**
+     * Decodes {@code listunspent} replies record by record as they come off the connection. Each decoded output takes
+     * one unit of the budget; once the budget is used up, the remaining records are skipped and counted negatively,
+     * so a huge reply is drained rather than kept.
+     */
+    static final class ListUnspentParser implements ElectrumClient.ResultParser<List<UnspentOutput>> {
+        private final AtomicInteger budget;
+
+        public ListUnspentParser(final AtomicInteger budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public List<UnspentOutput> parse(final JsonReader reader) throws IOException {
+            final List<UnspentOutput> outputs = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (budget.getAndDecrement() > 0) {
+                    outputs.add(parseOutput(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+            return outputs;
+        }
+
+        private UnspentOutput parseOutput(final JsonReader reader) throws IOException {
+            Sha256Hash hash = null;
+            long index = -1;
+            long value = -1;
+            int height = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("tx_hash".equals(name))
+                    hash = Sha256Hash.wrap(reader.nextString());
+                else if ("tx_pos".equals(name))
+                    index = reader.nextLong();
+                else if ("value".equals(name))
+                    value = reader.nextLong();
+                else if ("height".equals(name))
+                    height = reader.nextInt();
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            if (hash == null || index < 0 || value < 0)
+                throw new JsonDataException("incomplete unspent output at " + reader.getPath());
+            return new UnspentOutput(hash, index, Coin.valueOf(value), height);
+        }
+    }
+
     protected void onResult(final Set<UTXO> utxos) {
         callbackHandler.post(new Runnable() {
             @Override
@@ -215,98 +229,4 @@ public final class RequestWalletBalanceTask {
             }
         });
     }
-
-    public static class ElectrumServer {
-        public enum Type {
-            TCP, TLS
-        }
-
-        public final InetSocketAddress socketAddress;
-        public final Type type;
-        public final String certificateFingerprint;
-
-        public ElectrumServer(final String type, final String host, final String port,
-                final String certificateFingerprint) {
-            this.type = Type.valueOf(type.toUpperCase());
-            if (port != null)
-                this.socketAddress = InetSocketAddress.createUnresolved(host, Integer.parseInt(port));
-            else if ("tcp".equalsIgnoreCase(type))
-                this.socketAddress = InetSocketAddress.createUnresolved(host,
-                        Constants.ELECTRUM_SERVER_DEFAULT_PORT_TCP);
-            else if ("tls".equalsIgnoreCase(type))
-                this.socketAddress = InetSocketAddress.createUnresolved(host,
-                        Constants.ELECTRUM_SERVER_DEFAULT_PORT_TLS);
-            else
-                throw new IllegalStateException("Cannot handle: " + type);
-            this.certificateFingerprint = certificateFingerprint;
-        }
-    }
-
-    private static List<ElectrumServer> loadElectrumServers(final InputStream is) throws IOException {
-        final Splitter splitter = Splitter.on(':').trimResults();
-        final List<ElectrumServer> servers = new LinkedList<>();
-        BufferedReader reader = null;
-        String line = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(is, Charsets.UTF_8));
-            while (true) {
-                line = reader.readLine();
-                if (line == null)
-                    break;
-                line = line.trim();
-                if (line.length() == 0 || line.charAt(0) == '#')
-                    continue;
-
-                final Iterator<String> i = splitter.split(line).iterator();
-                final String type = i.next();
-                final String host = i.next();
-                final String port = i.hasNext() ? Strings.emptyToNull(i.next()) : null;
-                final String fingerprint = i.hasNext() ? Strings.emptyToNull(i.next()) : null;
-                servers.add(new ElectrumServer(type, host, port, fingerprint));
-            }
-        } catch (final Exception x) {
-            throw new RuntimeException("Error while parsing: '" + line + "'", x);
-        } finally {
-            if (reader != null)
-                reader.close();
-            is.close();
-        }
-        return servers;
-    }
-
-    private SSLSocketFactory sslTrustAllCertificates() {
-        try {
-            final SSLContext context = SSLContext.getInstance("SSL");
-            context.init(null, new TrustManager[] { TRUST_ALL_CERTIFICATES }, null);
-            final SSLSocketFactory socketFactory = context.getSocketFactory();
-            return socketFactory;
-        } catch (final Exception x) {
-            throw new RuntimeException(x);
-        }
-    }
-
-    private static final X509TrustManager TRUST_ALL_CERTIFICATES = new X509TrustManager() {
-        @Override
-        public void checkClientTrusted(final X509Certificate[] chain, final String authType)
-                throws CertificateException {
-        }
-
-        @Override
-        public void checkServerTrusted(final X509Certificate[] chain, final String authType)
-                throws CertificateException {
-        }
-
-        @Override
-        public X509Certificate[] getAcceptedIssuers() {
-            return new X509Certificate[0];
-        }
-    };
-
-    private String sslCertificateFingerprint(final Certificate certificate) {
-        try {
-            return Hashing.sha256().newHasher().putBytes(certificate.getEncoded()).hash().toString();
-        } catch (final Exception x) {
-            throw new RuntimeException(x);
-        }
-    }
 }
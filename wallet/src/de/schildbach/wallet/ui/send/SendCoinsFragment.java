@@ -145,6 +145,7 @@ public final class SendCoinsFragment extends Fragment {
     private final Handler handler = new Handler();
     private HandlerThread backgroundThread;
     private Handler backgroundHandler;
+    private SpeculativeKeyDerivation keySpeculation;
 
     private View payeeGroup;
     private TextView payeeNameView;
@@ -270,6 +271,8 @@ public final class SendCoinsFragment extends Fragment {
         public void onTextChanged(final CharSequence s, final int start, final int before, final int count) {
             privateKeyBadPasswordView.setVisibility(View.INVISIBLE);
             updateView();
+            if (wallet.isEncrypted())
+                keySpeculation.onPasswordChanged(wallet.getKeyCrypter(), s.toString().trim());
         }
 
         @Override
@@ -512,6 +515,7 @@ public final class SendCoinsFragment extends Fragment {
         backgroundThread = new HandlerThread("backgroundThread", Process.THREAD_PRIORITY_BACKGROUND);
         backgroundThread.start();
         backgroundHandler = new Handler(backgroundThread.getLooper());
+        keySpeculation = new SpeculativeKeyDerivation(backgroundHandler);
 
         if (savedInstanceState != null) {
             restoreInstanceState(savedInstanceState);
@@ -674,6 +678,7 @@ public final class SendCoinsFragment extends Fragment {
         loaderManager.destroyLoader(ID_DYNAMIC_FEES_LOADER);
 
         privateKeyPasswordView.removeTextChangedListener(privateKeyPasswordListener);
+        keySpeculation.cancel();
         amountCalculatorLink.setListener(null);
 
         contentResolver.unregisterContentObserver(contentObserver);
@@ -690,6 +695,8 @@ public final class SendCoinsFragment extends Fragment {
 
     @Override
     public void onDestroy() {
+        keySpeculation.cancel();
+        log.info("key speculation: {}", keySpeculation);
         backgroundThread.getLooper().quit();
 
         if (sentTransaction != null)
@@ -901,7 +908,8 @@ public final class SendCoinsFragment extends Fragment {
         privateKeyBadPasswordView.setVisibility(View.INVISIBLE);
 
         if (wallet.isEncrypted()) {
-            new DeriveKeyTask(backgroundHandler, application.scryptIterationsTarget()) {
+            new DeriveKeyTask(backgroundHandler, application.scryptTarget(), application.spendingKeyCache(),
+                    keySpeculation) {
                 @Override
                 protected void onSuccess(final KeyParameter encryptionKey, final boolean wasChanged) {
                     if (wasChanged)
@@ -927,7 +935,7 @@ public final class SendCoinsFragment extends Fragment {
         // prepare send request
         final SendRequest sendRequest = finalPaymentIntent.toSendRequest();
         sendRequest.emptyWallet = paymentIntent.mayEditAmount()
-                && finalAmount.equals(wallet.getBalance(BalanceType.AVAILABLE));
+                && finalAmount.equals(application.getWalletObserver().getBalance(BalanceType.AVAILABLE));
         sendRequest.feePerKb = fees.get(feeCategory);
         sendRequest.memo = paymentIntent.memo;
         sendRequest.exchangeRate = amountCalculatorLink.getExchangeRate();
@@ -1031,8 +1039,8 @@ public final class SendCoinsFragment extends Fragment {
             protected void onInsufficientMoney(final Coin missing) {
                 setState(State.INPUT);
 
-                final Coin estimated = wallet.getBalance(BalanceType.ESTIMATED);
-                final Coin available = wallet.getBalance(BalanceType.AVAILABLE);
+                final Coin estimated = application.getWalletObserver().getBalance(BalanceType.ESTIMATED);
+                final Coin available = application.getWalletObserver().getBalance(BalanceType.AVAILABLE);
                 final Coin pending = estimated.subtract(available);
 
                 final MonetaryFormat btcFormat = config.getFormat();
@@ -1106,7 +1114,7 @@ public final class SendCoinsFragment extends Fragment {
     }
 
     private void handleEmpty() {
-        final Coin available = wallet.getBalance(BalanceType.AVAILABLE);
+        final Coin available = application.getWalletObserver().getBalance(BalanceType.AVAILABLE);
         amountCalculatorLink.setBtcAmount(available);
 
         updateView();
@@ -1134,7 +1142,7 @@ public final class SendCoinsFragment extends Fragment {
                     final SendRequest sendRequest = paymentIntent.mergeWithEditedValues(amount, dummy).toSendRequest();
                     sendRequest.signInputs = false;
                     sendRequest.emptyWallet = paymentIntent.mayEditAmount()
-                            && amount.equals(wallet.getBalance(BalanceType.AVAILABLE));
+                            && amount.equals(application.getWalletObserver().getBalance(BalanceType.AVAILABLE));
                     sendRequest.feePerKb = fees.get(feeCategory);
                     wallet.completeTx(sendRequest);
                     dryrunTransaction = sendRequest.tx;
@@ -0,0 +1,190 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.crypto.KeyCrypter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.Constants;
+
+import android.os.Handler;
+
+/**
+ * Derives the key from the spending PIN while it is still being typed, so that it's usually ready by the time the
+ * user confirms. Derivation starts once the input is of plausible length and has paused for a moment. Any change to
+ * the input invalidates the previous derivation: if it hasn't started yet it is dropped, otherwise its result is
+ * discarded when it finishes, as scrypt can't be interrupted.
+ *
+ * Like {@link SpendingKeyCache}, the password of a derived key isn't kept, only a MAC of it.
+ *
+ * Derivations run on the same background handler as {@link DeriveKeyTask}, so by the time a task asks for the key
+ * via {@link #take(KeyCrypter, String)}, a derivation that was in progress has finished.
+ *
+ * @author Andreas Schildbach
+ */
+public final class SpeculativeKeyDerivation {
+    private final Handler backgroundHandler;
+    private final PasswordMac passwordMacs = new PasswordMac();
+
+    private int generation = 0;
+    @Nullable
+    private Runnable pending;
+    @Nullable
+    private KeyCrypter keyCrypter;
+    @Nullable
+    private byte[] passwordMac;
+    @Nullable
+    private KeyParameter key;
+    private long keyDerivationMs;
+
+    private int hits = 0;
+    private int misses = 0;
+    private int wasted = 0;
+    private long wastedMs = 0;
+
+    public static final int MIN_PASSWORD_LENGTH = 4;
+    public static final long PAUSE_MS = 400;
+
+    private static final Logger log = LoggerFactory.getLogger(SpeculativeKeyDerivation.class);
+
+    public SpeculativeKeyDerivation(final Handler backgroundHandler) {
+        this.backgroundHandler = backgroundHandler;
+    }
+
+    /**
+     * To be called whenever the password input changes.
+     */
+    public synchronized void onPasswordChanged(final KeyCrypter keyCrypter, final String password) {
+        cancel();
+
+        if (password.length() < MIN_PASSWORD_LENGTH)
+            return;
+
+        final int speculationGeneration = generation;
+        pending = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SpeculativeKeyDerivation.this) {
+                    if (speculationGeneration != generation)
+                        return;
+                    pending = null;
+                }
+
+                org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+
+                final Stopwatch watch = Stopwatch.createStarted();
+                final KeyParameter derivedKey = keyCrypter.deriveKey(password);
+                final long ms = watch.elapsed(TimeUnit.MILLISECONDS);
+
+                synchronized (SpeculativeKeyDerivation.this) {
+                    if (speculationGeneration == generation) {
+                        SpeculativeKeyDerivation.this.keyCrypter = keyCrypter;
+                        SpeculativeKeyDerivation.this.passwordMac = passwordMacs.of(password);
+                        SpeculativeKeyDerivation.this.key = derivedKey;
+                        SpeculativeKeyDerivation.this.keyDerivationMs = ms;
+                        log.debug("speculatively derived key, took {} ms", ms);
+                    } else {
+                        wipe(derivedKey);
+                        waste(ms);
+                    }
+                }
+            }
+        };
+        backgroundHandler.postDelayed(pending, PAUSE_MS);
+    }
+
+    /**
+     * Invalidates the current derivation, e.g. because the input is gone.
+     */
+    public synchronized void cancel() {
+        generation++;
+        if (pending != null) {
+            backgroundHandler.removeCallbacks(pending);
+            pending = null;
+        }
+        if (key != null) {
+            wipe(key);
+            waste(keyDerivationMs);
+        }
+        keyCrypter = null;
+        if (passwordMac != null)
+            Arrays.fill(passwordMac, (byte) 0);
+        passwordMac = null;
+        key = null;
+    }
+
+    /**
+     * Hands over the key if it was derived from the given password using the given key crypter. Either way, the
+     * speculation is over: a derivation that hasn't started yet is dropped, because the caller is going to derive the
+     * key itself.
+     */
+    public synchronized @Nullable KeyParameter take(final KeyCrypter keyCrypter, final String password) {
+        final KeyParameter result;
+        if (key != null && keyCrypter.equals(this.keyCrypter) && passwordMacs.matches(passwordMac, password)) {
+            hits++;
+            result = key;
+            key = null;
+        } else {
+            misses++;
+            result = null;
+        }
+        cancel();
+        log.info("{}", this);
+        return result;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getWasted() {
+        return wasted;
+    }
+
+    public synchronized long getWastedMs() {
+        return wastedMs;
+    }
+
+    private void waste(final long ms) {
+        wasted++;
+        wastedMs += ms;
+    }
+
+    private static void wipe(final KeyParameter key) {
+        Arrays.fill(key.getKey(), (byte) 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[hits=" + hits + ",misses=" + misses + ",wasted=" + wasted + " ("
+                + wastedMs + " ms)]";
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.crypto.KeyCrypter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Keeps the key derived from the spending PIN for a short while, so that back-to-back spends don't have to wait for
+ * scrypt again. The PIN itself is not kept; only a MAC of it, under a key that never leaves this process, is kept to
+ * recognize it. The cached key is wiped when it expires or when {@link #clear()} is called.
+ *
+ * @author Andreas Schildbach
+ */
+public final class SpendingKeyCache {
+    private final long timeoutMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final PasswordMac passwordMacs = new PasswordMac();
+
+    @Nullable
+    private KeyCrypter keyCrypter;
+    @Nullable
+    private byte[] passwordMac;
+    @Nullable
+    private KeyParameter key;
+    private long expiresAt;
+
+    private static final Logger log = LoggerFactory.getLogger(SpendingKeyCache.class);
+
+    public SpendingKeyCache(final long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return a copy of the cached key, if it was derived from the same password using the same key crypter and hasn't
+     *         expired yet
+     */
+    public synchronized @Nullable KeyParameter get(final KeyCrypter keyCrypter, final String password) {
+        if (key == null)
+            return null;
+        if (SystemClock.elapsedRealtime() >= expiresAt) {
+            clear();
+            return null;
+        }
+        if (!keyCrypter.equals(this.keyCrypter) || !passwordMacs.matches(passwordMac, password))
+            return null;
+        return new KeyParameter(key.getKey());
+    }
+
+    public synchronized void put(final KeyCrypter keyCrypter, final String password, final KeyParameter key) {
+        clear();
+        this.keyCrypter = keyCrypter;
+        this.passwordMac = passwordMacs.of(password);
+        this.key = new KeyParameter(key.getKey());
+        this.expiresAt = SystemClock.elapsedRealtime() + timeoutMs;
+        handler.postDelayed(clearRunnable, timeoutMs);
+    }
+
+    public synchronized void clear() {
+        handler.removeCallbacks(clearRunnable);
+        if (key != null) {
+            // getKey() exposes the internal array, so this wipes the key itself
+            Arrays.fill(key.getKey(), (byte) 0);
+            Arrays.fill(passwordMac, (byte) 0);
+            log.info("cleared cached spending key");
+        }
+        keyCrypter = null;
+        passwordMac = null;
+        key = null;
+    }
+
+    private final Runnable clearRunnable = new Runnable() {
+        @Override
+        public void run() {
+            clear();
+        }
+    };
+}
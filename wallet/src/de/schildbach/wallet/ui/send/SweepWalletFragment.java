@@ -19,8 +19,11 @@ package de.schildbach.wallet.ui.send;
 
 import static com.google.common.base.Preconditions.checkState;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -28,6 +31,7 @@ import java.util.TreeSet;
 import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.DumpedPrivateKey;
 import org.bitcoinj.core.ECKey;
@@ -36,8 +40,6 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
-import org.bitcoinj.core.TransactionInput;
-import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.VerificationException;
@@ -52,6 +54,7 @@ import org.bitcoinj.wallet.WalletTransaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Splitter;
 import com.google.common.collect.ComparisonChain;
 
 import de.schildbach.wallet.Configuration;
@@ -59,6 +62,7 @@ import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.DynamicFeeLoader;
 import de.schildbach.wallet.data.PaymentIntent;
+import de.schildbach.wallet.data.WalletObserver;
 import de.schildbach.wallet.ui.AbstractBindServiceActivity;
 import de.schildbach.wallet.ui.DialogBuilder;
 import de.schildbach.wallet.ui.InputParser.StringInputParser;
@@ -66,6 +70,7 @@ import de.schildbach.wallet.ui.ProgressDialogFragment;
 import de.schildbach.wallet.ui.ScanActivity;
 import de.schildbach.wallet.ui.TransactionsAdapter;
 import de.schildbach.wallet.util.MonetarySpannable;
+import de.schildbach.wallet.util.Toast;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet.R;
 
@@ -74,6 +79,8 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
+import android.content.ClipboardManager;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
@@ -110,9 +117,12 @@ public class SweepWalletFragment extends Fragment {
     private final Handler handler = new Handler();
     private HandlerThread backgroundThread;
     private Handler backgroundHandler;
+    @Nullable
+    private DecodePrivateKeysTask decodePrivateKeysTask = null;
 
     private State state = State.DECODE_KEY;
-    private VersionedChecksummedBytes privateKeyToSweep = null;
+    private final List<VersionedChecksummedBytes> privateKeysToSweep = new ArrayList<>();
+    private final List<ECKey> decodedKeys = new ArrayList<>();
     @Nullable
     private Map<FeeCategory, Coin> fees = null;
     private Wallet walletToSweep = null;
@@ -132,6 +142,9 @@ public class SweepWalletFragment extends Fragment {
 
     private MenuItem reloadAction;
     private MenuItem scanAction;
+    private MenuItem pasteAction;
+
+    private ClipboardManager clipboardManager;
 
     private static final int ID_DYNAMIC_FEES_LOADER = 0;
 
@@ -171,6 +184,7 @@ public class SweepWalletFragment extends Fragment {
         this.config = application.getConfiguration();
         this.loaderManager = getLoaderManager();
         this.fragmentManager = getFragmentManager();
+        this.clipboardManager = (ClipboardManager) activity.getSystemService(Context.CLIPBOARD_SERVICE);
     }
 
     @Override
@@ -193,8 +207,8 @@ public class SweepWalletFragment extends Fragment {
             final Intent intent = activity.getIntent();
 
             if (intent.hasExtra(SweepWalletActivity.INTENT_EXTRA_KEY)) {
-                privateKeyToSweep = (VersionedChecksummedBytes) intent
-                        .getSerializableExtra(SweepWalletActivity.INTENT_EXTRA_KEY);
+                addPrivateKeyToSweep(
+                        (VersionedChecksummedBytes) intent.getSerializableExtra(SweepWalletActivity.INTENT_EXTRA_KEY));
 
                 // delay until fragment is resumed
                 handler.post(maybeDecodeKeyRunnable);
@@ -264,6 +278,8 @@ public class SweepWalletFragment extends Fragment {
 
     @Override
     public void onDestroy() {
+        if (decodePrivateKeysTask != null)
+            decodePrivateKeysTask.cancel();
         backgroundThread.getLooper().quit();
 
         if (sentTransaction != null)
@@ -302,32 +318,80 @@ public class SweepWalletFragment extends Fragment {
     public void onActivityResult(final int requestCode, final int resultCode, final Intent intent) {
         if (requestCode == REQUEST_CODE_SCAN) {
             if (resultCode == Activity.RESULT_OK) {
-                final String input = intent.getStringExtra(ScanActivity.INTENT_EXTRA_RESULT);
+                final List<String> inputs = intent.getStringArrayListExtra(ScanActivity.INTENT_EXTRA_RESULTS);
+                if (inputs != null && inputs.size() > 1)
+                    handleScannedBatch(inputs);
+                else
+                    handleScanned(intent.getStringExtra(ScanActivity.INTENT_EXTRA_RESULT));
+            }
+        }
+    }
 
-                new StringInputParser(input) {
-                    @Override
-                    protected void handlePrivateKey(final VersionedChecksummedBytes key) {
-                        privateKeyToSweep = key;
-                        setState(State.DECODE_KEY);
-                        maybeDecodeKey();
-                    }
+    private void handleScanned(final String input) {
+        new StringInputParser(input) {
+            @Override
+            protected void handlePrivateKey(final VersionedChecksummedBytes key) {
+                addPrivateKeyToSweep(key);
+                setState(State.DECODE_KEY);
+                maybeDecodeKey();
+            }
 
-                    @Override
-                    protected void handlePaymentIntent(final PaymentIntent paymentIntent) {
-                        cannotClassify(input);
-                    }
+            @Override
+            protected void handlePaymentIntent(final PaymentIntent paymentIntent) {
+                cannotClassify(input);
+            }
 
-                    @Override
-                    protected void handleDirectTransaction(final Transaction transaction) throws VerificationException {
-                        cannotClassify(input);
-                    }
+            @Override
+            protected void handleDirectTransaction(final Transaction transaction) throws VerificationException {
+                cannotClassify(input);
+            }
 
-                    @Override
-                    protected void error(final int messageResId, final Object... messageArgs) {
-                        dialog(activity, null, R.string.button_scan, messageResId, messageArgs);
-                    }
-                }.parse();
+            @Override
+            protected void error(final int messageResId, final Object... messageArgs) {
+                dialog(activity, null, R.string.button_scan, messageResId, messageArgs);
             }
+        }.parse();
+    }
+
+    /**
+     * Collects the private keys among many scanned codes, and only then starts decoding them all at once. Codes that
+     * are not private keys are skipped.
+     */
+    private void handleScannedBatch(final List<String> inputs) {
+        final int numKeysBefore = privateKeysToSweep.size();
+        for (final String input : inputs) {
+            new StringInputParser(input) {
+                @Override
+                protected void handlePrivateKey(final VersionedChecksummedBytes key) {
+                    addPrivateKeyToSweep(key);
+                }
+
+                @Override
+                protected void handlePaymentIntent(final PaymentIntent paymentIntent) {
+                    cannotClassify(input);
+                }
+
+                @Override
+                protected void handleDirectTransaction(final Transaction transaction)
+                        throws VerificationException {
+                    cannotClassify(input);
+                }
+
+                @Override
+                protected void error(final int messageResId, final Object... messageArgs) {
+                    log.info("skipping scanned code: {}", getString(messageResId, messageArgs));
+                }
+            }.parse();
+        }
+
+        final int numKeys = privateKeysToSweep.size() - numKeysBefore;
+        log.info("scanned {} private keys from {} codes", numKeys, inputs.size());
+
+        if (numKeys > 0) {
+            setState(State.DECODE_KEY);
+            maybeDecodeKey();
+        } else {
+            new Toast(activity).toast(R.string.address_book_options_scan_invalid);
         }
     }
 
@@ -337,6 +401,7 @@ public class SweepWalletFragment extends Fragment {
 
         reloadAction = menu.findItem(R.id.sweep_wallet_options_reload);
         scanAction = menu.findItem(R.id.sweep_wallet_options_scan);
+        pasteAction = menu.findItem(R.id.sweep_wallet_options_paste);
 
         final PackageManager pm = activity.getPackageManager();
         scanAction.setVisible(pm.hasSystemFeature(PackageManager.FEATURE_CAMERA)
@@ -355,6 +420,10 @@ public class SweepWalletFragment extends Fragment {
         case R.id.sweep_wallet_options_scan:
             handleScan();
             return true;
+
+        case R.id.sweep_wallet_options_paste:
+            handlePaste();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -368,7 +437,53 @@ public class SweepWalletFragment extends Fragment {
     }
 
     private void handleScan() {
-        startActivityForResult(new Intent(activity, ScanActivity.class), REQUEST_CODE_SCAN);
+        final Intent intent = new Intent(activity, ScanActivity.class);
+        intent.putExtra(ScanActivity.INTENT_EXTRA_MULTIPLE, true);
+        startActivityForResult(intent, REQUEST_CODE_SCAN);
+    }
+
+    private void handlePaste() {
+        if (!clipboardManager.hasPrimaryClip()) {
+            new Toast(activity).toast(R.string.address_book_options_paste_from_clipboard_empty);
+            return;
+        }
+
+        final CharSequence clipText = clipboardManager.getPrimaryClip().getItemAt(0).coerceToText(activity);
+        int numKeys = 0;
+        for (final String token : Splitter.onPattern("[\\s,;]+").omitEmptyStrings().split(clipText)) {
+            final VersionedChecksummedBytes key = parsePrivateKey(token);
+            if (key != null) {
+                addPrivateKeyToSweep(key);
+                numKeys++;
+            }
+        }
+        log.info("pasted {} private keys", numKeys);
+
+        if (numKeys > 0) {
+            setState(State.DECODE_KEY);
+            maybeDecodeKey();
+        } else {
+            new Toast(activity).toast(R.string.address_book_options_paste_from_clipboard_invalid);
+        }
+    }
+
+    @Nullable
+    private static VersionedChecksummedBytes parsePrivateKey(final String str) {
+        try {
+            return DumpedPrivateKey.fromBase58(Constants.NETWORK_PARAMETERS, str);
+        } catch (final AddressFormatException x) {
+            // try next format
+        }
+        try {
+            return BIP38PrivateKey.fromBase58(Constants.NETWORK_PARAMETERS, str);
+        } catch (final AddressFormatException x) {
+            return null;
+        }
+    }
+
+    private void addPrivateKeyToSweep(final VersionedChecksummedBytes key) {
+        if (!privateKeysToSweep.contains(key))
+            privateKeysToSweep.add(key);
     }
 
     private final TransactionConfidence.Listener sentTransactionConfidenceListener = new TransactionConfidence.Listener() {
@@ -420,51 +535,92 @@ public class SweepWalletFragment extends Fragment {
 
     private void maybeDecodeKey() {
         checkState(state == State.DECODE_KEY);
-        checkState(privateKeyToSweep != null);
-
-        if (privateKeyToSweep instanceof DumpedPrivateKey) {
-            final ECKey key = ((DumpedPrivateKey) privateKeyToSweep).getKey();
-            askConfirmSweep(key);
-        } else if (privateKeyToSweep instanceof BIP38PrivateKey) {
-            badPasswordView.setVisibility(View.INVISIBLE);
-
-            final String password = passwordView.getText().toString().trim();
-            passwordView.setText(null); // get rid of it asap
-
-            if (!password.isEmpty()) {
-                ProgressDialogFragment.showProgress(fragmentManager,
-                        getString(R.string.sweep_wallet_fragment_decrypt_progress));
+        checkState(!privateKeysToSweep.isEmpty());
+
+        final List<BIP38PrivateKey> encryptedKeys = new ArrayList<>();
+        for (final Iterator<VersionedChecksummedBytes> i = privateKeysToSweep.iterator(); i.hasNext();) {
+            final VersionedChecksummedBytes privateKey = i.next();
+            if (privateKey instanceof DumpedPrivateKey) {
+                addDecodedKey(((DumpedPrivateKey) privateKey).getKey());
+                i.remove();
+            } else if (privateKey instanceof BIP38PrivateKey) {
+                encryptedKeys.add((BIP38PrivateKey) privateKey);
+            } else {
+                throw new IllegalStateException("cannot handle type: " + privateKey.getClass().getName());
+            }
+        }
 
-                new DecodePrivateKeyTask(backgroundHandler) {
-                    @Override
-                    protected void onSuccess(ECKey decryptedKey) {
-                        log.info("successfully decoded BIP38 private key");
+        if (encryptedKeys.isEmpty()) {
+            askConfirmSweep();
+            return;
+        }
 
-                        ProgressDialogFragment.dismissProgress(fragmentManager);
+        badPasswordView.setVisibility(View.INVISIBLE);
 
-                        askConfirmSweep(decryptedKey);
-                    }
+        final String password = passwordView.getText().toString().trim();
+        passwordView.setText(null); // get rid of it asap
 
-                    @Override
-                    protected void onBadPassphrase() {
-                        log.info("failed decoding BIP38 private key (bad password)");
+        if (!password.isEmpty()) {
+            ProgressDialogFragment.showProgress(fragmentManager,
+                    getString(R.string.sweep_wallet_fragment_decrypt_progress));
 
-                        ProgressDialogFragment.dismissProgress(fragmentManager);
+            decodePrivateKeysTask = new DecodePrivateKeysTask(backgroundHandler, application.maxScryptMemory()) {
+                @Override
+                protected void onProgress(final int numDecoded, final int numKeys) {
+                    if (numKeys > 1)
+                        ProgressDialogFragment.updateProgress(fragmentManager,
+                                getString(R.string.sweep_wallet_fragment_decrypt_progress_keys, numDecoded, numKeys));
+                }
 
+                @Override
+                protected void onResult(final List<ECKey> decryptedKeys,
+                        final List<BIP38PrivateKey> badPassphraseKeys) {
+                    decodePrivateKeysTask = null;
+                    log.info("successfully decoded {} BIP38 private keys, {} failed (bad password)",
+                            decryptedKeys.size(), badPassphraseKeys.size());
+
+                    ProgressDialogFragment.dismissProgress(fragmentManager);
+
+                    for (final BIP38PrivateKey encryptedKey : encryptedKeys)
+                        if (!badPassphraseKeys.contains(encryptedKey))
+                            privateKeysToSweep.remove(encryptedKey);
+                    for (final ECKey decryptedKey : decryptedKeys)
+                        addDecodedKey(decryptedKey);
+
+                    if (badPassphraseKeys.isEmpty()) {
+                        askConfirmSweep();
+                    } else {
                         badPasswordView.setVisibility(View.VISIBLE);
                         passwordView.requestFocus();
+                        updateView();
                     }
-                }.decodePrivateKey((BIP38PrivateKey) privateKeyToSweep, password);
-            }
-        } else {
-            throw new IllegalStateException("cannot handle type: " + privateKeyToSweep.getClass().getName());
+                }
+
+                @Override
+                protected void onFailure(final Exception exception) {
+                    decodePrivateKeysTask = null;
+                    ProgressDialogFragment.dismissProgress(fragmentManager);
+
+                    final DialogBuilder dialog = DialogBuilder.warn(activity,
+                            R.string.sweep_wallet_fragment_decrypt_failed_title);
+                    dialog.setMessage(exception.toString());
+                    dialog.setNeutralButton(R.string.button_dismiss, null);
+                    dialog.show();
+                }
+            };
+            decodePrivateKeysTask.decodePrivateKeys(encryptedKeys, password);
         }
     }
 
-    private void askConfirmSweep(final ECKey key) {
+    private void addDecodedKey(final ECKey key) {
+        if (!decodedKeys.contains(key))
+            decodedKeys.add(key);
+    }
+
+    private void askConfirmSweep() {
         // create non-HD wallet
         final KeyChainGroup group = new KeyChainGroup(Constants.NETWORK_PARAMETERS);
-        group.importKeys(key);
+        group.importKeys(decodedKeys);
         walletToSweep = new Wallet(Constants.NETWORK_PARAMETERS, group);
 
         setState(State.CONFIRM_SWEEP);
@@ -489,8 +645,13 @@ public class SweepWalletFragment extends Fragment {
     };
 
     private void requestWalletBalance() {
-        ProgressDialogFragment.showProgress(fragmentManager,
-                getString(R.string.sweep_wallet_fragment_request_wallet_balance_progress));
+        final List<Address> addresses = new ArrayList<>();
+        for (final ECKey key : walletToSweep.getImportedKeys())
+            addresses.add(key.toAddress(Constants.NETWORK_PARAMETERS));
+
+        ProgressDialogFragment.showProgress(fragmentManager, addresses.size() > 1
+                ? getString(R.string.sweep_wallet_fragment_request_wallet_balance_progress_keys, addresses.size())
+                : getString(R.string.sweep_wallet_fragment_request_wallet_balance_progress));
 
         final RequestWalletBalanceTask.ResultCallback callback = new RequestWalletBalanceTask.ResultCallback() {
             @Override
@@ -498,10 +659,10 @@ public class SweepWalletFragment extends Fragment {
                 ProgressDialogFragment.dismissProgress(fragmentManager);
 
                 // Filter UTXOs we've already spent and sort the rest.
-                final Set<Transaction> walletTxns = application.getWallet().getTransactions(false);
+                final WalletObserver walletObserver = application.getWalletObserver();
                 final Set<UTXO> sortedUtxos = new TreeSet<>(UTXO_COMPARATOR);
                 for (final UTXO utxo : utxos)
-                    if (!utxoSpentBy(walletTxns, utxo))
+                    if (!walletObserver.isSpentByWallet(utxo.getHash(), utxo.getIndex()))
                         sortedUtxos.add(utxo);
 
                 // Fake transaction funding the wallet to sweep.
@@ -531,17 +692,6 @@ public class SweepWalletFragment extends Fragment {
                 updateView();
             }
 
-            private boolean utxoSpentBy(final Set<Transaction> transactions, final UTXO utxo) {
-                for (final Transaction tx : transactions) {
-                    for (final TransactionInput input : tx.getInputs()) {
-                        final TransactionOutPoint outpoint = input.getOutpoint();
-                        if (outpoint.getHash().equals(utxo.getHash()) && outpoint.getIndex() == utxo.getIndex())
-                            return true;
-                    }
-                }
-                return false;
-            }
-
             @Override
             public void onFail(final int messageResId, final Object... messageArgs) {
                 ProgressDialogFragment.dismissProgress(fragmentManager);
@@ -560,9 +710,8 @@ public class SweepWalletFragment extends Fragment {
             }
         };
 
-        final Address address = walletToSweep.getImportedKeys().iterator().next()
-                .toAddress(Constants.NETWORK_PARAMETERS);
-        new RequestWalletBalanceTask(backgroundHandler, callback).requestWalletBalance(activity.getAssets(), address);
+        new RequestWalletBalanceTask(backgroundHandler, callback).requestWalletBalance(activity.getAssets(),
+                addresses);
     }
 
     private void setState(final State state) {
@@ -587,20 +736,25 @@ public class SweepWalletFragment extends Fragment {
             balanceView.setVisibility(View.GONE);
         }
 
-        if (state == State.DECODE_KEY && privateKeyToSweep == null) {
+        final boolean hasKeysToDecode = !privateKeysToSweep.isEmpty();
+        final boolean hasKeys = hasKeysToDecode || walletToSweep != null;
+        final int numKeys = walletToSweep != null ? walletToSweep.getImportedKeys().size() : 0;
+        if (state == State.DECODE_KEY && !hasKeys) {
             messageView.setVisibility(View.VISIBLE);
             messageView.setText(R.string.sweep_wallet_fragment_wallet_unknown);
-        } else if (state == State.DECODE_KEY && privateKeyToSweep != null) {
+        } else if (state == State.DECODE_KEY && hasKeysToDecode) {
             messageView.setVisibility(View.VISIBLE);
             messageView.setText(R.string.sweep_wallet_fragment_encrypted);
-        } else if (privateKeyToSweep != null) {
+        } else if (numKeys > 1) {
+            messageView.setVisibility(View.VISIBLE);
+            messageView.setText(getString(R.string.sweep_wallet_fragment_num_keys, numKeys));
+        } else if (hasKeys) {
             messageView.setVisibility(View.GONE);
         }
 
-        passwordViewGroup
-                .setVisibility(state == State.DECODE_KEY && privateKeyToSweep != null ? View.VISIBLE : View.GONE);
+        passwordViewGroup.setVisibility(state == State.DECODE_KEY && hasKeysToDecode ? View.VISIBLE : View.GONE);
 
-        hintView.setVisibility(state == State.DECODE_KEY && privateKeyToSweep == null ? View.VISIBLE : View.GONE);
+        hintView.setVisibility(state == State.DECODE_KEY && !hasKeys ? View.VISIBLE : View.GONE);
 
         if (sentTransaction != null) {
             sweepTransactionView.setVisibility(View.VISIBLE);
@@ -614,7 +768,7 @@ public class SweepWalletFragment extends Fragment {
         if (state == State.DECODE_KEY) {
             viewCancel.setText(R.string.button_cancel);
             viewGo.setText(R.string.sweep_wallet_fragment_button_decrypt);
-            viewGo.setEnabled(privateKeyToSweep != null);
+            viewGo.setEnabled(hasKeysToDecode);
         } else if (state == State.CONFIRM_SWEEP) {
             viewCancel.setText(R.string.button_cancel);
             viewGo.setText(R.string.sweep_wallet_fragment_button_sweep);
@@ -645,6 +799,8 @@ public class SweepWalletFragment extends Fragment {
             reloadAction.setEnabled(state == State.CONFIRM_SWEEP && walletToSweep != null);
         if (scanAction != null)
             scanAction.setEnabled(state == State.DECODE_KEY || state == State.CONFIRM_SWEEP);
+        if (pasteAction != null)
+            pasteAction.setEnabled(state == State.DECODE_KEY || state == State.CONFIRM_SWEEP);
     }
 
     private void handleDecrypt() {
@@ -0,0 +1,145 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import javax.annotation.Nullable;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.R;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.app.FragmentManager;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.Window;
+import android.widget.ImageView;
+
+/**
+ * Shows content that is too large for a single QR code as an endless sequence of frames, see {@link FountainCode}.
+ * Missing a frame doesn't matter, so the frames can use a low error correction level, which keeps them small. Frames
+ * are rendered on the {@link QrBitmapCache} thread, one at a time, so a slow device shows them less often rather than
+ * stalling the UI.
+ *
+ * @author Andreas Schildbach
+ */
+public class AnimatedQrFragment extends DialogFragment {
+    private static final String FRAGMENT_TAG = AnimatedQrFragment.class.getName();
+    private static final String KEY_CONTENT = "content";
+
+    private static final long FRAME_INTERVAL_MS = 250;
+
+    public static void show(final FragmentManager fm, final String content) {
+        instance(content).show(fm, FRAGMENT_TAG);
+    }
+
+    private static AnimatedQrFragment instance(final String content) {
+        final AnimatedQrFragment fragment = new AnimatedQrFragment();
+
+        final Bundle args = new Bundle();
+        args.putString(KEY_CONTENT, content);
+        fragment.setArguments(args);
+
+        return fragment;
+    }
+
+    private Activity activity;
+    private QrBitmapCache qrBitmapCache;
+    private final Handler handler = new Handler();
+    private FountainCode.Encoder encoder;
+    private ImageView imageView;
+
+    @Override
+    public void onAttach(final Activity activity) {
+        super.onAttach(activity);
+
+        this.activity = activity;
+        this.qrBitmapCache = ((WalletApplication) activity.getApplication()).getQrBitmapCache();
+    }
+
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        encoder = Qr.frames(getArguments().getString(KEY_CONTENT));
+    }
+
+    @Override
+    public Dialog onCreateDialog(final Bundle savedInstanceState) {
+        final Dialog dialog = new Dialog(activity);
+        dialog.requestWindowFeature(Window.FEATURE_NO_TITLE);
+        dialog.setContentView(R.layout.bitmap_dialog);
+        dialog.setCanceledOnTouchOutside(true);
+
+        imageView = (ImageView) dialog.findViewById(R.id.bitmap_dialog_image);
+        imageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View v) {
+                dismiss();
+            }
+        });
+
+        return dialog;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        handler.post(nextFrameRunnable);
+    }
+
+    @Override
+    public void onPause() {
+        handler.removeCallbacks(nextFrameRunnable);
+
+        super.onPause();
+    }
+
+    private final Runnable nextFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long start = SystemClock.elapsedRealtime();
+            qrBitmapCache.renderUncached(encoder.nextFrame(), ErrorCorrectionLevel.M, new QrBitmapCache.Callback() {
+                @Override
+                public void onBitmap(final String content, @Nullable final Bitmap bitmap) {
+                    if (!isResumed())
+                        return;
+
+                    if (bitmap != null) {
+                        final BitmapDrawable drawable = new BitmapDrawable(getResources(), bitmap);
+                        drawable.setFilterBitmap(false);
+                        imageView.setImageDrawable(drawable);
+                    }
+
+                    // a render still in flight from before a pause must not start a second chain
+                    handler.removeCallbacks(nextFrameRunnable);
+                    final long elapsed = SystemClock.elapsedRealtime() - start;
+                    handler.postDelayed(nextFrameRunnable, Math.max(0, FRAME_INTERVAL_MS - elapsed));
+                }
+            });
+        }
+    };
+}
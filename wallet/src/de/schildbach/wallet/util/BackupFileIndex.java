@@ -0,0 +1,199 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.DumpedPrivateKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import android.os.Handler;
+
+/**
+ * Classifies backup files by looking at their first few kilobytes only. Results are cached by path, and stay valid as
+ * long as size and modification time of the file don't change. Scanning many files is spread across a few threads.
+ *
+ * @author Andreas Schildbach
+ */
+public final class BackupFileIndex {
+    public enum Type {
+        /** unencrypted wallet protobuf */
+        PROTOBUF,
+        /** private keys in Base58, one per line */
+        KEYS,
+        /** encrypted by {@link Crypto}, in any format */
+        ENCRYPTED,
+        UNKNOWN
+    }
+
+    public interface Callback {
+        void onScanned(Map<File, Type> types);
+    }
+
+    private static final int HEADER_LENGTH = 4096;
+    private static final int MAX_THREADS = 4;
+
+    private final NetworkParameters params;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private final ThreadPoolExecutor executor;
+
+    private static final Logger log = LoggerFactory.getLogger(BackupFileIndex.class);
+
+    public BackupFileIndex(final NetworkParameters params) {
+        this.params = params;
+        final int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+        this.executor = new ThreadPoolExecutor(numThreads, numThreads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("backup-scanner-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Classifies the given files in parallel, then hands the result to the callback on the given handler. Files that
+     * are already cached are not read again.
+     */
+    public void scan(final Collection<File> files, final Handler callbackHandler, final Callback callback) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final Map<File, Type> types = new ConcurrentHashMap<File, Type>();
+        final AtomicInteger remaining = new AtomicInteger(files.size());
+        final Runnable onScanned = new Runnable() {
+            @Override
+            public void run() {
+                callback.onScanned(types);
+            }
+        };
+
+        if (files.isEmpty()) {
+            callbackHandler.post(onScanned);
+            return;
+        }
+
+        for (final File file : files) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    types.put(file, get(file));
+                    if (remaining.decrementAndGet() == 0) {
+                        log.info("scanned {} backup files, took {}", types.size(), watch);
+                        callbackHandler.post(onScanned);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Classifies the given file, using the cache if possible. Blocks for reading the file otherwise.
+     */
+    public Type get(final File file) {
+        final String path = file.getAbsolutePath();
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+
+        final Entry entry = cache.get(path);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified)
+            return entry.type;
+
+        final Type type = classify(file);
+        cache.put(path, new Entry(size, lastModified, type));
+        return type;
+    }
+
+    private Type classify(final File file) {
+        final byte[] header = new byte[HEADER_LENGTH];
+        final int headerLength;
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            headerLength = ByteStreams.read(is, header, 0, header.length);
+        } catch (final IOException x) {
+            return Type.UNKNOWN;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+
+        if (WalletProtobufSerializer.isWallet(new ByteArrayInputStream(header, 0, headerLength)))
+            return Type.PROTOBUF;
+
+        final String text = new String(header, 0, headerLength, Charsets.UTF_8);
+        if (Crypto.isEncrypted(text))
+            return Type.ENCRYPTED;
+        if (looksLikeKeys(text, headerLength == header.length))
+            return Type.KEYS;
+        return Type.UNKNOWN;
+    }
+
+    /**
+     * Checks if the first key line is a private key, like {@link WalletUtils#readKeys} would read it.
+     */
+    private boolean looksLikeKeys(final String text, final boolean truncated) {
+        final int end = truncated ? text.lastIndexOf('\n') : text.length();
+        if (end < 0)
+            return false;
+        for (final String line : Splitter.on('\n').split(text.substring(0, end))) {
+            if (line.trim().isEmpty() || line.charAt(0) == '#')
+                continue; // skip comment
+            try {
+                DumpedPrivateKey.fromBase58(params, Splitter.on(' ').split(line.trim()).iterator().next());
+                return true;
+            } catch (final AddressFormatException x) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static final class Entry {
+        public final long size;
+        public final long lastModified;
+        public final Type type;
+
+        public Entry(final long size, final long lastModified, final Type type) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.type = type;
+        }
+    }
+}
@@ -19,9 +19,17 @@ package de.schildbach.wallet.util;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
@@ -29,15 +37,22 @@ import org.spongycastle.crypto.BufferedBlockCipher;
 import org.spongycastle.crypto.CipherParameters;
 import org.spongycastle.crypto.DataLengthException;
 import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.Mac;
 import org.spongycastle.crypto.PBEParametersGenerator;
+import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.engines.AESFastEngine;
 import org.spongycastle.crypto.generators.OpenSSLPBEParametersGenerator;
+import org.spongycastle.crypto.io.CipherOutputStream;
+import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.crypto.modes.CBCBlockCipher;
 import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.crypto.params.ParametersWithIV;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.lambdaworks.crypto.SCrypt;
 
 /**
  * This class encrypts and decrypts a string in a manner that is compatible with OpenSSL.
@@ -49,6 +64,11 @@ import com.google.common.io.BaseEncoding;
  * 
  * substitute your password for "aTestPassword" or remove the "-pass" parameter to be prompted.
  * 
+ * Besides the OpenSSL format, there is an authenticated format: AES-256-CTR with HMAC-SHA256 over the whole file, and
+ * keys derived by scrypt. It also stores a short password check, so a wrong password is detected without decrypting
+ * anything. Both formats can be written and read as streams, see {@link #encryptingStream(Writer, char[], Format)}
+ * and {@link #decryptingStream(Reader, char[])}.
+ * 
  * @author jim
  * @author Andreas Schildbach
  */
@@ -95,6 +115,40 @@ public class Crypto {
 
     private static final int NUMBER_OF_CHARACTERS_TO_MATCH_IN_OPENSSL_MAGIC_TEXT = 10;
 
+    /**
+     * Magic bytes of the authenticated format, same length as {@link #OPENSSL_SALTED_BYTES}.
+     */
+    private static final byte[] AUTHENTICATED_MAGIC_BYTES = "AuthEnc1".getBytes(Charsets.UTF_8);
+
+    private static final String AUTHENTICATED_MAGIC_TEXT = BASE64_ENCRYPT.encode(AUTHENTICATED_MAGIC_BYTES)
+            .substring(0, NUMBER_OF_CHARACTERS_TO_MATCH_IN_OPENSSL_MAGIC_TEXT);
+
+    /**
+     * scrypt parameters of the authenticated format. N is stored as its binary logarithm.
+     */
+    private static final int AUTHENTICATED_SCRYPT_LOG2_N = 14;
+    private static final int AUTHENTICATED_SCRYPT_R = 8;
+    private static final int AUTHENTICATED_SCRYPT_P = 1;
+    /**
+     * Bounds for scrypt parameters read from a file. They are checked before anything is authenticated, so they keep
+     * a corrupted or crafted file from making us run out of memory or spin for minutes.
+     */
+    private static final int AUTHENTICATED_MAX_SCRYPT_LOG2_N = 20;
+    private static final int AUTHENTICATED_MAX_SCRYPT_R = 32;
+    private static final int AUTHENTICATED_MAX_SCRYPT_P = 16;
+    private static final long AUTHENTICATED_MAX_SCRYPT_COST = 64 * 1024 * 1024;
+    private static final int AUTHENTICATED_SALT_LENGTH = 16;
+    private static final int AUTHENTICATED_CHECK_LENGTH = 16;
+    private static final int AUTHENTICATED_KEY_LENGTH = 32;
+    private static final int AUTHENTICATED_MAC_LENGTH = 32;
+
+    public enum Format {
+        /** compatible with {@code openssl enc -aes-256-cbc -a} */
+        OPENSSL,
+        /** AES-256-CTR and HMAC-SHA256, keys derived by scrypt */
+        AUTHENTICATED
+    }
+
     private static final SecureRandom secureRandom = new SecureRandom();
 
     /**
@@ -268,6 +322,328 @@ public class Crypto {
         }
     }
 
+    /**
+     * Encrypts everything written to the returned stream, Base64 encoded into the given writer. The stream must be
+     * closed to finish encryption; this also closes the writer.
+     */
+    public static OutputStream encryptingStream(final Writer out, final char[] password, final Format format)
+            throws IOException {
+        final OutputStream base64Out = BASE64_ENCRYPT.encodingStream(out);
+
+        if (format == Format.OPENSSL) {
+            final byte[] salt = new byte[SALT_LENGTH];
+            secureRandom.nextBytes(salt);
+            base64Out.write(OPENSSL_SALTED_BYTES);
+            base64Out.write(salt);
+
+            final BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+            cipher.init(true, getAESPasswordKey(password, salt));
+            return new CipherOutputStream(base64Out, cipher);
+        } else {
+            final byte[] salt = new byte[AUTHENTICATED_SALT_LENGTH];
+            secureRandom.nextBytes(salt);
+            final byte[] header = new byte[AUTHENTICATED_MAGIC_BYTES.length + 3 + AUTHENTICATED_SALT_LENGTH];
+            System.arraycopy(AUTHENTICATED_MAGIC_BYTES, 0, header, 0, AUTHENTICATED_MAGIC_BYTES.length);
+            header[AUTHENTICATED_MAGIC_BYTES.length] = AUTHENTICATED_SCRYPT_LOG2_N;
+            header[AUTHENTICATED_MAGIC_BYTES.length + 1] = AUTHENTICATED_SCRYPT_R;
+            header[AUTHENTICATED_MAGIC_BYTES.length + 2] = AUTHENTICATED_SCRYPT_P;
+            System.arraycopy(salt, 0, header, AUTHENTICATED_MAGIC_BYTES.length + 3, AUTHENTICATED_SALT_LENGTH);
+
+            final byte[] keys = deriveAuthenticatedKeys(password, salt, AUTHENTICATED_SCRYPT_LOG2_N,
+                    AUTHENTICATED_SCRYPT_R, AUTHENTICATED_SCRYPT_P);
+            final Mac mac = authenticatedMac(keys);
+            mac.update(header, 0, header.length);
+            mac.update(keys, 2 * AUTHENTICATED_KEY_LENGTH, AUTHENTICATED_CHECK_LENGTH);
+            base64Out.write(header);
+            base64Out.write(keys, 2 * AUTHENTICATED_KEY_LENGTH, AUTHENTICATED_CHECK_LENGTH);
+            return new AuthenticatedOutputStream(base64Out, new CtrKeystream(keys), mac);
+        }
+    }
+
+    /**
+     * Decrypts Base64 encoded text of either format, as it is read from the returned stream. For the authenticated
+     * format, a wrong password is detected right away, while a manipulated or truncated file is detected when reaching
+     * the end of the stream. Either way, an {@link IOException} is thrown.
+     */
+    public static InputStream decryptingStream(final Reader in, final char[] password) throws IOException {
+        final InputStream base64In = BASE64_DECRYPT.decodingStream(in);
+
+        final byte[] magic = new byte[OPENSSL_SALTED_BYTES.length];
+        readFully(base64In, magic, "out of salt");
+
+        if (Arrays.equals(magic, OPENSSL_SALTED_BYTES)) {
+            final byte[] salt = new byte[SALT_LENGTH];
+            readFully(base64In, salt, "out of salt");
+
+            final BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+            cipher.init(false, getAESPasswordKey(password, salt));
+            return new CipherInputStream(base64In, cipher);
+        } else if (Arrays.equals(magic, AUTHENTICATED_MAGIC_BYTES)) {
+            final byte[] params = new byte[3];
+            readFully(base64In, params, "truncated header");
+            final int log2N = params[0], r = params[1], p = params[2];
+            if (log2N < 1 || log2N > AUTHENTICATED_MAX_SCRYPT_LOG2_N || r < 1 || r > AUTHENTICATED_MAX_SCRYPT_R
+                    || p < 1 || p > AUTHENTICATED_MAX_SCRYPT_P
+                    || 128L * r * (1 << log2N) * p > AUTHENTICATED_MAX_SCRYPT_COST)
+                throw new IOException("unsupported scrypt parameters");
+            final byte[] salt = new byte[AUTHENTICATED_SALT_LENGTH];
+            readFully(base64In, salt, "truncated header");
+            final byte[] check = new byte[AUTHENTICATED_CHECK_LENGTH];
+            readFully(base64In, check, "truncated header");
+
+            final byte[] keys = deriveAuthenticatedKeys(password, salt, log2N, r, p);
+            if (!MessageDigest.isEqual(check,
+                    Arrays.copyOfRange(keys, 2 * AUTHENTICATED_KEY_LENGTH, keys.length)))
+                throw new IOException("bad password");
+
+            final Mac mac = authenticatedMac(keys);
+            mac.update(magic, 0, magic.length);
+            mac.update(params, 0, params.length);
+            mac.update(salt, 0, salt.length);
+            mac.update(check, 0, check.length);
+            return new AuthenticatedInputStream(base64In, new CtrKeystream(keys), mac);
+        } else {
+            throw new IOException("unknown format");
+        }
+    }
+
+    private static void readFully(final InputStream in, final byte[] b, final String message) throws IOException {
+        if (ByteStreams.read(in, b, 0, b.length) < b.length)
+            throw new IOException(message);
+    }
+
+    /**
+     * @return encryption key, MAC key and password check, concatenated
+     */
+    private static byte[] deriveAuthenticatedKeys(final char[] password, final byte[] salt, final int log2N,
+            final int r, final int p) throws IOException {
+        final ByteBuffer encoded = Charsets.UTF_8.encode(CharBuffer.wrap(password));
+        final byte[] passwordBytes = Arrays.copyOf(encoded.array(), encoded.limit());
+        Arrays.fill(encoded.array(), (byte) 0);
+        try {
+            return SCrypt.scrypt(passwordBytes, salt, 1 << log2N, r, p,
+                    2 * AUTHENTICATED_KEY_LENGTH + AUTHENTICATED_CHECK_LENGTH);
+        } catch (final GeneralSecurityException x) {
+            throw new IOException("Could not derive keys", x);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    private static Mac authenticatedMac(final byte[] keys) {
+        final Mac mac = new HMac(new SHA256Digest());
+        mac.init(new KeyParameter(keys, AUTHENTICATED_KEY_LENGTH, AUTHENTICATED_KEY_LENGTH));
+        return mac;
+    }
+
+    /**
+     * AES in counter mode. As each key is derived from a fresh salt and used for only one file, the counter starts
+     * at zero.
+     */
+    private static final class CtrKeystream {
+        private final AESFastEngine aes = new AESFastEngine();
+        private final byte[] counter = new byte[16];
+        private final byte[] block = new byte[16];
+        private int used = block.length;
+
+        public CtrKeystream(final byte[] keys) {
+            aes.init(true, new KeyParameter(keys, 0, AUTHENTICATED_KEY_LENGTH));
+        }
+
+        public void process(final byte[] in, final int inOff, final byte[] out, final int outOff, final int len) {
+            for (int i = 0; i < len; i++) {
+                if (used == block.length) {
+                    aes.processBlock(counter, 0, block, 0);
+                    int j = counter.length - 1;
+                    while (j >= 0 && ++counter[j] == 0)
+                        j--;
+                    used = 0;
+                }
+                out[outOff + i] = (byte) (in[inOff + i] ^ block[used++]);
+            }
+        }
+    }
+
+    /**
+     * Encrypts, then MACs what's written. The MAC is appended on close.
+     */
+    private static final class AuthenticatedOutputStream extends FilterOutputStream {
+        private final CtrKeystream keystream;
+        private final Mac mac;
+        private final byte[] buf = new byte[4096];
+        private boolean closed = false;
+
+        public AuthenticatedOutputStream(final OutputStream out, final CtrKeystream keystream, final Mac mac) {
+            super(out);
+            this.keystream = keystream;
+            this.mac = mac;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = Math.min(len, buf.length);
+                keystream.process(b, off, buf, 0, n);
+                mac.update(buf, 0, n);
+                out.write(buf, 0, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            final byte[] tag = new byte[AUTHENTICATED_MAC_LENGTH];
+            mac.doFinal(tag, 0);
+            out.write(tag);
+            super.close();
+        }
+    }
+
+    /**
+     * Holds back the trailing MAC while decrypting, and verifies it at the end of the stream.
+     */
+    private static final class AuthenticatedInputStream extends InputStream {
+        private final InputStream in;
+        private final CtrKeystream keystream;
+        private final Mac mac;
+        private final byte[] buf = new byte[4096 + AUTHENTICATED_MAC_LENGTH];
+        private int count = 0;
+        private boolean eof = false;
+        private boolean verified = false;
+
+        public AuthenticatedInputStream(final InputStream in, final CtrKeystream keystream, final Mac mac) {
+            this.in = in;
+            this.keystream = keystream;
+            this.mac = mac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (verified)
+                return -1;
+
+            while (!eof && count <= AUTHENTICATED_MAC_LENGTH) {
+                final int n = in.read(buf, count, buf.length - count);
+                if (n == -1)
+                    eof = true;
+                else
+                    count += n;
+            }
+
+            final int available = count - AUTHENTICATED_MAC_LENGTH;
+            if (available <= 0) {
+                if (available < 0)
+                    throw new IOException("truncated");
+                final byte[] tag = new byte[AUTHENTICATED_MAC_LENGTH];
+                mac.doFinal(tag, 0);
+                if (!MessageDigest.isEqual(tag, Arrays.copyOf(buf, AUTHENTICATED_MAC_LENGTH)))
+                    throw new IOException("authentication failed");
+                verified = true;
+                return -1;
+            }
+
+            final int n = Math.min(len, available);
+            mac.update(buf, 0, n);
+            keystream.process(buf, 0, b, off, n);
+            System.arraycopy(buf, n, buf, 0, count - n);
+            count -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return Math.max(count - AUTHENTICATED_MAC_LENGTH, 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Decrypts a block cipher while reading. Unlike bouncy castle's own stream, a failing final block, e.g. because
+     * of a wrong password, is always reported.
+     */
+    private static final class CipherInputStream extends InputStream {
+        private final InputStream in;
+        private final BufferedBlockCipher cipher;
+        private final byte[] inBuf = new byte[4096];
+        private final byte[] outBuf;
+        private int outPos = 0;
+        private int outLen = 0;
+        private boolean finished = false;
+
+        public CipherInputStream(final InputStream in, final BufferedBlockCipher cipher) {
+            this.in = in;
+            this.cipher = cipher;
+            this.outBuf = new byte[inBuf.length + 2 * cipher.getBlockSize()];
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            try {
+                while (outPos == outLen) {
+                    if (finished)
+                        return -1;
+                    final int n = in.read(inBuf);
+                    if (n == -1) {
+                        outLen = cipher.doFinal(outBuf, 0);
+                        finished = true;
+                    } else {
+                        outLen = cipher.processBytes(inBuf, 0, n, outBuf, 0);
+                    }
+                    outPos = 0;
+                }
+            } catch (final InvalidCipherTextException x) {
+                throw new IOException("Could not decrypt bytes", x);
+            } catch (final DataLengthException x) {
+                throw new IOException("Could not decrypt bytes", x);
+            }
+
+            final int n = Math.min(len, outLen - outPos);
+            System.arraycopy(outBuf, outPos, b, off, n);
+            outPos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return outLen - outPos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
     /**
      * Concatenate two byte arrays.
      */
@@ -279,11 +655,17 @@ public class Crypto {
         return result;
     }
 
-    public final static FileFilter OPENSSL_FILE_FILTER = new FileFilter() {
-        private final char[] buf = new char[OPENSSL_MAGIC_TEXT.length()];
+    /**
+     * Checks if the given text starts like a file encrypted by this class, in any format.
+     */
+    public static boolean isEncrypted(final String header) {
+        return header.startsWith(OPENSSL_MAGIC_TEXT) || header.startsWith(AUTHENTICATED_MAGIC_TEXT);
+    }
 
+    public final static FileFilter OPENSSL_FILE_FILTER = new FileFilter() {
         @Override
         public boolean accept(final File file) {
+            final char[] buf = new char[OPENSSL_MAGIC_TEXT.length()];
             Reader in = null;
             try {
                 in = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
@@ -305,4 +687,34 @@ public class Crypto {
             }
         }
     };
+
+    /**
+     * Accepts files of either format.
+     */
+    public final static FileFilter ENCRYPTED_FILE_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(final File file) {
+            final char[] buf = new char[NUMBER_OF_CHARACTERS_TO_MATCH_IN_OPENSSL_MAGIC_TEXT];
+            Reader in = null;
+            try {
+                in = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+                for (int n = 0; n < buf.length;) {
+                    final int read = in.read(buf, n, buf.length - n);
+                    if (read == -1)
+                        return false;
+                    n += read;
+                }
+                return isEncrypted(new String(buf));
+            } catch (final IOException x) {
+                return false;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (final IOException x2) {
+                    }
+                }
+            }
+        }
+    };
 }
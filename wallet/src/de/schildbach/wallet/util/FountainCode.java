@@ -0,0 +1,331 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * Splits binary content into a stream of frames that can be sent as an animated sequence of small QR codes. The first
+ * frames carry one fragment of the content each. All later frames carry a pseudo-random combination of fragments, so
+ * that the receiver can fill the gaps from whatever frames it catches, in any order, without needing a particular one.
+ *
+ * A frame is {@link #FRAME_PREFIX} followed by Base43 of a header (sequence number, number of fragments, content
+ * length and CRC32 of the content) and the combined fragment.
+ *
+ * @author Andreas Schildbach
+ */
+public final class FountainCode {
+    public static final char FRAME_PREFIX = '%';
+
+    private static final int HEADER_LENGTH = 4 + 2 + 4 + 4;
+    private static final int MAX_FRAGMENTS = 0xffff;
+    /**
+     * sequence numbers wrap at this many times the number of fragments, which bounds what the receiver has to track;
+     * by then it has long restored the content
+     */
+    private static final int SEQUENCES_PER_FRAGMENT = 64;
+
+    /** parameters of the robust soliton distribution, tuned for tens to hundreds of fragments */
+    private static final double ROBUST_SOLITON_C = 0.1;
+    private static final double ROBUST_SOLITON_DELTA = 0.5;
+
+    /**
+     * Produces an endless stream of frames for the given content.
+     */
+    public static final class Encoder {
+        private final byte[][] fragments;
+        private final int contentLength;
+        private final int checksum;
+        private int sequence = 0;
+
+        public Encoder(final byte[] bytes, final int fragmentLength) {
+            final int numFragments = Math.max(1, (bytes.length + fragmentLength - 1) / fragmentLength);
+            if (numFragments > MAX_FRAGMENTS)
+                throw new IllegalArgumentException("too many fragments: " + numFragments);
+
+            this.fragments = new byte[numFragments][fragmentLength];
+            for (int i = 0; i < numFragments; i++) {
+                final int offset = i * fragmentLength;
+                System.arraycopy(bytes, offset, fragments[i], 0, Math.min(fragmentLength, bytes.length - offset));
+            }
+            this.contentLength = bytes.length;
+            this.checksum = checksum(bytes);
+        }
+
+        public int getNumFragments() {
+            return fragments.length;
+        }
+
+        public String nextFrame() {
+            final int fragmentLength = fragments[0].length;
+            final ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + fragmentLength);
+            frame.putInt(sequence).putShort((short) fragments.length).putInt(contentLength).putInt(checksum);
+
+            final byte[] block = new byte[fragmentLength];
+            final BitSet mix = mix(sequence, fragments.length, checksum);
+            for (int i = mix.nextSetBit(0); i >= 0; i = mix.nextSetBit(i + 1))
+                xor(block, fragments[i]);
+            frame.put(block);
+
+            sequence = (sequence + 1) % (fragments.length * SEQUENCES_PER_FRAGMENT);
+            return FRAME_PREFIX + Base43.encode(frame.array());
+        }
+    }
+
+    /**
+     * Collects frames until the content can be restored. Frames of different content make it start over.
+     */
+    public static final class Decoder {
+        private int numFragments = 0;
+        private int fragmentLength;
+        private int contentLength;
+        private int checksum;
+        @Nullable
+        private byte[][] fragments;
+        private int numKnown;
+        private final BitSet seenSequences = new BitSet();
+        private final List<Block> pending = new LinkedList<Block>();
+        @Nullable
+        private byte[] content;
+
+        /**
+         * @return true if the frame was new and belongs to the current content
+         * @throws IllegalArgumentException
+         *             if the input is not a valid frame
+         */
+        public boolean receive(final String frame) throws IllegalArgumentException {
+            if (!isFrame(frame))
+                throw new IllegalArgumentException("not a frame");
+            final ByteBuffer buf = ByteBuffer.wrap(Base43.decode(frame.substring(1)));
+            if (buf.remaining() <= HEADER_LENGTH)
+                throw new IllegalArgumentException("frame too short");
+            final int sequence = buf.getInt();
+            final int frameNumFragments = buf.getShort() & 0xffff;
+            final int frameContentLength = buf.getInt();
+            final int frameChecksum = buf.getInt();
+            final byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            if (sequence < 0 || frameContentLength < 0
+                    || frameNumFragments != Math.max(1, (frameContentLength + data.length - 1) / data.length)
+                    || sequence >= frameNumFragments * SEQUENCES_PER_FRAGMENT)
+                throw new IllegalArgumentException("invalid frame header");
+
+            if (fragments == null || frameNumFragments != numFragments || frameContentLength != contentLength
+                    || frameChecksum != checksum || data.length != fragmentLength)
+                reset(frameNumFragments, frameContentLength, frameChecksum, data.length);
+
+            if (content != null || seenSequences.get(sequence))
+                return false;
+            seenSequences.set(sequence);
+
+            final BitSet mix = mix(sequence, numFragments, checksum);
+            add(new Block(mix, data));
+            return true;
+        }
+
+        /**
+         * @return share of fragments known so far, between 0 and 1
+         */
+        public float getProgress() {
+            return numFragments > 0 ? (float) numKnown / numFragments : 0;
+        }
+
+        public boolean isComplete() {
+            return content != null;
+        }
+
+        /**
+         * @return restored content, or null if not complete yet
+         */
+        @Nullable
+        public byte[] getContent() {
+            return content;
+        }
+
+        private void reset(final int numFragments, final int contentLength, final int checksum,
+                final int fragmentLength) {
+            this.numFragments = numFragments;
+            this.fragmentLength = fragmentLength;
+            this.contentLength = contentLength;
+            this.checksum = checksum;
+            this.fragments = new byte[numFragments][];
+            this.numKnown = 0;
+            this.seenSequences.clear();
+            this.pending.clear();
+            this.content = null;
+        }
+
+        private void add(final Block newBlock) {
+            final LinkedList<Block> solved = new LinkedList<Block>();
+            if (reduce(newBlock))
+                solved.add(newBlock);
+            else if (!newBlock.mix.isEmpty())
+                pending.add(newBlock);
+
+            // peel: every solved fragment may reduce pending blocks to a single fragment
+            while (!solved.isEmpty()) {
+                final Block block = solved.removeFirst();
+                final int index = block.mix.nextSetBit(0);
+                if (fragments[index] != null)
+                    continue;
+                fragments[index] = block.data;
+                numKnown++;
+
+                for (final Iterator<Block> i = pending.iterator(); i.hasNext();) {
+                    final Block p = i.next();
+                    if (p.mix.get(index)) {
+                        p.mix.clear(index);
+                        xor(p.data, block.data);
+                        if (p.mix.cardinality() <= 1) {
+                            i.remove();
+                            if (!p.mix.isEmpty())
+                                solved.add(p);
+                        }
+                    }
+                }
+            }
+
+            if (numKnown == numFragments)
+                assemble();
+        }
+
+        /**
+         * Removes known fragments from the block.
+         *
+         * @return true if exactly one unknown fragment remains
+         */
+        private boolean reduce(final Block block) {
+            for (int i = block.mix.nextSetBit(0); i >= 0; i = block.mix.nextSetBit(i + 1)) {
+                if (fragments[i] != null) {
+                    block.mix.clear(i);
+                    xor(block.data, fragments[i]);
+                }
+            }
+            return block.mix.cardinality() == 1;
+        }
+
+        private void assemble() {
+            final byte[] bytes = new byte[contentLength];
+            for (int i = 0; i < numFragments; i++) {
+                final int offset = i * fragmentLength;
+                System.arraycopy(fragments[i], 0, bytes, offset, Math.min(fragmentLength, contentLength - offset));
+            }
+
+            if (checksum(bytes) == checksum) {
+                content = bytes;
+            } else {
+                // corrupted frame, start over
+                reset(numFragments, contentLength, checksum, fragmentLength);
+            }
+        }
+    }
+
+    public static boolean isFrame(final String content) {
+        return content.length() > 1 && content.charAt(0) == FRAME_PREFIX;
+    }
+
+    private static final class Block {
+        public final BitSet mix;
+        public final byte[] data;
+
+        public Block(final BitSet mix, final byte[] data) {
+            this.mix = mix;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Picks the fragments combined into the frame with the given sequence number. The first frames carry one fragment
+     * each, in order. After that, the number of fragments follows the robust soliton distribution. Both sides must
+     * agree on this, so it must never change.
+     */
+    private static BitSet mix(final int sequence, final int numFragments, final int checksum) {
+        final BitSet mix = new BitSet(numFragments);
+        if (sequence < numFragments) {
+            mix.set(sequence);
+            return mix;
+        }
+
+        final Random random = new Random(scramble(((long) checksum << 32) | sequence));
+        final int degree = degree(random.nextDouble(), numFragments);
+        while (mix.cardinality() < degree)
+            mix.set(random.nextInt(numFragments));
+        return mix;
+    }
+
+    /**
+     * Maps a uniform random number to a degree of the robust soliton distribution. The ideal soliton distribution alone
+     * needs far more frames than fragments for few fragments, because it keeps running out of blocks of degree one.
+     * The robust one adds weight to low degrees and a spike near {@code numFragments / ripple}.
+     */
+    private static int degree(final double uniform, final int k) {
+        final double ripple = ROBUST_SOLITON_C * Math.log(k / ROBUST_SOLITON_DELTA) * Math.sqrt(k);
+        final int spike = Math.max(1, Math.min(k, (int) Math.round(k / ripple)));
+
+        final double[] weights = new double[k + 1];
+        double sum = 0;
+        for (int d = 1; d <= k; d++) {
+            // ideal soliton
+            double weight = d == 1 ? 1.0 / k : 1.0 / (d * (d - 1.0));
+            // robust addition
+            if (d < spike)
+                weight += ripple / (d * k);
+            else if (d == spike)
+                weight += Math.max(0, ripple * Math.log(ripple / ROBUST_SOLITON_DELTA) / k);
+            weights[d] = weight;
+            sum += weight;
+        }
+
+        double cumulative = 0;
+        for (int d = 1; d < k; d++) {
+            cumulative += weights[d] / sum;
+            if (uniform < cumulative)
+                return d;
+        }
+        return k;
+    }
+
+    /**
+     * Seeds of {@link Random} that differ in few bits yield similar first values, so they are scrambled first. This is
+     * the finalizer of SplitMix64.
+     */
+    private static long scramble(long seed) {
+        seed = (seed ^ (seed >>> 30)) * 0xbf58476d1ce4e5b9L;
+        seed = (seed ^ (seed >>> 27)) * 0x94d049bb133111ebL;
+        return seed ^ (seed >>> 31);
+    }
+
+    private static void xor(final byte[] target, final byte[] source) {
+        for (int i = 0; i < target.length; i++)
+            target[i] ^= source[i];
+    }
+
+    private static int checksum(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
@@ -17,6 +17,7 @@
 
 package de.schildbach.wallet.util;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -55,4 +56,48 @@ public class Io {
         }
         return count;
     }
+
+    /**
+     * Wraps a stream so that reading more than {@code maxBytes} fails with an {@link IOException}, rather than being
+     * silently truncated.
+     */
+    public static final InputStream limit(final InputStream is, final long maxBytes) {
+        return new FilterInputStream(is) {
+            private long count = 0;
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1)
+                    count(1);
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                final int n = super.read(buffer, offset, length);
+                if (n > 0)
+                    count(n);
+                return n;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                final long skipped = super.skip(n);
+                count(skipped);
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            private void count(final long n) throws IOException {
+                count += n;
+                if (count > maxBytes)
+                    throw new IOException("Read more than the limit of " + maxBytes + " bytes");
+            }
+        };
+    }
 }
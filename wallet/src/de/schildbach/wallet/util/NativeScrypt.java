@@ -0,0 +1,81 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lambdaworks.crypto.SCrypt;
+
+/**
+ * Entry points into {@code native-scrypt} that go beyond what {@link SCrypt} offers: releasing the scratch memory the
+ * native code keeps pooled between derivations, and limiting the lanes a derivation runs in parallel.
+ *
+ * The independent lanes of {@code p > 1} run on multiple cores. This also applies to derivations through
+ * {@link SCrypt}, e.g. by bitcoinj's {@code KeyCrypterScrypt}, as both share the native implementation.
+ *
+ * @author Andreas Schildbach
+ */
+public final class NativeScrypt {
+    private static final boolean available;
+
+    private static final Logger log = LoggerFactory.getLogger(NativeScrypt.class);
+
+    static {
+        boolean loaded = false;
+        try {
+            System.loadLibrary("scrypt"); // registers our natives in JNI_OnLoad
+            loaded = true;
+        } catch (final UnsatisfiedLinkError x) {
+            log.info("native scrypt not available: {}", x.getMessage());
+        }
+        available = loaded;
+    }
+
+    private NativeScrypt() {
+    }
+
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Releases pooled scratch memory, e.g. when the system is low on memory. Derivations in progress are not
+     * affected.
+     */
+    public static void trimMemory() {
+        if (available)
+            releaseScratch();
+    }
+
+    /**
+     * Limits the number of lanes that derivations on the calling thread run in parallel, including derivations
+     * through {@link SCrypt}. Useful when running several derivations side by side already. 0 removes the limit.
+     */
+    public static void limitThreads(final int maxThreads) {
+        checkArgument(maxThreads >= 0, "maxThreads must not be negative: %s", maxThreads);
+        if (available)
+            limitThreadsNative(maxThreads);
+    }
+
+    private static native void releaseScratch();
+
+    private static native void limitThreadsNative(int maxThreads);
+}
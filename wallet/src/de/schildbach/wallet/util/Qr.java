@@ -22,16 +22,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.BaseEncoding;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
+import com.google.zxing.common.BitArray;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
@@ -44,23 +49,66 @@ import android.graphics.Bitmap;
 public class Qr {
     private final static QRCodeWriter QR_CODE_WRITER = new QRCodeWriter();
 
+    /** binary data as is */
+    private static final char PREFIX_PLAIN = '-';
+    /** GZIP, only decoded for compatibility */
+    private static final char PREFIX_GZIP = 'Z';
+    /** raw DEFLATE */
+    private static final char PREFIX_DEFLATE = 'D';
+    /** raw DEFLATE, using {@link #DICTIONARY} as preset dictionary */
+    private static final char PREFIX_DEFLATE_DICTIONARY = 'Y';
+
+    private static final int[] DEFLATE_LEVELS = { Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION,
+            Deflater.BEST_COMPRESSION };
+
+    /**
+     * Byte sequences common in serialized transactions. Must never change, as it is needed for decoding. Later
+     * sequences are cheaper to refer to, so the most common ones are at the end.
+     */
+    private static final byte[] DICTIONARY = BaseEncoding.base16().lowerCase().decode("" //
+            + "225120" // P2TR output
+            + "220020" // P2WSH output
+            + "17a914" + "87" // P2SH output
+            + "fdffffff" + "feffffff" // sequence
+            + "0248304502210002200121020121030247304402200220012102012103" // witness
+            + "020000000001" + "01000000000101" // segwit marker
+            + "160014" // P2WPKH output
+            + "1976a914" + "88ac" // P2PKH output
+            + "ffffffff" + "00000000" // sequence, lock time
+            + "6a47304402200220012102012103" + "6b483045022100022001210201210300" // P2PKH input
+            + "0100000001" + "0200000001"); // version, number of inputs
+
+    /** content longer than this is better shown as animated sequence of frames */
+    public static final int MAX_SINGLE_FRAME_LENGTH = 600;
+    /** bytes of content per frame, about QR version 7 at error correction level M */
+    private static final int FRAME_FRAGMENT_LENGTH = 100;
+
     private static final Logger log = LoggerFactory.getLogger(Qr.class);
 
     public static Bitmap bitmap(final String content) {
+        return bitmap(content, ErrorCorrectionLevel.H);
+    }
+
+    public static Bitmap bitmap(final String content, final ErrorCorrectionLevel errorCorrectionLevel) {
         try {
             final Hashtable<EncodeHintType, Object> hints = new Hashtable<EncodeHintType, Object>();
             hints.put(EncodeHintType.MARGIN, 0);
-            hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
+            hints.put(EncodeHintType.ERROR_CORRECTION, errorCorrectionLevel);
             final BitMatrix result = QR_CODE_WRITER.encode(content, BarcodeFormat.QR_CODE, 0, 0, hints);
 
             final int width = result.getWidth();
             final int height = result.getHeight();
             final byte[] pixels = new byte[width * height];
 
+            // fill runs of dark modules, light ones are zero already
+            BitArray row = new BitArray(width);
             for (int y = 0; y < height; y++) {
+                row = result.getRow(y, row);
                 final int offset = y * width;
-                for (int x = 0; x < width; x++) {
-                    pixels[offset + x] = (byte) (result.get(x, y) ? -1 : 0);
+                for (int x = row.getNextSet(0); x < width;) {
+                    final int end = row.getNextUnset(x);
+                    Arrays.fill(pixels, offset + x, offset + end, (byte) -1);
+                    x = row.getNextSet(end);
                 }
             }
 
@@ -73,24 +121,78 @@ public class Qr {
         }
     }
 
+    /**
+     * Compresses using raw DEFLATE at several levels, with and without preset dictionary, and picks the smallest
+     * result. Binary data is kept as is if none of them saves space.
+     */
     public static String encodeCompressBinary(final byte[] bytes) {
+        char prefix = PREFIX_PLAIN;
+        byte[] smallest = bytes;
+        int smallestLength = bytes.length;
+
+        byte[] buf = new byte[bytes.length];
+        // native zlib state isn't reclaimed until end(), so don't leave it to the finalizer
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
         try {
-            final ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length);
-            final GZIPOutputStream gos = new GZIPOutputStream(bos);
-            gos.write(bytes);
-            gos.close();
+            for (final int level : DEFLATE_LEVELS) {
+                for (final boolean useDictionary : new boolean[] { false, true }) {
+                    final int length = deflate(deflater, bytes, level, useDictionary, buf, smallestLength);
+                    if (length < smallestLength) {
+                        final byte[] previous = smallest;
+                        prefix = useDictionary ? PREFIX_DEFLATE_DICTIONARY : PREFIX_DEFLATE;
+                        smallest = buf;
+                        smallestLength = length;
+                        buf = previous != bytes ? previous : new byte[bytes.length];
+                    }
+                }
+            }
+        } finally {
+            deflater.end();
+        }
 
-            final byte[] gzippedBytes = bos.toByteArray();
-            final boolean useCompressioon = gzippedBytes.length < bytes.length;
+        return prefix + Base43.encode(smallest == bytes ? bytes : Arrays.copyOf(smallest, smallestLength));
+    }
 
-            final StringBuilder str = new StringBuilder();
-            str.append(useCompressioon ? 'Z' : '-');
-            str.append(Base43.encode(useCompressioon ? gzippedBytes : bytes));
+    /**
+     * @return length of the compressed data, or {@code maxLength} if it would not be smaller than that
+     */
+    private static int deflate(final Deflater deflater, final byte[] bytes, final int level,
+            final boolean useDictionary, final byte[] buf, final int maxLength) {
+        deflater.reset();
+        deflater.setLevel(level);
+        if (useDictionary)
+            deflater.setDictionary(DICTIONARY);
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished() && length < maxLength)
+            length += deflater.deflate(buf, length, maxLength - length);
+        return deflater.finished() ? length : maxLength;
+    }
 
-            return str.toString();
-        } catch (final IOException x) {
-            throw new RuntimeException(x);
-        }
+    /**
+     * Splits the content into frames for an animated QR code, see {@link FountainCode}. The content must be as returned
+     * by {@link #encodeCompressBinary(byte[])}. Frames carry its prefix and binary data rather than the Base43 text,
+     * which would otherwise be Base43 encoded twice.
+     */
+    public static FountainCode.Encoder frames(final String content) {
+        final byte[] bytes = Base43.decode(content.substring(1));
+        final byte[] payload = new byte[1 + bytes.length];
+        payload[0] = (byte) content.charAt(0);
+        System.arraycopy(bytes, 0, payload, 1, bytes.length);
+        return new FountainCode.Encoder(payload, FRAME_FRAGMENT_LENGTH);
+    }
+
+    /**
+     * @return content as passed to {@link #frames(String)}, given the payload restored from its frames
+     * @throws IllegalArgumentException
+     *             if the payload is empty
+     */
+    public static String contentOfFrames(final byte[] payload) throws IllegalArgumentException {
+        if (payload.length == 0)
+            throw new IllegalArgumentException("empty payload");
+        return (char) (payload[0] & 0xff) + Base43.encode(Arrays.copyOfRange(payload, 1, payload.length));
     }
 
     public static String encodeBinary(final byte[] bytes) {
@@ -98,11 +200,14 @@ public class Qr {
     }
 
     public static byte[] decodeDecompressBinary(final String content) throws IOException {
-        final boolean useCompression = content.charAt(0) == 'Z';
+        final char prefix = content.charAt(0);
         final byte[] bytes = Base43.decode(content.substring(1));
 
+        if (prefix == PREFIX_DEFLATE || prefix == PREFIX_DEFLATE_DICTIONARY)
+            return inflate(bytes, prefix == PREFIX_DEFLATE_DICTIONARY);
+
         InputStream is = new ByteArrayInputStream(bytes);
-        if (useCompression)
+        if (prefix == PREFIX_GZIP)
             is = new GZIPInputStream(is);
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -116,6 +221,30 @@ public class Qr {
         return baos.toByteArray();
     }
 
+    private static byte[] inflate(final byte[] bytes, final boolean useDictionary) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length * 2);
+        final byte[] buf = new byte[4096];
+        try {
+            if (useDictionary)
+                inflater.setDictionary(DICTIONARY);
+            inflater.setInput(bytes);
+
+            while (!inflater.finished()) {
+                final int read = inflater.inflate(buf);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated compressed data");
+                baos.write(buf, 0, read);
+            }
+        } catch (final DataFormatException x) {
+            throw new IOException(x);
+        } finally {
+            inflater.end();
+        }
+
+        return baos.toByteArray();
+    }
+
     public static byte[] decodeBinary(final String content) throws IOException {
         return Base43.decode(content);
     }
@@ -0,0 +1,138 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+/**
+ * Keeps recently rendered QR codes, keyed by content and error correction level, up to a given amount of memory.
+ * Codes that are not cached are rendered on a background thread.
+ *
+ * @author Andreas Schildbach
+ */
+public final class QrBitmapCache {
+    public interface Callback {
+        /**
+         * @param bitmap
+         *            the rendered code, or null if the content could not be encoded
+         */
+        void onBitmap(String content, @Nullable Bitmap bitmap);
+    }
+
+    private final LruCache<String, Bitmap> cache;
+    private final ThreadPoolExecutor executor;
+
+    public QrBitmapCache(final int maxBytes) {
+        this.cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(final String key, final Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        this.executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("qr-renderer-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public @Nullable Bitmap get(final String content, final ErrorCorrectionLevel errorCorrectionLevel) {
+        return cache.get(key(content, errorCorrectionLevel));
+    }
+
+    /**
+     * Hands the code for the given content to the callback. If it is cached, the callback is invoked right away.
+     * Otherwise it is rendered in the background, and the callback is invoked on the looper of the calling thread.
+     */
+    public void render(final String content, final ErrorCorrectionLevel errorCorrectionLevel,
+            final Callback callback) {
+        final String key = key(content, errorCorrectionLevel);
+        final Bitmap cached = cache.get(key);
+        if (cached != null) {
+            callback.onBitmap(content, cached);
+            return;
+        }
+
+        final Handler callbackHandler = new Handler(Looper.myLooper());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = cache.get(key);
+                if (bitmap == null) {
+                    bitmap = Qr.bitmap(content, errorCorrectionLevel);
+                    if (bitmap != null)
+                        cache.put(key, bitmap);
+                }
+
+                postCallback(callbackHandler, callback, content, bitmap);
+            }
+        });
+    }
+
+    /**
+     * Renders the code in the background without caching it, for content that is shown once and never again, like the
+     * frames of {@link AnimatedQrFragment}. The callback is invoked on the looper of the calling thread.
+     */
+    public void renderUncached(final String content, final ErrorCorrectionLevel errorCorrectionLevel,
+            final Callback callback) {
+        final Handler callbackHandler = new Handler(Looper.myLooper());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                postCallback(callbackHandler, callback, content, Qr.bitmap(content, errorCorrectionLevel));
+            }
+        });
+    }
+
+    public void render(final String content, final Callback callback) {
+        render(content, ErrorCorrectionLevel.H, callback);
+    }
+
+    public void evictAll() {
+        cache.evictAll();
+    }
+
+    private static void postCallback(final Handler callbackHandler, final Callback callback, final String content,
+            @Nullable final Bitmap bitmap) {
+        callbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onBitmap(content, bitmap);
+            }
+        });
+    }
+
+    private static String key(final String content, final ErrorCorrectionLevel errorCorrectionLevel) {
+        return errorCorrectionLevel.name() + ':' + content;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + cache + "]";
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.crypto.KeyCrypterScrypt;
+import org.bitcoinj.wallet.Protos.ScryptParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+import com.lambdaworks.crypto.SCrypt;
+
+/**
+ * Picks scrypt parameters for deriving the key from the spending PIN, by benchmarking scrypt on the device. N is
+ * doubled as long as the expected latency stays within the target and the memory of one lane stays within the limit.
+ * If there are spare cores, lanes (p) can be added, as the native implementation runs them in parallel: they multiply
+ * the work of an attacker but hardly add latency. r stays at the customary 8.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ScryptCalibration {
+    public static final int R = 8;
+    public static final int MIN_N = 16384;
+    public static final int MAX_N = 1048576;
+    public static final int MAX_P = 8;
+
+    private static final int PROBE_N = 4096;
+    private static final int PROBE_ROUNDS = 3;
+
+    private static final Logger log = LoggerFactory.getLogger(ScryptCalibration.class);
+
+    public interface Benchmark {
+        /** @return the time it takes to derive a key using the given parameters, in milliseconds */
+        long run(int n, int r, int p);
+    }
+
+    public static final class Params {
+        public final int n;
+        public final int r;
+        public final int p;
+
+        public Params(final int n, final int r, final int p) {
+            checkArgument(n >= 2 && (n & (n - 1)) == 0, "N must be a power of 2 greater than 1: %s", n);
+            checkArgument(r > 0 && p > 0);
+            this.n = n;
+            this.r = r;
+            this.p = p;
+        }
+
+        public long memory() {
+            return memory(n, r, p);
+        }
+
+        /**
+         * Work of one key derivation, relative to N=1, r=1, p=1.
+         */
+        public long work() {
+            return (long) n * r * p;
+        }
+
+        /**
+         * Returns whether a key crypter should be replaced by one using these parameters. That's the case if they
+         * differ, but only if they are at least as strong, so that a slow device never weakens an existing wallet.
+         */
+        public boolean shouldReplace(final KeyCrypterScrypt keyCrypter) {
+            final ScryptParameters params = keyCrypter.getScryptParameters();
+            if (params.getN() == n && params.getR() == r && params.getP() == p)
+                return false;
+            return work() >= params.getN() * params.getR() * params.getP();
+        }
+
+        public KeyCrypterScrypt newKeyCrypter() {
+            return new KeyCrypterScrypt(ScryptParameters.newBuilder()
+                    .setSalt(ByteString.copyFrom(KeyCrypterScrypt.randomSalt())).setN(n).setR(r).setP(p).build());
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            final Params other = (Params) o;
+            return n == other.n && r == other.r && p == other.p;
+        }
+
+        @Override
+        public int hashCode() {
+            return (n * 31 + r) * 31 + p;
+        }
+
+        @Override
+        public String toString() {
+            return "N=" + n + ",r=" + r + ",p=" + p;
+        }
+    }
+
+    /** Benchmarks the implementation bitcoinj uses, which is native if available. */
+    public static final Benchmark SCRYPT_BENCHMARK = new Benchmark() {
+        private final byte[] password = "calibration".getBytes(Charsets.UTF_8);
+        private final byte[] salt = new byte[8];
+
+        @Override
+        public long run(final int n, final int r, final int p) {
+            final Stopwatch watch = Stopwatch.createStarted();
+            try {
+                SCrypt.scrypt(password, salt, n, r, p, 32);
+            } catch (final GeneralSecurityException x) {
+                throw new RuntimeException(x);
+            }
+            return watch.elapsed(TimeUnit.MILLISECONDS);
+        }
+    };
+
+    private ScryptCalibration() {
+    }
+
+    /**
+     * @param targetMs
+     *            desired latency of one key derivation
+     * @param maxMemory
+     *            upper bound of memory used by one key derivation, in bytes
+     * @param parallelLanes
+     *            number of lanes that can run in parallel, i.e. the number of cores, or 1 if lanes run sequentially
+     */
+    public static Params calibrate(final Benchmark benchmark, final long targetMs, final long maxMemory,
+            final int parallelLanes) {
+        final Stopwatch watch = Stopwatch.createStarted();
+
+        // Cost scales linearly with N, so a short probe is enough for a first estimate.
+        long probeMs = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_ROUNDS; i++)
+            probeMs = Math.min(probeMs, benchmark.run(PROBE_N, R, 1));
+        final double msPerN = Math.max(probeMs, 1) / (double) PROBE_N;
+
+        int n = MIN_N;
+        while (n < MAX_N && msPerN * n * 2 <= targetMs && memory(n * 2, R, 1) <= maxMemory)
+            n *= 2;
+        int p = 1;
+        while (p < parallelLanes && p < MAX_P && memory(n, R, p + 1) <= maxMemory)
+            p++;
+
+        // Verify the estimate, because parallel lanes compete for memory bandwidth.
+        long ms = benchmark.run(n, R, p);
+        while (ms > targetMs * 3 / 2 && (p > 1 || n > MIN_N)) {
+            if (p > 1)
+                p = (p + 1) / 2;
+            else
+                n /= 2;
+            ms = benchmark.run(n, R, p);
+        }
+
+        final Params params = new Params(n, R, p);
+        log.info("calibrated scrypt to {} ({} ms, probe {} ms at N={}), took {}", params, ms, probeMs, PROBE_N,
+                watch);
+        return params;
+    }
+
+    private static long memory(final int n, final int r, final int p) {
+        return 128L * r * n * p;
+    }
+}
@@ -17,6 +17,7 @@
 
 package de.schildbach.wallet.util;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -26,6 +27,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.io.Writer;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -65,6 +67,9 @@ import android.text.style.TypefaceSpan;
  * @author Andreas Schildbach
  */
 public class WalletUtils {
+    // field 1, length-delimited
+    private static final int PROTOBUF_NETWORK_IDENTIFIER_TAG = 0x0a;
+
     public static Editable formatAddress(final Address address, final int groupSize, final int lineSize) {
         return formatHash(address.toBase58(), groupSize, lineSize);
     }
@@ -155,23 +160,39 @@ public class WalletUtils {
         return true;
     }
 
-    public static Wallet restoreWalletFromProtobufOrBase58(final InputStream is,
+    /**
+     * Restores from an encrypted backup of either format supported by {@link Crypto}, decrypting while parsing.
+     * Closes the stream.
+     */
+    public static Wallet restoreWalletFromEncrypted(final InputStream cipher, final String password,
             final NetworkParameters expectedNetworkParameters) throws IOException {
-        is.mark((int) Constants.BACKUP_MAX_CHARS);
-
         try {
-            return restoreWalletFromProtobuf(is, expectedNetworkParameters);
-        } catch (final IOException x) {
-            try {
-                is.reset();
-                return restorePrivateKeysFromBase58(is, expectedNetworkParameters);
-            } catch (final IOException x2) {
-                throw new IOException(
-                        "cannot read protobuf (" + x.getMessage() + ") or base58 (" + x2.getMessage() + ")", x);
-            }
+            final InputStream is = new BufferedInputStream(Crypto.decryptingStream(
+                    new InputStreamReader(Io.limit(cipher, Constants.BACKUP_MAX_CHARS), Charsets.UTF_8),
+                    password.toCharArray()));
+            return restoreWalletFromProtobufOrBase58(is, expectedNetworkParameters);
+        } finally {
+            cipher.close();
         }
     }
 
+    /**
+     * Tells the two formats apart by their first byte, so the stream is read only once. A protobuf backup starts with
+     * the tag of its network identifier, which can't begin a Base58 key export: those start with a comment or a key.
+     */
+    public static Wallet restoreWalletFromProtobufOrBase58(final InputStream is,
+            final NetworkParameters expectedNetworkParameters) throws IOException {
+        final PushbackInputStream pis = new PushbackInputStream(is, 1);
+        final int first = pis.read();
+        if (first != -1)
+            pis.unread(first);
+
+        if (first == PROTOBUF_NETWORK_IDENTIFIER_TAG)
+            return restoreWalletFromProtobuf(pis, expectedNetworkParameters);
+        else
+            return restorePrivateKeysFromBase58(pis, expectedNetworkParameters);
+    }
+
     public static Wallet restoreWalletFromProtobuf(final InputStream is,
             final NetworkParameters expectedNetworkParameters) throws IOException {
         try {
@@ -0,0 +1,61 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import de.schildbach.wallet.ui.send.DecodePrivateKeysTask.Plan;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class DecodePrivateKeysTaskTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void singleKeyUsesParallelLanes() {
+        assertEquals(new Plan(1, 8), Plan.of(1, 8, true, 1024 * MB));
+        assertEquals(new Plan(1, 4), Plan.of(1, 4, true, 1024 * MB));
+    }
+
+    @Test
+    public void fewKeysShareCores() {
+        assertEquals(new Plan(3, 2), Plan.of(3, 8, true, 1024 * MB));
+    }
+
+    @Test
+    public void manyKeysOneThreadEach() {
+        assertEquals(new Plan(8, 1), Plan.of(100, 8, true, 1024 * MB));
+        assertEquals(new Plan(8, 1), Plan.of(100, 8, false, 1024 * MB));
+    }
+
+    @Test
+    public void withoutParallelLanes() {
+        assertEquals(new Plan(1, 1), Plan.of(1, 8, false, 1024 * MB));
+        assertEquals(new Plan(3, 1), Plan.of(3, 8, false, 1024 * MB));
+    }
+
+    @Test
+    public void limitedByMemory() {
+        assertEquals(new Plan(1, 4), Plan.of(1, 8, true, 64 * MB));
+        assertEquals(new Plan(4, 1), Plan.of(100, 8, true, 64 * MB));
+        assertEquals(new Plan(1, 1), Plan.of(100, 8, true, 1 * MB));
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.Moshi;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ElectrumClientTest {
+    private StandInServer standInServer;
+    private ElectrumServer server;
+    private ElectrumClient client;
+
+    private static final ElectrumClient.ResultParser<String> STRING_PARSER = new ElectrumClient.ResultParser<String>() {
+        @Override
+        public String parse(final JsonReader reader) throws IOException {
+            return reader.nextString();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        standInServer = new StandInServer();
+        server = new ElectrumServer(ElectrumServer.Type.TCP,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), standInServer.getPort()), null);
+        client = new ElectrumClient(1000, 60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        standInServer.close();
+    }
+
+    @Test
+    public void callsShareConnection() throws Exception {
+        assertEquals("a", client.call(server, "echo", STRING_PARSER, "a"));
+        assertEquals("b", client.call(server, "echo", STRING_PARSER, "b"));
+        assertEquals(1, standInServer.numConnections.get());
+        assertEquals(1, client.numConnections());
+    }
+
+    @Test
+    public void batchResultsInRequestOrder() throws Exception {
+        final List<String[]> paramsList = Arrays.asList(new String[] { "a" }, new String[] { "b" },
+                new String[] { "c" });
+        final List<ElectrumClient.ResultParser<String>> parsers = Collections.nCopies(3, STRING_PARSER);
+        assertEquals(Arrays.asList("a", "b", "c"), client.batch(server, "echo", parsers, paramsList));
+        assertEquals(1, standInServer.numRequests.get());
+    }
+
+    @Test
+    public void batchWithDistinctParsers() throws Exception {
+        final ElectrumClient.ResultParser<String> upperCaseParser = new ElectrumClient.ResultParser<String>() {
+            @Override
+            public String parse(final JsonReader reader) throws IOException {
+                return reader.nextString().toUpperCase();
+            }
+        };
+        final List<String[]> paramsList = Arrays.asList(new String[] { "a" }, new String[] { "b" });
+        final List<ElectrumClient.ResultParser<String>> parsers = Arrays.asList(STRING_PARSER, upperCaseParser);
+        assertEquals(Arrays.asList("a", "B"), client.batch(server, "echo", parsers, paramsList));
+    }
+
+    @Test
+    public void concurrentCallsArePipelined() throws Exception {
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        for (int i = 0; i < 10; i++) {
+            final String param = Integer.toString(i);
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(client.call(server, "echo", STRING_PARSER, param));
+                    } catch (final IOException x) {
+                        throw new RuntimeException(x);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads)
+            thread.join();
+        assertEquals(10, results.size());
+        assertEquals(1, standInServer.numConnections.get());
+    }
+
+    @Test
+    public void idleConnectionIsClosed() throws Exception {
+        final ElectrumClient shortLivedClient = new ElectrumClient(1000, 100);
+        try {
+            assertEquals("a", shortLivedClient.call(server, "echo", STRING_PARSER, "a"));
+            assertEquals(1, shortLivedClient.numConnections());
+            for (int i = 0; i < 100 && shortLivedClient.numConnections() > 0; i++)
+                Thread.sleep(10);
+            assertEquals(0, shortLivedClient.numConnections());
+        } finally {
+            shortLivedClient.close();
+        }
+    }
+
+    @Test(expected = ElectrumClient.ServerErrorException.class)
+    public void serverError() throws Exception {
+        client.call(server, "fail", STRING_PARSER, "a");
+    }
+
+    @Test
+    public void retryOnDroppedConnection() throws Exception {
+        assertEquals("a", client.call(server, "drop_once", STRING_PARSER, "a"));
+        assertEquals(2, standInServer.numConnections.get());
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void timeout() throws Exception {
+        client.call(server, "ignore", STRING_PARSER, "a");
+    }
+
+    @Test
+    public void interruptKeepsConnection() throws Exception {
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    client.call(server, "ignore", STRING_PARSER, "a");
+                } catch (final IOException x) {
+                    if (Thread.currentThread().isInterrupted())
+                        failures.add(x);
+                }
+            }
+        };
+        thread.start();
+        while (standInServer.numRequests.get() == 0)
+            Thread.sleep(10);
+        thread.interrupt();
+        thread.join();
+
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof InterruptedIOException);
+        assertEquals("b", client.call(server, "echo", STRING_PARSER, "b"));
+        assertEquals(1, standInServer.numConnections.get());
+    }
+
+    /**
+     * Minimal Electrum server. It answers requests in reverse order and puts the result before the id.
+     */
+    private static class StandInServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final JsonAdapter<Object> adapter = new Moshi.Builder().build().adapter(Object.class);
+        private final AtomicInteger numDropped = new AtomicInteger();
+        public final AtomicInteger numConnections = new AtomicInteger();
+        public final AtomicInteger numRequests = new AtomicInteger();
+
+        public StandInServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    numConnections.incrementAndGet();
+                    final Thread thread = new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (final IOException x) {
+                // server closed
+            }
+        }
+
+        private void serve(final Socket socket) {
+            try {
+                final BufferedSource source = Okio.buffer(Okio.source(socket));
+                final BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                while (true) {
+                    final String line = source.readUtf8LineStrict();
+                    numRequests.incrementAndGet();
+                    final Object request = adapter.fromJson(line);
+                    final String response;
+                    if (request instanceof List) {
+                        final List<?> requests = new ArrayList<Object>((List<?>) request);
+                        Collections.reverse(requests);
+                        final StringBuilder builder = new StringBuilder("[");
+                        for (final Object r : requests) {
+                            if (builder.length() > 1)
+                                builder.append(',');
+                            builder.append(respond((Map<?, ?>) r));
+                        }
+                        response = builder.append(']').toString();
+                    } else {
+                        final Map<?, ?> r = (Map<?, ?>) request;
+                        if ("drop_once".equals(r.get("method")) && numDropped.getAndIncrement() == 0) {
+                            socket.close();
+                            return;
+                        }
+                        if ("ignore".equals(r.get("method")))
+                            continue;
+                        response = respond(r);
+                    }
+                    synchronized (sink) {
+                        sink.writeUtf8(response).writeByte('\n').flush();
+                    }
+                }
+            } catch (final IOException x) {
+                // connection closed
+            }
+        }
+
+        private String respond(final Map<?, ?> request) {
+            final long id = ((Number) request.get("id")).longValue();
+            if ("fail".equals(request.get("method")))
+                return "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":1,\"message\":\"failed\"},\"id\":" + id + "}";
+            final String param = (String) ((List<?>) request.get("params")).get(0);
+            return "{\"jsonrpc\":\"2.0\",\"result\":" + adapter.toJson(param) + ",\"id\":" + id + "}";
+        }
+    }
+}
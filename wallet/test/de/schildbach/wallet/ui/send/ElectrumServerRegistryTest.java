@@ -0,0 +1,146 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ElectrumServerRegistryTest {
+    private final ElectrumServer fast = server("fast");
+    private final ElectrumServer slow = server("slow");
+    private final ElectrumServer dead = server("dead");
+    private ElectrumServerRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new ElectrumServerRegistry(Arrays.asList(dead, slow, fast));
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+    }
+
+    @Test
+    public void rankByLatencyAndFailures() {
+        registry.reportSuccess(fast, 100);
+        registry.reportSuccess(slow, 800);
+        registry.reportFailure(dead, new IOException());
+        assertEquals(Arrays.asList(fast, slow, dead), registry.candidates(3));
+        assertEquals(Arrays.asList(fast), registry.candidates(1));
+    }
+
+    @Test
+    public void excludeCertificateFailures() {
+        registry.reportFailure(dead, new ElectrumClient.CertificateMismatchException("bad certificate"));
+        assertFalse(registry.candidates(3).contains(dead));
+    }
+
+    @Test
+    public void retryCertificateFailuresLater() {
+        Utils.setMockClock();
+        registry.reportFailure(dead, new ElectrumClient.CertificateMismatchException("bad certificate"));
+        Utils.rollMockClock(60 * 60);
+        assertTrue(registry.candidates(3).contains(dead));
+    }
+
+    @Test
+    public void failurePenaltyFades() {
+        Utils.setMockClock();
+        registry.reportSuccess(fast, 100);
+        registry.reportSuccess(dead, 10);
+        registry.reportFailure(dead, new IOException());
+        assertEquals(fast, registry.candidates(1).get(0));
+        Utils.rollMockClock(5 * 60);
+        assertEquals(fast, registry.candidates(1).get(0));
+        Utils.rollMockClock(5 * 60);
+        assertEquals(dead, registry.candidates(1).get(0));
+    }
+
+    @Test
+    public void keepTransientHandshakeFailures() {
+        registry.reportFailure(dead, new SSLHandshakeException("connection reset"));
+        assertTrue(registry.candidates(3).contains(dead));
+    }
+
+    @Test
+    public void raceDoesNotPenalizeLosers() throws Exception {
+        registry.reportSuccess(fast, 10);
+        registry.reportSuccess(slow, 20);
+        final String result = registry.race(new ElectrumServerRegistry.Request<String>() {
+            @Override
+            public String execute(final ElectrumServer server) throws IOException {
+                try {
+                    // the slow server is only asked after the stagger delay, and loses
+                    Thread.sleep(server == slow ? 10000 : 700);
+                } catch (final InterruptedException x) {
+                    throw new InterruptedIOException();
+                }
+                return server.socketAddress.getHostName();
+            }
+        });
+        assertEquals("fast", result);
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(slow), registry.candidates(1));
+    }
+
+    @Test
+    public void raceSkipsFailingServers() throws Exception {
+        registry.reportSuccess(dead, 10);
+        final String result = registry.race(new ElectrumServerRegistry.Request<String>() {
+            @Override
+            public String execute(final ElectrumServer server) throws IOException {
+                if (server == dead)
+                    throw new IOException("connection refused");
+                return server.socketAddress.getHostName();
+            }
+        });
+        assertFalse("dead".equals(result));
+        assertEquals(dead, registry.candidates(3).get(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void raceFailsIfAllFail() throws Exception {
+        registry.race(new ElectrumServerRegistry.Request<String>() {
+            @Override
+            public String execute(final ElectrumServer server) throws IOException {
+                throw new IOException("connection refused");
+            }
+        });
+    }
+
+    private static ElectrumServer server(final String host) {
+        return new ElectrumServer(ElectrumServer.Type.TCP, InetSocketAddress.createUnresolved(host, 50001), null);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+
+import okio.Buffer;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ListUnspentParserTest {
+    private static final Address ADDRESS = new ECKey().toAddress(MainNetParams.get());
+    private static final String HASH = "b4ef212a6d1c3c8a1f0e6f1a1b7a2f3f8e1e2a2b1c9a7e6d5c4b3a2918070605";
+
+    @Test
+    public void parse() throws Exception {
+        final List<RequestWalletBalanceTask.UnspentOutput> outputs = parse(
+                "[" + record(0, 1000) + "," + record(1, 2000) + "]", 10);
+        assertEquals(2, outputs.size());
+        assertEquals(HASH, outputs.get(0).hash.toString());
+        assertEquals(Coin.valueOf(2000), outputs.get(1).value);
+        final Script script = ScriptBuilder.createOutputScript(ADDRESS);
+        assertSame(script, outputs.get(0).toUtxo(script).getScript());
+    }
+
+    @Test
+    public void ignoreUnknownFields() throws Exception {
+        final List<RequestWalletBalanceTask.UnspentOutput> outputs = parse("[{\"extra\":[1,2],\"tx_hash\":\"" + HASH
+                + "\",\"tx_pos\":3,\"value\":500,\"height\":100}]", 10);
+        final RequestWalletBalanceTask.UnspentOutput output = outputs.get(0);
+        assertEquals(3, output.index);
+        assertEquals(Coin.valueOf(500), output.value);
+        assertEquals(100, output.height);
+    }
+
+    @Test
+    public void skipBeyondBudget() throws Exception {
+        final AtomicInteger budget = new AtomicInteger(2);
+        final List<RequestWalletBalanceTask.UnspentOutput> outputs = parse(
+                "[" + record(0, 1) + "," + record(1, 1) + "," + record(2, 1) + "," + record(3, 1) + "]", budget);
+        assertEquals(2, outputs.size());
+        assertEquals(-2, budget.get());
+    }
+
+    @Test(expected = JsonDataException.class)
+    public void incompleteRecord() throws Exception {
+        parse("[{\"tx_hash\":\"" + HASH + "\",\"height\":100}]", 10);
+    }
+
+    private static String record(final int index, final long value) {
+        return "{\"tx_hash\":\"" + HASH + "\",\"tx_pos\":" + index + ",\"value\":" + value + ",\"height\":1}";
+    }
+
+    private static List<RequestWalletBalanceTask.UnspentOutput> parse(final String json, final int budget)
+            throws IOException {
+        return parse(json, new AtomicInteger(budget));
+    }
+
+    private static List<RequestWalletBalanceTask.UnspentOutput> parse(final String json, final AtomicInteger budget)
+            throws IOException {
+        final JsonReader reader = JsonReader.of(new Buffer().writeUtf8(json));
+        return new RequestWalletBalanceTask.ListUnspentParser(budget).parse(reader);
+    }
+}
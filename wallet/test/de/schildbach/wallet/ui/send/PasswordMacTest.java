@@ -0,0 +1,41 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class PasswordMacTest {
+    @Test
+    public void matches() {
+        final PasswordMac passwordMacs = new PasswordMac();
+        final byte[] mac = passwordMacs.of("1234");
+        assertTrue(passwordMacs.matches(mac, "1234"));
+        assertFalse(passwordMacs.matches(mac, "1235"));
+    }
+
+    @Test
+    public void keyIsPerInstance() {
+        assertFalse(new PasswordMac().matches(new PasswordMac().of("1234"), "1234"));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class BackupFileIndexTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final BackupFileIndex index = new BackupFileIndex(TestNet3Params.get());
+
+    @Test
+    public void classify() throws Exception {
+        assertEquals(BackupFileIndex.Type.PROTOBUF, index.get(fromResource("backup-protobuf-testnet")));
+        assertEquals(BackupFileIndex.Type.KEYS, index.get(fromResource("backup-base58-testnet")));
+        assertEquals(BackupFileIndex.Type.ENCRYPTED, index.get(fromResource("bitcoin-wallet-backup-testnet-3.50")));
+        assertEquals(BackupFileIndex.Type.UNKNOWN, index.get(folder.newFile()));
+        assertEquals(BackupFileIndex.Type.UNKNOWN, index.get(new File(folder.getRoot(), "nonexistent")));
+    }
+
+    @Test
+    public void changedFileIsClassifiedAgain() throws Exception {
+        final File file = folder.newFile();
+        Files.write("# just a comment\n", file, Charsets.UTF_8);
+        assertEquals(BackupFileIndex.Type.UNKNOWN, index.get(file));
+
+        Files.write("# just a comment\n929tTVp2tq7MmDMnFk4j73TZMvsWe66DdseeTArvUw2KSrpcsVc\n", file, Charsets.UTF_8);
+        assertEquals(BackupFileIndex.Type.KEYS, index.get(file));
+    }
+
+    private File fromResource(final String filename) throws Exception {
+        final File file = folder.newFile(filename);
+        final InputStream is = getClass().getResourceAsStream(filename);
+        final OutputStream os = new FileOutputStream(file);
+        ByteStreams.copy(is, os);
+        os.close();
+        is.close();
+        return file;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Measures {@link Base43} across the sizes seen in QR codes, from a payment request up to a large transaction. Run
+ * manually, as timings are meaningless on a loaded build machine.
+ *
+ * @author Andreas Schildbach
+ */
+public class Base43Benchmark {
+    private static final int[] SIZES = { 32, 256, 1024, 2953, 10000 };
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(final String[] args) {
+        final Random random = new Random(0);
+        for (final int size : SIZES) {
+            final byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            final String encoded = Base43.encode(bytes);
+            final int iterations = Math.max(1, 1000000 / size);
+
+            long encodeNs = 0, decodeNs = 0;
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                final Stopwatch encodeWatch = Stopwatch.createStarted();
+                for (int i = 0; i < iterations; i++)
+                    Base43.encode(bytes);
+                encodeNs = encodeWatch.elapsed(TimeUnit.NANOSECONDS);
+
+                final Stopwatch decodeWatch = Stopwatch.createStarted();
+                for (int i = 0; i < iterations; i++)
+                    Base43.decode(encoded);
+                decodeNs = decodeWatch.elapsed(TimeUnit.NANOSECONDS);
+            }
+
+            System.out.printf("%6d bytes -> %6d chars: encode %8.1f us, decode %8.1f us%n", size, encoded.length(),
+                    encodeNs / 1000.0 / iterations, decodeNs / 1000.0 / iterations);
+        }
+    }
+}
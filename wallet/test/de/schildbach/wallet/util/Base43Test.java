@@ -20,6 +20,8 @@ package de.schildbach.wallet.util;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
 import org.junit.Test;
 
 /**
@@ -47,4 +49,28 @@ public class Base43Test {
 
         assertArrayEquals("Hello World".getBytes(), Base43.decode("RNO2-MYFN0D35RHM"));
     }
+
+    @Test
+    public void leadingZeros() throws Exception {
+        assertEquals("000", Base43.encode(new byte[3]));
+        assertArrayEquals(new byte[3], Base43.decode("000"));
+
+        assertEquals("005.", Base43.encode(new byte[] { 0x0, 0x0, (byte) 0xff }));
+        assertArrayEquals(new byte[] { 0x0, 0x0, (byte) 0xff }, Base43.decode("005."));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final Random random = new Random(0);
+        for (int length = 0; length < 300; length++) {
+            final byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertArrayEquals(bytes, Base43.decode(Base43.encode(bytes)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalCharacter() throws Exception {
+        Base43.decode("RNO2-MYFN0D35RHM#");
+    }
 }
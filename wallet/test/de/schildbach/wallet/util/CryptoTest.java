@@ -25,12 +25,19 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
 
 import org.bitcoinj.wallet.WalletProtobufSerializer;
 import org.junit.Test;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 
 /**
  * @author Andreas Schildbach
@@ -99,6 +106,82 @@ public class CryptoTest {
         assertTrue(WalletProtobufSerializer.isWallet(new ByteArrayInputStream(backupCrLf)));
     }
 
+    @Test
+    public void streamBackups() throws Exception {
+        final InputStream backup = Crypto.decryptingStream(new InputStreamReader(
+                getClass().getResourceAsStream("bitcoin-wallet-backup-testnet-3.50"), Charsets.UTF_8), PASSWORD);
+        assertTrue(WalletProtobufSerializer.isWallet(backup));
+        backup.close();
+    }
+
+    @Test
+    public void streamRoundtripDifferentByteSizes() throws Exception {
+        for (final Crypto.Format format : Crypto.Format.values()) {
+            for (int size = 0; size < 100; size++)
+                assertArrayEquals(format + " " + size, bytes(size), streamDecrypt(streamEncrypt(bytes(size), format)));
+            assertArrayEquals(format.toString(), bytes(100000),
+                    streamDecrypt(streamEncrypt(bytes(100000), format)));
+        }
+    }
+
+    @Test
+    public void streamIsCompatible() throws Exception {
+        assertArrayEquals(PLAIN_BYTES, streamDecrypt(Crypto.encrypt(PLAIN_BYTES, PASSWORD)));
+        assertArrayEquals(PLAIN_BYTES,
+                Crypto.decryptBytes(streamEncrypt(PLAIN_BYTES, Crypto.Format.OPENSSL), PASSWORD));
+    }
+
+    @Test(expected = IOException.class)
+    public void authenticatedWrongPassword() throws Exception {
+        Crypto.decryptingStream(new StringReader(streamEncrypt(PLAIN_BYTES, Crypto.Format.AUTHENTICATED)),
+                "wrong".toCharArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void authenticatedTampered() throws Exception {
+        final byte[] raw = BaseEncoding.base64().withSeparator("\n", 76)
+                .decode(streamEncrypt(PLAIN_BYTES, Crypto.Format.AUTHENTICATED));
+        raw[raw.length - 40] ^= 1; // flip a bit of ciphertext
+        streamDecrypt(BaseEncoding.base64().encode(raw));
+    }
+
+    @Test(expected = IOException.class)
+    public void authenticatedTruncated() throws Exception {
+        final byte[] raw = BaseEncoding.base64().withSeparator("\n", 76)
+                .decode(streamEncrypt(PLAIN_BYTES, Crypto.Format.AUTHENTICATED));
+        streamDecrypt(BaseEncoding.base64().encode(Arrays.copyOf(raw, raw.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void authenticatedExcessiveScryptParameters() throws Exception {
+        final byte[] raw = BaseEncoding.base64().withSeparator("\n", 76)
+                .decode(streamEncrypt(PLAIN_BYTES, Crypto.Format.AUTHENTICATED));
+        raw[8] = 20; // log2(N), which with r=8 would need 1 GiB
+        streamDecrypt(BaseEncoding.base64().encode(raw));
+    }
+
+    private static byte[] bytes(final int size) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++)
+            bytes[i] = (byte) i;
+        return bytes;
+    }
+
+    private static String streamEncrypt(final byte[] plainBytes, final Crypto.Format format) throws IOException {
+        final StringWriter cipherText = new StringWriter();
+        final OutputStream os = Crypto.encryptingStream(cipherText, PASSWORD, format);
+        os.write(plainBytes);
+        os.close();
+        return cipherText.toString();
+    }
+
+    private static byte[] streamDecrypt(final String cipherText) throws IOException {
+        final InputStream is = Crypto.decryptingStream(new StringReader(cipherText), PASSWORD);
+        final byte[] plainBytes = ByteStreams.toByteArray(is);
+        is.close();
+        return plainBytes;
+    }
+
     private String readBackupFromResource(final String filename) throws IOException {
         final BufferedReader reader = new BufferedReader(
                 new InputStreamReader(getClass().getResourceAsStream(filename), Charsets.UTF_8));
@@ -0,0 +1,135 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class FountainCodeTest {
+    @Test
+    public void inOrder() throws Exception {
+        final byte[] content = content(1000);
+        final FountainCode.Encoder encoder = new FountainCode.Encoder(content, 100);
+        assertEquals(10, encoder.getNumFragments());
+        final FountainCode.Decoder decoder = new FountainCode.Decoder();
+        for (int i = 0; i < encoder.getNumFragments(); i++) {
+            assertFalse(decoder.isComplete());
+            assertTrue(decoder.receive(encoder.nextFrame()));
+        }
+        assertTrue(decoder.isComplete());
+        assertArrayEquals(content, decoder.getContent());
+    }
+
+    @Test
+    public void lossyAndShuffled() throws Exception {
+        final Random random = new Random(0);
+        for (int round = 0; round < 20; round++) {
+            final byte[] content = content(random.nextInt(3000));
+            final FountainCode.Encoder encoder = new FountainCode.Encoder(content, 80);
+            final FountainCode.Decoder decoder = new FountainCode.Decoder();
+            int numFrames = 0;
+            while (!decoder.isComplete()) {
+                final String frame = encoder.nextFrame();
+                // the receiver misses most frames, and sees some twice
+                if (random.nextInt(3) == 0) {
+                    decoder.receive(frame);
+                    numFrames++;
+                    if (random.nextBoolean())
+                        assertFalse(decoder.receive(frame));
+                }
+                assertTrue(numFrames < encoder.getNumFragments() * 5 + 20);
+            }
+            assertArrayEquals(content, decoder.getContent());
+            assertEquals(1f, decoder.getProgress(), 0);
+        }
+    }
+
+    @Test
+    public void lowOverheadWithoutSystematicFrames() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            final FountainCode.Encoder encoder = new FountainCode.Encoder(content(10000 + round), 100);
+            final FountainCode.Decoder decoder = new FountainCode.Decoder();
+            for (int i = 0; i < encoder.getNumFragments(); i++)
+                encoder.nextFrame();
+            int numFrames = 0;
+            while (!decoder.isComplete()) {
+                decoder.receive(encoder.nextFrame());
+                numFrames++;
+            }
+            assertTrue(numFrames < encoder.getNumFragments() * 5 / 2);
+        }
+    }
+
+    @Test
+    public void startsOverOnDifferentContent() throws Exception {
+        final FountainCode.Encoder first = new FountainCode.Encoder(content(500), 100);
+        final byte[] second = content(300);
+        final FountainCode.Encoder secondEncoder = new FountainCode.Encoder(second, 100);
+        final FountainCode.Decoder decoder = new FountainCode.Decoder();
+        decoder.receive(first.nextFrame());
+        decoder.receive(first.nextFrame());
+        assertEquals(0.4f, decoder.getProgress(), 0.001);
+        for (int i = 0; i < secondEncoder.getNumFragments(); i++)
+            decoder.receive(secondEncoder.nextFrame());
+        assertArrayEquals(second, decoder.getContent());
+    }
+
+    @Test
+    public void isFrame() throws Exception {
+        assertTrue(FountainCode.isFrame(new FountainCode.Encoder(content(4), 10).nextFrame()));
+        assertFalse(FountainCode.isFrame("bitcoin:1AGNa15ZQXAZUgFiqJ2i7Z2DPU2J6hW62i"));
+        assertFalse(FountainCode.isFrame(Qr.encodeCompressBinary(new byte[100])));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidFrame() throws Exception {
+        new FountainCode.Decoder().receive("%ABC");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sequenceOutOfRange() throws Exception {
+        final ByteBuffer frame = ByteBuffer.allocate(4 + 2 + 4 + 4 + 10);
+        frame.putInt(Integer.MAX_VALUE).putShort((short) 1).putInt(10).putInt(0);
+        new FountainCode.Decoder().receive(FountainCode.FRAME_PREFIX + Base43.encode(frame.array()));
+    }
+
+    @Test
+    public void sequenceWraps() throws Exception {
+        final FountainCode.Encoder encoder = new FountainCode.Encoder(content(20), 10);
+        final String first = encoder.nextFrame();
+        for (int i = 1; i < 2 * 64; i++)
+            encoder.nextFrame();
+        assertEquals(first, encoder.nextFrame());
+    }
+
+    private static byte[] content(final int length) {
+        final byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class IoTest {
+    @Test
+    public void limitExact() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Io.copy(Io.limit(new ByteArrayInputStream(new byte[4096]), 4096), os);
+        assertEquals(4096, os.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void limitExceeded() throws Exception {
+        Io.copy(Io.limit(new ByteArrayInputStream(new byte[4097]), 4096), new ByteArrayOutputStream());
+    }
+}
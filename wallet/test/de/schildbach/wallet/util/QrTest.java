@@ -0,0 +1,93 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class QrTest {
+    private static final byte[] TX = BaseEncoding.base16().lowerCase()
+            .decode("0100000001c997a5e56e104102fa209c6a852dd90660a20b2d9c352423edce25857fcd3704000000004847304402"
+                    + "204e45e16932b8af514961a1d3a1a25fdf3f4f7732e9d624c6c61548ab5fb8cd410220181522ec8eca07de4860a4"
+                    + "acdd12909d831cc56cbbac4622082221a8768d1d0901ffffffff0200ca9a3b00000000434104ae1a62fe09c5f51b"
+                    + "13905f07f06b99a2f7159b2225f374cd378d71302fa28414e7aab37397f554a7df5f142c21c1b7303b8a0626f1ba"
+                    + "ded5c72a704f7e6cd84cac00286bee0000000043410411db93e1dcdb8a016b49840f8c53bc1eb68a382e97b1482e"
+                    + "cad7b148a6909a5cb2e0eaddfb84ccf9744464f82e160bfa9b8b64f9d4c03f999b8643f656b412a3ac00000000");
+
+    @Test
+    public void roundTripTransaction() throws Exception {
+        final String encoded = Qr.encodeCompressBinary(TX);
+        assertEquals('Y', encoded.charAt(0));
+        assertArrayEquals(TX, Qr.decodeDecompressBinary(encoded));
+    }
+
+    @Test
+    public void framesRoundTrip() throws Exception {
+        final String content = Qr.encodeCompressBinary(TX);
+        final FountainCode.Encoder encoder = Qr.frames(content);
+        final FountainCode.Decoder decoder = new FountainCode.Decoder();
+        while (!decoder.isComplete())
+            decoder.receive(encoder.nextFrame());
+        assertEquals(content, Qr.contentOfFrames(decoder.getContent()));
+    }
+
+    @Test
+    public void incompressibleStaysPlain() throws Exception {
+        final byte[] bytes = new byte[256];
+        new Random(0).nextBytes(bytes);
+        final String encoded = Qr.encodeCompressBinary(bytes);
+        assertEquals("-" + Base43.encode(bytes), encoded);
+        assertArrayEquals(bytes, Qr.decodeDecompressBinary(encoded));
+    }
+
+    @Test
+    public void repetitive() throws Exception {
+        final byte[] bytes = new byte[1000];
+        final String encoded = Qr.encodeCompressBinary(bytes);
+        assertTrue(encoded.length() < 20);
+        assertArrayEquals(bytes, Qr.decodeDecompressBinary(encoded));
+    }
+
+    @Test
+    public void decodeGzip() throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(TX);
+        gos.close();
+        assertArrayEquals(TX, Qr.decodeDecompressBinary("Z" + Base43.encode(bos.toByteArray())));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        final String encoded = Qr.encodeCompressBinary(TX);
+        Qr.decodeDecompressBinary(encoded.substring(0, encoded.length() - 10));
+    }
+}
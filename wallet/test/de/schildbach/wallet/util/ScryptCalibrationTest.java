@@ -0,0 +1,90 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ScryptCalibrationTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void limitedByMemory() {
+        final ScryptCalibration.Params params = ScryptCalibration.calibrate(device(1000, 4, true), 1000, 64 * MB, 1);
+        assertEquals(new ScryptCalibration.Params(65536, 8, 1), params);
+        assertEquals(64 * MB, params.memory());
+    }
+
+    @Test
+    public void spareCoresAddLanes() {
+        assertEquals(new ScryptCalibration.Params(65536, 8, 4),
+                ScryptCalibration.calibrate(device(100, 4, true), 1000, 256 * MB, 4));
+    }
+
+    @Test
+    public void slowDeviceGetsMinimum() {
+        assertEquals(new ScryptCalibration.Params(ScryptCalibration.MIN_N, 8, 1),
+                ScryptCalibration.calibrate(device(10, 1, true), 1000, 256 * MB, 1));
+    }
+
+    @Test
+    public void verificationBacksOffLanes() {
+        // lanes don't actually run in parallel
+        assertEquals(new ScryptCalibration.Params(65536, 8, 2),
+                ScryptCalibration.calibrate(device(100, 4, false), 1000, 256 * MB, 4));
+    }
+
+    @Test
+    public void params() {
+        final ScryptCalibration.Params params = new ScryptCalibration.Params(32768, 8, 2);
+        assertEquals(32768L * 8 * 2, params.work());
+        assertFalse(params.shouldReplace(params.newKeyCrypter()));
+        assertTrue(new ScryptCalibration.Params(65536, 8, 1).shouldReplace(params.newKeyCrypter()));
+    }
+
+    @Test
+    public void neverWeaken() {
+        final ScryptCalibration.Params params = new ScryptCalibration.Params(65536, 8, 1);
+        assertFalse(new ScryptCalibration.Params(ScryptCalibration.MIN_N, 8, 1).shouldReplace(params.newKeyCrypter()));
+        assertFalse(new ScryptCalibration.Params(32768, 8, 1).shouldReplace(params.newKeyCrypter()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nMustBePowerOfTwo() {
+        new ScryptCalibration.Params(30000, 8, 1);
+    }
+
+    /**
+     * Stand-in for a device that derives {@code nPerMs} iterations per millisecond, per lane.
+     */
+    private static ScryptCalibration.Benchmark device(final int nPerMs, final int cores, final boolean parallel) {
+        return new ScryptCalibration.Benchmark() {
+            @Override
+            public long run(final int n, final int r, final int p) {
+                final int rounds = parallel ? (p + cores - 1) / cores : p;
+                return (long) n / nPerMs * rounds;
+            }
+        };
+    }
+}